@@ -29,6 +29,20 @@ java {
     targetCompatibility = JavaVersion.VERSION_21
 }
 
+// JMH benchmarks of the preview pipeline; see src/jmh. They compile against the plugin classes
+// and the IntelliJ Platform, but run outside the IDE.
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
 intellijPlatform {
     pluginConfiguration {
         id = "com.github.stancel.rst-preview-standalone"
@@ -82,3 +96,72 @@ tasks {
         enabled = false
     }
 }
+
+val jmhResults = layout.buildDirectory.file("reports/jmh/results.json")
+val jmhBaseline = layout.projectDirectory.file("src/jmh/baseline.json")
+
+// ./gradlew jmh [-PjmhInclude=<regex>]
+val jmh by tasks.registering(JavaExec::class) {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks and writes build/reports/jmh/results.json."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    val include = providers.gradleProperty("jmhInclude")
+    val results = jmhResults
+    outputs.upToDateWhen { false }
+    doFirst {
+        results.get().asFile.parentFile.mkdirs()
+        args("-rf", "json", "-rff", results.get().asFile.path)
+        if (include.isPresent) args(include.get())
+    }
+}
+
+// Stores the last results as the baseline jmhCompare checks against.
+tasks.register<Copy>("jmhSaveBaseline") {
+    group = "benchmark"
+    description = "Copies the last JMH results to src/jmh/baseline.json."
+    from(jmhResults)
+    into(jmhBaseline.asFile.parentFile)
+    rename { jmhBaseline.asFile.name }
+}
+
+// ./gradlew jmhCompare [-PjmhThreshold=<percent>]
+tasks.register("jmhCompare") {
+    group = "benchmark"
+    description = "Fails if a benchmark got slower than the stored baseline by more than jmhThreshold percent (default 10)."
+    dependsOn(jmh)
+    val results = jmhResults
+    val baseline = jmhBaseline
+    val threshold = providers.gradleProperty("jmhThreshold").map { it.toDouble() }.orElse(10.0)
+    doLast {
+        val baselineFile = baseline.asFile
+        if (!baselineFile.exists()) {
+            logger.warn("No JMH baseline at $baselineFile; run jmhSaveBaseline to create one.")
+            return@doLast
+        }
+
+        // All benchmarks report average time, so a higher score is a regression.
+        fun scores(file: File): Map<String, Double> {
+            @Suppress("UNCHECKED_CAST")
+            val runs = groovy.json.JsonSlurper().parse(file) as List<Map<String, Any?>>
+            return runs.associate { run ->
+                val params = (run["params"] as Map<*, *>?)?.entries?.sortedBy { it.key.toString() }?.joinToString(",") { "${it.key}=${it.value}" }
+                val metric = run["primaryMetric"] as Map<*, *>
+                "${run["benchmark"]}(${params.orEmpty()})" to (metric["score"] as Number).toDouble()
+            }
+        }
+
+        val before = scores(baselineFile)
+        val after = scores(results.get().asFile)
+        val limit = threshold.get()
+        val regressions = after.mapNotNull { (name, score) ->
+            val old = before[name] ?: return@mapNotNull null
+            val change = (score - old) / old * 100
+            logger.lifecycle(String.format("%-90s %12.3f -> %12.3f  %+6.1f%%", name, old, score, change))
+            if (change > limit) "$name: ${"%.1f".format(change)}% slower" else null
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("JMH regressions above $limit%:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done with rst2html's output on its way into the preview: the unchanged-HTML check in the
+ * editor, taking the stylesheets and body out of the page for the JCEF shell page, the parse and
+ * patch payload of in-place DOM updates, and splitting a page for large document mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageUpdateBenchmark {
+    @Param({"1K", "16K", "256K", "1M", "5M"})
+    public String size;
+
+    private String myHtml;
+    private String myLastRenderedHtml;
+    private String myBody;
+
+    @Setup
+    public void setUp() {
+        myHtml = Rst2HtmlStub.render(RstCorpus.load(size));
+        // A separate instance with the same content, as after a render that changed nothing.
+        myLastRenderedHtml = new String(myHtml.toCharArray());
+        myBody = RstPreviewStyles.split(myHtml).body();
+    }
+
+    @Benchmark
+    public boolean unchangedHtmlCheck() {
+        return myHtml.equals(myLastRenderedHtml);
+    }
+
+    @Benchmark
+    public RstPreviewStyles.Page splitPage() {
+        return RstPreviewStyles.split(myHtml);
+    }
+
+    @Benchmark
+    public Document parseForPatch() {
+        return Jsoup.parseBodyFragment(myBody);
+    }
+
+    @Benchmark
+    public String virtualPageShell() {
+        return RstVirtualPage.build(Jsoup.parseBodyFragment(myBody)).getShell();
+    }
+
+    @Benchmark
+    public String patchPayload() {
+        return RstJcefPreviewPanel.toJsString(myBody);
+    }
+}
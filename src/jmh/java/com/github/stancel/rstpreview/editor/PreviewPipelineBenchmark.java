@@ -0,0 +1,83 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rst2html process launch on its own and the whole path from document text to a parsed
+ * preview page, with {@link Rst2HtmlStub} in place of docutils. The IDE services around
+ * {@link RstPreviewProvider#toHtml} (settings, render cache, docutils worker) are bypassed, since
+ * they need a running application; the stages are the ones it calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreviewPipelineBenchmark {
+    private static final List<String> RENDER_ARGS = List.of("--no-generator", "--no-source-link", "--no-datestamp");
+
+    @Param({"1K", "16K", "256K", "1M", "5M"})
+    public String size;
+
+    private String myText;
+    private String myLastRenderedHtml = "";
+    private RstToolchainService.Toolchain myToolchain;
+
+    @Setup
+    public void setUp() throws Exception {
+        myText = RstCorpus.load(size);
+
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Path stubClasses = Paths.get(Rst2HtmlStub.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        List<String> launchCommand = List.of(java.toString(), "-XX:TieredStopAtLevel=1", "-Xshare:auto",
+                "-cp", stubClasses.toString(), Rst2HtmlStub.class.getName());
+        myToolchain = new RstToolchainService.Toolchain("rst2html-stub", launchCommand, List.of(), true, null, "stub");
+    }
+
+    @Benchmark
+    public ProcessOutput rst2htmlProcess() throws ExecutionException {
+        return render();
+    }
+
+    @Benchmark
+    public Document endToEnd(Blackhole blackhole) throws ExecutionException {
+        ProcessOutput output = render();
+        String errorSection = output.getStderr().isEmpty() ? "" : RstPreviewProvider.escapeHtml(output.getStderr());
+        String html = output.getStdout() + errorSection;
+        // The same text renders the same page every time; measure the comparison, then go on as if it changed.
+        blackhole.consume(html.equals(myLastRenderedHtml));
+        myLastRenderedHtml = html;
+        return Jsoup.parseBodyFragment(RstPreviewStyles.split(html).body());
+    }
+
+    private ProcessOutput render() throws ExecutionException {
+        ProcessOutput output = RstPreviewProvider.runRst2Html(myToolchain, myText, null, RENDER_ARGS,
+                new EmptyProgressIndicator(ModalityState.nonModal()), null);
+        if (output.getExitCode() != 0) throw new IllegalStateException("rst2html stub failed: " + output.getStderr());
+        return output;
+    }
+}
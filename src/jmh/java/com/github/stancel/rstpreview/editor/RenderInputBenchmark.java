@@ -0,0 +1,70 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done on the document text before rst2html runs: the render cache key, splitting into
+ * sections for incremental rendering, encoding it for stdin, and escaping rst2html's warnings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderInputBenchmark {
+    @Param({"1K", "16K", "256K", "1M", "5M"})
+    public String size;
+
+    private String myText;
+
+    @Setup
+    public void setUp() {
+        myText = RstCorpus.load(size);
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return RstRenderCache.computeKey(myText, "/home/user/docs", "/usr/bin/rst2html\0/usr/bin/python3\0docutils 0.21",
+                List.of("--no-generator", "--no-source-link", "--no-datestamp"));
+    }
+
+    @Benchmark
+    public List<int[]> splitIntoSections() {
+        List<int[]> bounds = new ArrayList<>();
+        RstIncrementalRenderer.splitIntoSections(myText, bounds);
+        return bounds;
+    }
+
+    @Benchmark
+    public long encodeStdin(Blackhole blackhole) throws IOException {
+        long[] written = new long[1];
+        RstProcessIO.encode(myText, (bytes, offset, length) -> {
+            blackhole.consume(bytes);
+            written[0] += length;
+        });
+        return written[0];
+    }
+
+    @Benchmark
+    public String escapeHtml() {
+        return RstPreviewProvider.escapeHtml(myText);
+    }
+}
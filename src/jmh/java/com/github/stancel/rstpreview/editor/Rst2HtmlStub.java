@@ -0,0 +1,63 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stands in for rst2html in benchmarks, so they measure the plugin and not docutils. It reads
+ * reStructuredText from stdin like rst2html does and writes a page of the same shape: a docutils
+ * head and one element per block of text, so its output grows with the input the same way.
+ */
+public final class Rst2HtmlStub {
+    private Rst2HtmlStub() {}
+
+    public static void main(String[] args) throws IOException {
+        String source = new String(System.in.readAllBytes(), StandardCharsets.UTF_8);
+        OutputStream out = System.out;
+        out.write(render(source).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    static @NotNull String render(@NotNull String source) {
+        StringBuilder html = new StringBuilder(source.length() * 2 + 512);
+        html.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n")
+            .append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n")
+            .append("<meta charset=\"utf-8\" />\n<title>Document</title>\n")
+            .append("<style type=\"text/css\">\n/* docutils stylesheet */\n</style>\n")
+            .append("</head>\n<body>\n<main id=\"document\">\n");
+
+        for (String block : source.split("\n\\s*\n")) {
+            if (block.isBlank()) continue;
+            String[] lines = block.strip().split("\n");
+            boolean heading = lines.length >= 2 && !lines[lines.length - 1].isEmpty() &&
+                              lines[lines.length - 1].chars().allMatch(c -> c == lines[lines.length - 1].charAt(0)) &&
+                              !Character.isLetterOrDigit(lines[lines.length - 1].charAt(0));
+            if (heading) {
+                html.append("<section>\n<h2>").append(escape(lines[lines.length - 2])).append("</h2>\n</section>\n");
+            } else if (block.startsWith("   ") || block.startsWith("..")) {
+                html.append("<pre class=\"literal-block\">").append(escape(block)).append("</pre>\n");
+            } else {
+                html.append("<p>").append(escape(block)).append("</p>\n");
+            }
+        }
+        return html.append("</main>\n</body>\n</html>\n").toString();
+    }
+
+    private static @NotNull String escape(@NotNull String text) {
+        StringBuilder result = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> result.append("&amp;");
+                case '<' -> result.append("&lt;");
+                case '>' -> result.append("&gt;");
+                default -> result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
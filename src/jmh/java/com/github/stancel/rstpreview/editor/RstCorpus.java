@@ -0,0 +1,60 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark documents from 1 KB to 5 MB. The two checked-in seeds are used as they are for the
+ * small sizes; larger documents repeat the reference chapter with numbered titles, so every size
+ * is the same text on every machine.
+ */
+final class RstCorpus {
+    /** Values for a JMH {@code @Param}. */
+    static final String[] SIZES = {"1K", "16K", "256K", "1M", "5M"};
+
+    private RstCorpus() {}
+
+    static @NotNull String load(@NotNull String size) {
+        int target = parseSize(size);
+        String small = readSeed("small.rst");
+        if (target <= small.length() + 512) return small;
+
+        String chapter = readSeed("reference.rst");
+        String title = chapter.substring(0, chapter.indexOf('\n'));
+        String body = chapter.substring(chapter.indexOf('\n', title.length() + 1) + 1);
+
+        StringBuilder document = new StringBuilder(target + chapter.length());
+        document.append("################\nGenerated Corpus\n################\n\n");
+        for (int i = 1; document.length() < target; i++) {
+            String numberedTitle = title + " " + i;
+            document.append(numberedTitle).append('\n')
+                    .append("=".repeat(numberedTitle.length())).append('\n')
+                    .append(body).append('\n');
+        }
+        return document.toString();
+    }
+
+    private static int parseSize(@NotNull String size) {
+        char unit = size.charAt(size.length() - 1);
+        int value = Integer.parseInt(size.substring(0, size.length() - 1));
+        return switch (unit) {
+            case 'K' -> value * 1024;
+            case 'M' -> value * 1024 * 1024;
+            default -> throw new IllegalArgumentException("Unknown corpus size: " + size);
+        };
+    }
+
+    private static @NotNull String readSeed(@NotNull String name) {
+        try (InputStream in = RstCorpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (in == null) throw new IllegalStateException("Missing corpus file " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Renders documents that only use common constructs with {@link RstJavaRenderer}, and declines
+ * the rest. Its pages differ from rst2html's, so it is only healthy while turned on in settings.
+ */
+public final class RstBuiltInRendererBackend implements RstRendererBackend {
+    public static final String ID = "built-in";
+
+    @Override
+    public @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @NotNull String getDisplayName() {
+        return "Built-in renderer";
+    }
+
+    @Override
+    public @NotNull Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.IN_PROCESS, Capability.PARTIAL);
+    }
+
+    @Override
+    public @Nullable String checkHealth() {
+        return RstPreviewSettings.getInstance().isUseBuiltInRenderer() ? null : "Turned off in settings";
+    }
+
+    /**
+     * Rendering takes less time than hashing the document for the cache.
+     */
+    @Override
+    public @Nullable String getOutputFingerprint(@NotNull Request request) {
+        return null;
+    }
+
+    @Override
+    public @Nullable Pair<String, String> render(@NotNull Request request) {
+        boolean docTitle = true;
+        for (String arg : request.getArgs()) {
+            if (!arg.equals(RstPreviewProvider.NO_DOC_TITLE)) return null;
+            docTitle = false;
+        }
+
+        RstRenderTrace.Span convert = request.getTrace().startStage(RstRenderDiagnostics.Stage.CONVERT);
+        String html = RstJavaRenderer.render(request.getText(), docTitle);
+        if (html == null) return null;
+        convert.finish();
+        return Pair.create(html, "");
+    }
+}
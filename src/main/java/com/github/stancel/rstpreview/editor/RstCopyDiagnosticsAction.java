@@ -0,0 +1,31 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.datatransfer.StringSelection;
+
+/**
+ * Copies the render diagnostics report to the clipboard, for pasting into bug reports.
+ */
+public final class RstCopyDiagnosticsAction extends DumbAwareAction {
+    static final String ID = "RstPreview.CopyDiagnostics";
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        String selectedPath = project != null ? RstPreviewDiagnosticsToolWindowFactory.getSelectedPath(project) : null;
+        String report = RstRenderDiagnostics.getInstance().buildReport(selectedPath);
+        CopyPasteManager.getInstance().setContents(new StringSelection(report));
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
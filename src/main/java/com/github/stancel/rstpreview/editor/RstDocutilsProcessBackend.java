@@ -0,0 +1,64 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Starts rst2html for every render. Slower than the worker, but works with any docutils install.
+ */
+public final class RstDocutilsProcessBackend implements RstRendererBackend {
+    private static final Logger LOG = Logger.getInstance(RstDocutilsProcessBackend.class);
+    public static final String ID = "process";
+
+    @Override
+    public @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @NotNull String getDisplayName() {
+        return "rst2html process";
+    }
+
+    @Override
+    public @NotNull Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.DOCUTILS_OUTPUT, Capability.RST2HTML_OPTIONS);
+    }
+
+    @Override
+    public @Nullable String checkHealth() {
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().getToolchain().getNow(null);
+        return toolchain == null || toolchain.executable() ? null : "rst2html not found at " + toolchain.command();
+    }
+
+    @Override
+    public @Nullable String getOutputFingerprint(@NotNull Request request) {
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().awaitToolchain(request.getIndicator());
+        return toolchain != null ? "docutils " + toolchain.fingerprint() : null;
+    }
+
+    @Override
+    public @Nullable Pair<String, String> render(@NotNull Request request) {
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().awaitToolchain(request.getIndicator());
+        if (toolchain == null) return null;
+        if (!toolchain.executable()) return Pair.create("", RstPreviewProvider.notFoundError(toolchain));
+
+        try {
+            ProcessOutput output = RstPreviewProvider.runRst2Html(toolchain, request.getText(), request.getWorkDir(),
+                    RstPreviewProvider.rst2htmlArgs(request.getArgs()), request.getIndicator(), request.getTrace());
+            request.processFinished(output);
+            return RstPreviewProvider.toResult("rst2html", output);
+        } catch (ExecutionException e) {
+            LOG.warn("Failed to run rst2html", e);
+            return Pair.create("", "<p><b>Error running rst2html:</b> " + RstPreviewProvider.escapeHtml(String.valueOf(e.getMessage())) + "</p>");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Renders in the resident docutils process of {@link RstDocutilsWorkerService}. Declines while the
+ * worker can't be started, so the next backend renders instead.
+ */
+public final class RstDocutilsWorkerBackend implements RstRendererBackend {
+    public static final String ID = "worker";
+
+    @Override
+    public @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @NotNull String getDisplayName() {
+        return "docutils worker";
+    }
+
+    @Override
+    public @NotNull Set<Capability> getCapabilities() {
+        return EnumSet.of(Capability.DOCUTILS_OUTPUT, Capability.PARTIAL, Capability.RST2HTML_OPTIONS);
+    }
+
+    @Override
+    public @Nullable String checkHealth() {
+        if (!RstPreviewSettings.getInstance().isUseDocutilsWorker()) return "Turned off in settings";
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().getToolchain().getNow(null);
+        if (toolchain == null) return null;
+        if (!toolchain.executable()) return "rst2html not found at " + toolchain.command();
+        return RstDocutilsWorkerService.getInstance().isUnavailable(toolchain) ? "The worker could not be started" : null;
+    }
+
+    /**
+     * Differs from {@link RstDocutilsProcessBackend}'s: only the worker marks source lines, so its
+     * pages must not be served for rst2html's or the other way round. The version goes up when the
+     * worker's output changes.
+     */
+    @Override
+    public @Nullable String getOutputFingerprint(@NotNull Request request) {
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().awaitToolchain(request.getIndicator());
+        return toolchain != null ? "docutils-worker/line-anchors v1 " + toolchain.fingerprint() : null;
+    }
+
+    @Override
+    public @Nullable Pair<String, String> render(@NotNull Request request) {
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().awaitToolchain(request.getIndicator());
+        if (toolchain == null || !toolchain.executable()) return null;
+
+        ProcessOutput output = RstDocutilsWorkerService.getInstance().render(toolchain, request.getText(), request.getWorkDir(),
+                RstPreviewProvider.rst2htmlArgs(request.getArgs()), RstPreviewProvider.TIMEOUT_MS,
+                request.getIndicator(), request.getTrace());
+        if (output == null) return null;
+        request.processFinished(output);
+        return RstPreviewProvider.toResult("rst2html", output);
+    }
+}
@@ -0,0 +1,389 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one resident Python process with docutils loaded, so previews don't pay interpreter
+ * startup and docutils import on every render. The worker is restarted when it crashes or when
+ * the resolved toolchain changes; callers fall back to a one-shot rst2html run whenever
+ * {@link #render} returns {@code null}.
+ */
+public final class RstDocutilsWorkerService implements Disposable {
+    private static final Logger LOG = Logger.getInstance(RstDocutilsWorkerService.class);
+    private static final String WORKER_RESOURCE = "/rstpreview/rst_worker.py";
+    private static final int START_TIMEOUT_MS = 10000;
+    private static final int MAX_CRASHES = 3;
+    private static final long CRASH_WINDOW_MS = 60000L;
+    private static final long CANCEL_POLL_MS = 20L;
+
+    private final Object myLock = new Object();
+    private @Nullable Worker myWorker;
+    private @NotNull String myFingerprint = "";
+    private boolean myUnavailable;
+    private final long[] myCrashTimes = new long[MAX_CRASHES];
+    private int myCrashCount;
+
+    public static RstDocutilsWorkerService getInstance() {
+        return ApplicationManager.getApplication().getService(RstDocutilsWorkerService.class);
+    }
+
+    /**
+     * Renders {@code text} in the resident worker started for {@code toolchain}.
+     * <p>
+     * Cancelling {@code indicator} returns a cancelled output right away. The worker itself is left
+     * running, since it is shared, and the stale reply is dropped when it arrives. The timeout
+     * covers writing the document as well as converting it.
+     *
+     * @return the worker's output, with exit code -1 if the worker died, or {@code null} if the
+     * worker can't be used for this command
+     */
+    public @Nullable ProcessOutput render(@NotNull RstToolchainService.Toolchain toolchain, @NotNull CharSequence text,
+                                          @Nullable String workDir, @NotNull List<String> args, int timeoutMs,
+                                          @NotNull ProgressIndicator indicator, @NotNull RstRenderTrace trace) {
+        RstRenderTrace.Span start = trace.startStage(RstRenderDiagnostics.Stage.PROCESS_START);
+        Worker worker = getOrStartWorker(toolchain);
+        if (worker == null) {
+            start.discard();
+            return null;
+        }
+        start.finish();
+
+        CompletableFuture<ProcessOutput> reply;
+        try {
+            reply = worker.submit(text, workDir, args, trace);
+            RstRenderDiagnostics.getInstance().workerRequest();
+        } catch (IOException e) {
+            LOG.debug("docutils worker rejected request", e);
+            onWorkerDied(worker);
+            return crashed(e);
+        }
+
+        RstRenderTrace.Span convert = trace.startStage(RstRenderDiagnostics.Stage.CONVERT);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (true) {
+                if (indicator.isCanceled()) {
+                    reply.cancel(false);
+                    ProcessOutput output = new ProcessOutput();
+                    output.setCancelled();
+                    return output;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // A stuck worker would block every later request, so replace it.
+                    onWorkerDied(worker);
+                    ProcessOutput output = new ProcessOutput();
+                    output.setTimeout();
+                    return output;
+                }
+                try {
+                    ProcessOutput output = reply.get(Math.min(remaining, CANCEL_POLL_MS), TimeUnit.MILLISECONDS);
+                    convert.finish();
+                    return output;
+                } catch (TimeoutException ignored) {
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOG.debug("docutils worker died while rendering", e.getCause());
+            onWorkerDied(worker);
+            return crashed(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * Reports a worker that died with the request, with no exit code of its own to go by.
+     */
+    private static @NotNull ProcessOutput crashed(@NotNull Throwable cause) {
+        return new ProcessOutput("", "docutils worker died: " + cause.getMessage(), -1, false, false);
+    }
+
+    /**
+     * @return whether the worker for {@code toolchain} failed to start or kept crashing
+     */
+    boolean isUnavailable(@NotNull RstToolchainService.Toolchain toolchain) {
+        synchronized (myLock) {
+            return myUnavailable && toolchain.fingerprint().equals(myFingerprint);
+        }
+    }
+
+    private @Nullable Worker getOrStartWorker(@NotNull RstToolchainService.Toolchain toolchain) {
+        synchronized (myLock) {
+            if (!toolchain.fingerprint().equals(myFingerprint)) {
+                stopWorker();
+                myFingerprint = toolchain.fingerprint();
+                myUnavailable = false;
+                myCrashCount = 0;
+            }
+            if (myWorker != null && myWorker.isAlive()) return myWorker;
+            if (myUnavailable) return null;
+
+            myWorker = null;
+            try {
+                myWorker = Worker.start(createCommandLine(toolchain));
+                RstRenderDiagnostics.getInstance().workerStarted();
+            } catch (Exception e) {
+                LOG.info("docutils worker unavailable for " + toolchain.command() + ", using one-shot rst2html: " + e.getMessage());
+                myUnavailable = true;
+            }
+            return myWorker;
+        }
+    }
+
+    private void onWorkerDied(@NotNull Worker worker) {
+        synchronized (myLock) {
+            worker.destroy();
+            if (myWorker != worker) return;
+            myWorker = null;
+
+            long now = System.currentTimeMillis();
+            myCrashTimes[myCrashCount % MAX_CRASHES] = now;
+            myCrashCount++;
+            if (myCrashCount >= MAX_CRASHES && now - myCrashTimes[myCrashCount % MAX_CRASHES] < CRASH_WINDOW_MS) {
+                LOG.warn("docutils worker keeps crashing, falling back to one-shot rst2html");
+                myUnavailable = true;
+            }
+        }
+    }
+
+    private void stopWorker() {
+        if (myWorker != null) {
+            myWorker.destroy();
+            myWorker = null;
+        }
+    }
+
+    private static @NotNull GeneralCommandLine createCommandLine(@NotNull RstToolchainService.Toolchain toolchain) throws IOException {
+        // The interpreter from the rst2html shebang, if there is one, since that is the one docutils is installed in.
+        if (toolchain.interpreter().isEmpty()) throw new IOException("no Python interpreter found");
+        GeneralCommandLine commandLine = new GeneralCommandLine(toolchain.interpreter());
+        commandLine.addParameter("-u");
+        commandLine.addParameter(extractWorkerScript().toString());
+        commandLine.setCharset(StandardCharsets.UTF_8);
+        commandLine.withEnvironment("PYTHONIOENCODING", "utf-8");
+        return commandLine;
+    }
+
+    private static @NotNull Path extractWorkerScript() throws IOException {
+        byte[] content;
+        try (InputStream in = RstDocutilsWorkerService.class.getResourceAsStream(WORKER_RESOURCE)) {
+            if (in == null) throw new IOException("missing " + WORKER_RESOURCE);
+            content = in.readAllBytes();
+        }
+
+        Path script = Paths.get(PathManager.getSystemPath(), "rst-preview", "rst_worker.py");
+        if (!Files.exists(script) || !Arrays.equals(Files.readAllBytes(script), content)) {
+            Files.createDirectories(script.getParent());
+            Files.write(script, content);
+        }
+        return script;
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (myLock) {
+            stopWorker();
+        }
+    }
+
+    /**
+     * One running worker process. Requests are written in order and replies are matched to them
+     * in the same order by a dedicated reader thread.
+     */
+    private static final class Worker {
+        private final @NotNull Process myProcess;
+        private final @NotNull OutputStream myStdin;
+        private final @NotNull InputStream myStdout;
+        private final Queue<CompletableFuture<ProcessOutput>> myPending = new ArrayDeque<>();
+        private final ReentrantLock myWriteLock = new ReentrantLock();
+        private volatile boolean myDead;
+
+        private Worker(@NotNull Process process) {
+            myProcess = process;
+            myStdin = process.getOutputStream();
+            myStdout = new BufferedInputStream(process.getInputStream());
+        }
+
+        static @NotNull Worker start(@NotNull GeneralCommandLine commandLine) throws Exception {
+            Worker worker = new Worker(commandLine.createProcess());
+            worker.drainStderr();
+
+            CompletableFuture<String> ready = new CompletableFuture<>();
+            Thread reader = new Thread(() -> worker.readReplies(ready), "RST Preview docutils worker");
+            reader.setDaemon(true);
+            reader.start();
+
+            try {
+                String version = ready.get(START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                LOG.info("Started docutils worker (docutils " + version + ")");
+                return worker;
+            } catch (Exception e) {
+                worker.destroy();
+                throw e;
+            }
+        }
+
+        boolean isAlive() {
+            return !myDead && myProcess.isAlive();
+        }
+
+        /**
+         * Queues a request. The document is written on a virtual thread, so a large document or a
+         * busy worker doesn't hold up the caller's wait for the reply, which can be cancelled or
+         * run out of time.
+         */
+        @NotNull CompletableFuture<ProcessOutput> submit(@NotNull CharSequence text, @Nullable String workDir,
+                                                         @NotNull List<String> args, @NotNull RstRenderTrace trace)
+                throws IOException {
+            if (!isAlive()) throw new IOException("docutils worker is not running");
+            CompletableFuture<ProcessOutput> reply = new CompletableFuture<>();
+            Thread.ofVirtual().name("RST Preview docutils worker stdin").start(() -> {
+                RstRenderTrace.Span transfer = trace.startStage(RstRenderDiagnostics.Stage.TRANSFER);
+                // Replies come back in the order requests were written, so requests are queued and
+                // written under one lock. A ReentrantLock doesn't pin the virtual thread while it writes.
+                myWriteLock.lock();
+                try {
+                    synchronized (this) {
+                        if (!isAlive()) throw new IOException("docutils worker is not running");
+                        // Nobody waits for a request cancelled before its turn, so it isn't sent.
+                        if (reply.isDone()) {
+                            transfer.discard();
+                            return;
+                        }
+                        myPending.add(reply);
+                    }
+                    write(text, workDir, args);
+                    transfer.finish();
+                } catch (IOException e) {
+                    // A request cut off halfway leaves the worker reading garbage.
+                    LOG.debug("Error writing to docutils worker", e);
+                    transfer.discard();
+                    destroy();
+                    failPending(e);
+                    reply.completeExceptionally(e);
+                } finally {
+                    myWriteLock.unlock();
+                }
+            });
+            return reply;
+        }
+
+        private void write(@NotNull CharSequence text, @Nullable String workDir, @NotNull List<String> args) throws IOException {
+            byte[] argBytes = String.join("\0", args).getBytes(StandardCharsets.UTF_8);
+            byte[] cwdBytes = workDir != null ? workDir.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            // The source is streamed after the header, so only its length is computed up front.
+            long sourceLength = RstProcessIO.utf8Length(text);
+            byte[] header = (argBytes.length + " " + cwdBytes.length + " " + sourceLength + "\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            myStdin.write(header);
+            myStdin.write(argBytes);
+            myStdin.write(cwdBytes);
+            RstProcessIO.encode(text, myStdin::write);
+            myStdin.flush();
+        }
+
+        private void readReplies(@NotNull CompletableFuture<String> ready) {
+            try {
+                String hello = readLine();
+                if (hello == null || !hello.startsWith("READY")) {
+                    throw new IOException("unexpected worker greeting: " + hello);
+                }
+                ready.complete(hello.substring("READY".length()).trim());
+
+                String header;
+                while ((header = readLine()) != null) {
+                    String[] parts = header.trim().split(" ");
+                    int status = Integer.parseInt(parts[0]);
+                    String html = RstProcessIO.readString(myStdout, Long.parseLong(parts[1]));
+                    String warnings = RstProcessIO.readString(myStdout, Long.parseLong(parts[2]));
+                    ProcessOutput output = new ProcessOutput(html, warnings, status, false, false);
+
+                    CompletableFuture<ProcessOutput> reply;
+                    synchronized (this) {
+                        reply = myPending.poll();
+                    }
+                    if (reply != null) reply.complete(output);
+                }
+                throw new IOException("docutils worker exited with code " + waitForExit());
+            } catch (Exception e) {
+                ready.completeExceptionally(e);
+                failPending(e);
+            }
+        }
+
+        private @Nullable String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = myStdout.read()) != -1) {
+                if (b == '\n') return line.toString(StandardCharsets.UTF_8);
+                line.write(b);
+            }
+            return null;
+        }
+
+        private int waitForExit() throws InterruptedException {
+            return myProcess.waitFor(1, TimeUnit.SECONDS) ? myProcess.exitValue() : -1;
+        }
+
+        private void failPending(@NotNull Exception e) {
+            synchronized (this) {
+                myDead = true;
+                CompletableFuture<ProcessOutput> reply;
+                while ((reply = myPending.poll()) != null) {
+                    reply.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void drainStderr() {
+            Thread drainer = new Thread(() -> {
+                try (BufferedReader stderr = new BufferedReader(
+                        new InputStreamReader(myProcess.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = stderr.readLine()) != null) {
+                        LOG.debug("docutils worker: " + line);
+                    }
+                } catch (IOException ignored) {}
+            }, "RST Preview docutils worker stderr");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        void destroy() {
+            myDead = true;
+            myProcess.destroy();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports the reStructuredText files of the selected directory, or of the whole project, to HTML
+ * files in a directory the user picks. See {@link RstHtmlExporter}.
+ */
+public final class RstExportHtmlAction extends DumbAwareAction {
+    static final String ID = "RstPreview.ExportHtml";
+    static final String NOTIFICATION_GROUP = "RST Preview";
+    private static final int MAX_FAILURES_SHOWN = 5;
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        VirtualFile source = project != null ? getSourceRoot(e, project) : null;
+        if (source == null) return;
+        VirtualFile output = FileChooser.chooseFile(FileChooserDescriptorFactory.createSingleFolderDescriptor()
+                .withTitle("Export HTML To")
+                .withDescription("The HTML files of " + source.getPresentableUrl() + " are written below this directory"),
+                project, null);
+        if (output == null) return;
+
+        new Task.Backgroundable(project, "Exporting reStructuredText to HTML", true) {
+            private final List<String> myFailures = new ArrayList<>();
+            private @Nullable RstHtmlExporter.Summary mySummary;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(false);
+                RstHtmlExporter exporter = new RstHtmlExporter(project, source, output.toNioPath(), false,
+                        Runtime.getRuntime().availableProcessors());
+                mySummary = exporter.export(indicator, new RstHtmlExporter.Listener() {
+                    @Override
+                    public void fileDone(@NotNull VirtualFile file, int done, int total) {
+                        indicator.setFraction((double) done / total);
+                        indicator.setText2(file.getPresentableUrl());
+                    }
+
+                    @Override
+                    public void fileFailed(@NotNull VirtualFile file, @NotNull String error) {
+                        synchronized (myFailures) {
+                            myFailures.add(file.getPresentableUrl());
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished() {
+                VfsUtil.markDirtyAndRefresh(true, true, true, output);
+            }
+
+            @Override
+            public void onSuccess() {
+                RstHtmlExporter.Summary summary = mySummary;
+                if (summary == null) return;
+                String content = StringUtil.escapeXmlEntities(summary.describe());
+                synchronized (myFailures) {
+                    for (String path : myFailures.subList(0, Math.min(myFailures.size(), MAX_FAILURES_SHOWN))) {
+                        content += "<br/>Failed: " + StringUtil.escapeXmlEntities(path);
+                    }
+                }
+                NotificationGroupManager.getInstance().getNotificationGroup(NOTIFICATION_GROUP)
+                        .createNotification("HTML export finished", content,
+                                summary.failed() > 0 ? NotificationType.WARNING : NotificationType.INFORMATION)
+                        .notify(project);
+            }
+        }.queue();
+    }
+
+    private static @Nullable VirtualFile getSourceRoot(@NotNull AnActionEvent e, @NotNull Project project) {
+        VirtualFile selected = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        return selected != null && selected.isDirectory() ? selected : ProjectUtil.guessProjectDir(project);
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ApplicationStarter;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports from the command line, without opening a project:
+ * {@code idea rst-export [--force] [--jobs N] <source directory> <output directory>}.
+ * Prints progress about once a second, then the summary. Exits with 0, 1 on bad arguments, or 2
+ * if some files failed.
+ */
+public final class RstExportHtmlStarter implements ApplicationStarter {
+    private static final String USAGE = "Usage: rst-export [--force] [--jobs N] <source directory> <output directory>";
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Override
+    public int getRequiredModality() {
+        return NOT_IN_EDT;
+    }
+
+    @Override
+    public void main(@NotNull List<String> args) {
+        boolean force = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String source = null;
+        String output = null;
+        // The first argument is the command name.
+        for (int i = 1; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.equals("--force")) {
+                force = true;
+            } else if (arg.equals("--jobs") && i + 1 < args.size()) {
+                jobs = StringUtil.parseInt(args.get(++i), 0);
+                if (jobs <= 0) exit("--jobs needs a positive number", 1);
+            } else if (source == null) {
+                source = arg;
+            } else if (output == null) {
+                output = arg;
+            } else {
+                exit("Unexpected argument: " + arg, 1);
+            }
+        }
+        if (source == null || output == null) {
+            exit(USAGE, 1);
+            return;
+        }
+
+        Path sourcePath = Path.of(source).toAbsolutePath().normalize();
+        VirtualFile sourceRoot = Files.isDirectory(sourcePath)
+                ? LocalFileSystem.getInstance().refreshAndFindFileByNioFile(sourcePath) : null;
+        if (sourceRoot == null) {
+            exit("Not a directory: " + sourcePath, 1);
+            return;
+        }
+
+        System.out.println("Exporting " + sourcePath + " to " + Path.of(output).toAbsolutePath() + " with " + jobs + " threads");
+        RstHtmlExporter exporter = new RstHtmlExporter(null, sourceRoot, Path.of(output), force, jobs);
+        RstHtmlExporter.Summary summary = exporter.export(new EmptyProgressIndicator(), new RstHtmlExporter.Listener() {
+            private final long myStartNanos = System.nanoTime();
+            private long myLastPrintNanos = myStartNanos;
+
+            @Override
+            public synchronized void fileDone(@NotNull VirtualFile file, int done, int total) {
+                long now = System.nanoTime();
+                if (now - myLastPrintNanos < PROGRESS_INTERVAL_NANOS && done < total) return;
+                myLastPrintNanos = now;
+                double seconds = (now - myStartNanos) / 1e9;
+                System.out.printf("%d/%d files, %.1f files/s%n", done, total, done / Math.max(seconds, 1e-3));
+            }
+
+            @Override
+            public void fileFailed(@NotNull VirtualFile file, @NotNull String error) {
+                System.err.println("Failed: " + file.getPath() + ": " + StringUtil.removeHtmlTags(error, true).strip());
+            }
+        });
+        System.out.println(summary.describe());
+        exit(null, summary.failed() > 0 ? 2 : 0);
+    }
+
+    private static void exit(@Nullable String message, int code) {
+        if (message != null) System.err.println(message);
+        System.exit(code);
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.restructuredtext.RestFileType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the reStructuredText files below a directory to HTML files in an output directory, with
+ * the same relative paths. Files go through {@link RstPreviewProvider} like previews do, so pages
+ * in {@link RstRenderCache} aren't rendered again, and are rendered in parallel on a work-stealing
+ * pool with one thread per core. Files whose output is newer than the source are skipped.
+ */
+final class RstHtmlExporter {
+    private static final Logger LOG = Logger.getInstance(RstHtmlExporter.class);
+
+    /**
+     * Hears about files as they are done; called from the export threads.
+     */
+    interface Listener {
+        void fileDone(@NotNull VirtualFile file, int done, int total);
+
+        /**
+         * @param error the renderer's error section, as HTML
+         */
+        default void fileFailed(@NotNull VirtualFile file, @NotNull String error) {
+        }
+    }
+
+    record Summary(int total, int exported, int skipped, int failed, long bytes, long elapsedNanos) {
+        @NotNull String describe() {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            return String.format("Exported %d, skipped %d and failed %d of %d files in %.1f s (%.1f files/s, %.1f MB/s)",
+                    exported, skipped, failed, total, seconds, exported / seconds, bytes / (1024.0 * 1024.0) / seconds);
+        }
+    }
+
+    private enum Outcome { EXPORTED, SKIPPED, FAILED, CANCELLED }
+
+    private final @Nullable Project myProject;
+    private final @NotNull VirtualFile mySourceRoot;
+    private final @NotNull Path myOutputRoot;
+    private final boolean myForce;
+    private final int myParallelism;
+
+    /**
+     * @param project  the project whose renderer choice and excluded directories apply, if any
+     * @param force    whether to export files whose output is up to date as well
+     */
+    RstHtmlExporter(@Nullable Project project, @NotNull VirtualFile sourceRoot, @NotNull Path outputRoot, boolean force,
+                    int parallelism) {
+        myProject = project;
+        mySourceRoot = sourceRoot;
+        myOutputRoot = outputRoot.toAbsolutePath().normalize();
+        myForce = force;
+        myParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Exports on the calling thread and the export pool; cancelling {@code indicator} stops after
+     * the files being rendered.
+     */
+    @NotNull Summary export(@NotNull ProgressIndicator indicator, @NotNull Listener listener) {
+        long startNanos = System.nanoTime();
+        List<VirtualFile> files = ReadAction.compute(this::collectFiles);
+        List<RstRendererBackend> backends = new ArrayList<>(RstRendererSelector.getInstance().getCandidates(myProject));
+        // A partial backend with its own output would leave the site with two kinds of pages.
+        backends.removeIf(backend -> backend.getCapabilities().contains(RstRendererBackend.Capability.PARTIAL) &&
+                                     !backend.getCapabilities().contains(RstRendererBackend.Capability.DOCUTILS_OUTPUT));
+
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger[] outcomes = new AtomicInteger[Outcome.values().length];
+        for (int i = 0; i < outcomes.length; i++) outcomes[i] = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        ForkJoinPool pool = new ForkJoinPool(myParallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+            for (VirtualFile file : files) {
+                tasks.add(pool.submit(() -> {
+                    Outcome outcome = exportFile(file, backends, indicator, bytes, listener);
+                    outcomes[outcome.ordinal()].incrementAndGet();
+                    if (outcome != Outcome.CANCELLED) listener.fileDone(file, done.incrementAndGet(), files.size());
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) task.join();
+        } finally {
+            pool.shutdownNow();
+        }
+        indicator.checkCanceled();
+        return new Summary(files.size(), outcomes[Outcome.EXPORTED.ordinal()].get(), outcomes[Outcome.SKIPPED.ordinal()].get(),
+                outcomes[Outcome.FAILED.ordinal()].get(), bytes.get(), System.nanoTime() - startNanos);
+    }
+
+    private @NotNull List<VirtualFile> collectFiles() {
+        ProjectFileIndex fileIndex = myProject != null ? ProjectFileIndex.getInstance(myProject) : null;
+        List<VirtualFile> files = new ArrayList<>();
+        VfsUtilCore.visitChildrenRecursively(mySourceRoot, new VirtualFileVisitor<Void>() {
+            @Override
+            public boolean visitFile(@NotNull VirtualFile file) {
+                if (file.isDirectory()) {
+                    // Skips .git and the like, excluded directories and earlier exports into the tree.
+                    return file.equals(mySourceRoot) ||
+                           !file.getName().startsWith(".") &&
+                           (fileIndex == null || !fileIndex.isExcluded(file)) &&
+                           !FileUtil.pathsEqual(file.getPath(), FileUtil.toSystemIndependentName(myOutputRoot.toString()));
+                }
+                if (file.getFileType() instanceof RestFileType) files.add(file);
+                return true;
+            }
+        });
+        return files;
+    }
+
+    private @NotNull Outcome exportFile(@NotNull VirtualFile file, @NotNull List<RstRendererBackend> backends,
+                                        @NotNull ProgressIndicator indicator, @NotNull AtomicLong bytes,
+                                        @NotNull Listener listener) {
+        if (indicator.isCanceled()) return Outcome.CANCELLED;
+        Path output = getOutputPath(file);
+        try {
+            CharSequence text = ReadAction.compute(() -> {
+                Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+                if (document != null && FileDocumentManager.getInstance().isDocumentUnsaved(document)) {
+                    return document.getImmutableCharSequence();
+                }
+                return null;
+            });
+            if (text == null) {
+                if (!myForce && Files.isRegularFile(output) &&
+                    Files.getLastModifiedTime(output).toMillis() >= file.getTimeStamp()) {
+                    return Outcome.SKIPPED;
+                }
+                text = LoadTextUtil.loadText(file);
+            }
+
+            RstRenderTrace trace = new RstRenderTrace(file, text.length());
+            Pair<String, String> result = RstPreviewProvider.toHtml(text, file, List.of(), indicator, trace, backends);
+            trace.abandoned(trace.getOutcome());
+            if (result == null) return Outcome.CANCELLED;
+            if (result.getFirst().isEmpty()) {
+                listener.fileFailed(file, result.getSecond());
+                return Outcome.FAILED;
+            }
+
+            String html = RstSourceLineIndex.strip(result.getFirst());
+            Files.createDirectories(output.getParent());
+            Files.writeString(output, html, StandardCharsets.UTF_8);
+            bytes.addAndGet(RstProcessIO.utf8Length(html));
+            return Outcome.EXPORTED;
+        } catch (ProcessCanceledException e) {
+            return Outcome.CANCELLED;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Exporting " + file.getPath() + " failed", e);
+            listener.fileFailed(file, StringUtil.escapeXmlEntities(String.valueOf(e.getMessage())));
+            return Outcome.FAILED;
+        }
+    }
+
+    private @NotNull Path getOutputPath(@NotNull VirtualFile file) {
+        String relativePath = VfsUtilCore.getRelativePath(file, mySourceRoot);
+        if (relativePath == null) relativePath = file.getName();
+        String extension = file.getExtension();
+        if (extension != null) relativePath = StringUtil.trimEnd(relativePath, "." + extension);
+        return myOutputRoot.resolve(relativePath + ".html");
+    }
+}
@@ -0,0 +1,435 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders large documents one section at a time. The document is split at the boundaries of its
+ * top-level sections (the sections below the document title, if there is one), and only sections
+ * touched by the edits since the previous render are sent to rst2html again, in parallel. The
+ * results are stitched back into the page of the first section.
+ * <p>
+ * Documents that use constructs whose meaning depends on the whole document, such as link targets,
+ * substitutions, footnotes or a table of contents, are always rendered in full.
+ */
+final class RstIncrementalRenderer {
+    private static final int MIN_INCREMENTAL_LENGTH = 16 * 1024;
+    private static final int UNKNOWN = -2;
+    private static final List<String> SECTION_ARGS = List.of(RstPreviewProvider.NO_DOC_TITLE);
+    private static final String FRAGMENTS_MARKER = "<!--rst-preview-fragments-->";
+    private static final String ADORNMENT_CHARS = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+
+    // Targets, substitutions, footnotes, citations, anonymous targets, whole-document directives
+    // and references, all of which resolve across section boundaries.
+    private static final Pattern GLOBAL_CONSTRUCT = Pattern.compile(
+            "^\\s*\\.\\.\\s+(?:_|\\||\\[|(?:contents|sectnum|section-numbering|include|header|footer|" +
+            "target-notes|title|default-role|role)::)|^__ |`_|\\]_|\\|\\w[^|\\n]*\\||\\w_(?=[\\s.,;:!?)]|$)",
+            Pattern.MULTILINE);
+    // The source location docutils puts in front of a warning, escaped in the error section.
+    private static final Pattern WARNING_LINE = Pattern.compile("&lt;stdin&gt;:(\\d+):");
+
+    /**
+     * @param sequence counts the snapshots of the document; the dirty range is relative to the
+     *                 snapshot before
+     */
+    record Snapshot(@NotNull CharSequence text, int dirtyStart, int dirtyEnd, long sequence) {}
+
+    /**
+     * @param errors the section's warnings, with line numbers counted from the section start
+     */
+    private record Section(int start, int end, @NotNull String fragment, @NotNull String errors) {}
+
+    /**
+     * The sections and page of an incremental render.
+     *
+     * @param sequence the snapshot it was rendered from
+     */
+    private record Rendered(long sequence, @NotNull List<Section> sections, int length, boolean titled,
+                            @NotNull String pagePrefix, @NotNull String pageSuffix) {}
+
+    private final @NotNull Project myProject;
+    private final @NotNull VirtualFile myFile;
+
+    // All guarded by this. Edited range since the last snapshot, in current document offsets.
+    private int myDirtyStart = UNKNOWN;
+    private int myDirtyEnd = UNKNOWN;
+    private long mySnapshotCount;
+    // Result of the newest incremental render that completed. A cancelled render may still finish
+    // its sections while the next one runs, so renders only reuse the result of the snapshot right
+    // before theirs, which the dirty range is relative to.
+    private @Nullable Rendered myRendered;
+
+    RstIncrementalRenderer(@NotNull Project project, @NotNull VirtualFile file) {
+        myProject = project;
+        myFile = file;
+    }
+
+    synchronized void documentChanged(@NotNull DocumentEvent e) {
+        if (myDirtyStart == UNKNOWN) return;
+
+        int start = e.getOffset();
+        int oldEnd = start + e.getOldLength();
+        int newEnd = start + e.getNewLength();
+        if (myDirtyEnd < 0) {
+            myDirtyStart = start;
+            myDirtyEnd = newEnd;
+            return;
+        }
+
+        int shift = e.getNewLength() - e.getOldLength();
+        int dirtyEnd = myDirtyEnd >= oldEnd ? myDirtyEnd + shift : myDirtyEnd > start ? newEnd : myDirtyEnd;
+        myDirtyStart = Math.min(myDirtyStart, start);
+        myDirtyEnd = Math.max(dirtyEnd, newEnd);
+    }
+
+    /**
+     * Takes the document text together with the range edited since the previous snapshot.
+     * Must be called in a read action, so no edit can slip in between the two. The text is the
+     * document's immutable character sequence, so this doesn't copy it.
+     */
+    synchronized @NotNull Snapshot snapshot(@NotNull Document document) {
+        Snapshot snapshot = new Snapshot(document.getImmutableCharSequence(), myDirtyStart, myDirtyEnd, ++mySnapshotCount);
+        myDirtyStart = -1;
+        myDirtyEnd = -1;
+        return snapshot;
+    }
+
+    /**
+     * Renders {@code snapshot} with an in-process backend if one takes it, or queues the
+     * conversions it needs on the {@link RstRenderScheduler}. Sections are only rendered
+     * separately if the first queued backend accepts the rst2html options for them.
+     *
+     * @return the rendered page, or {@code null} if {@code indicator} was cancelled
+     */
+    @NotNull CompletableFuture<Pair<String, String>> render(@NotNull Snapshot snapshot,
+                                                            @NotNull RstRenderScheduler.Priority priority,
+                                                            @NotNull ProgressIndicator indicator,
+                                                            @NotNull RstRenderTrace trace) {
+        CharSequence text = snapshot.text();
+        List<RstRendererBackend> backends = RstRendererSelector.getInstance().getCandidates(myProject);
+        // An in-process backend takes less time for the whole document than queueing one section,
+        // and sections never mix output from different backends.
+        List<RstRendererBackend> inProcess = ContainerUtil.filter(backends,
+                backend -> hasCapability(backend, RstRendererBackend.Capability.IN_PROCESS));
+        List<RstRendererBackend> queued = ContainerUtil.filter(backends,
+                backend -> !hasCapability(backend, RstRendererBackend.Capability.IN_PROCESS));
+        if (!inProcess.isEmpty()) {
+            Pair<String, String> result = RstPreviewProvider.tryRender(text, myFile, List.of(), indicator, trace, inProcess);
+            // An empty page means the in-process backends failed, so the queued ones get a go.
+            if (result != null && (!result.getFirst().isEmpty() || queued.isEmpty())) {
+                reset(snapshot.sequence());
+                return CompletableFuture.completedFuture(result);
+            }
+        }
+
+        if (!RstPreviewSettings.getInstance().isIncrementalRendering() || text.length() < MIN_INCREMENTAL_LENGTH ||
+            queued.isEmpty() || !hasCapability(queued.get(0), RstRendererBackend.Capability.RST2HTML_OPTIONS) ||
+            GLOBAL_CONSTRUCT.matcher(text).find()) {
+            return renderInFull(snapshot, queued, priority, indicator, trace);
+        }
+
+        List<int[]> bounds = new ArrayList<>();
+        Boolean titled = splitIntoSections(text, bounds);
+        if (titled == null) {
+            return renderInFull(snapshot, queued, priority, indicator, trace);
+        }
+
+        List<RstRendererBackend> sectionBackends = ContainerUtil.filter(queued,
+                backend -> hasCapability(backend, RstRendererBackend.Capability.RST2HTML_OPTIONS));
+        return renderSections(snapshot, bounds, titled, sectionBackends, priority, indicator, trace)
+                .whenComplete((result, error) -> {
+                    if (error != null) reset(snapshot.sequence());
+                })
+                .thenCompose(result -> result != null || indicator.isCanceled()
+                        ? CompletableFuture.completedFuture(result)
+                        : renderInFull(snapshot, queued, priority, indicator, trace));
+    }
+
+    private @NotNull CompletableFuture<Pair<String, String>> renderSections(@NotNull Snapshot snapshot,
+                                                                            @NotNull List<int[]> bounds, boolean titled,
+                                                                            @NotNull List<RstRendererBackend> backends,
+                                                                            @NotNull RstRenderScheduler.Priority priority,
+                                                                            @NotNull ProgressIndicator indicator,
+                                                                            @NotNull RstRenderTrace trace) {
+        CharSequence text = snapshot.text();
+        Rendered rendered;
+        synchronized (this) {
+            rendered = myRendered;
+        }
+        boolean reusable = rendered != null && rendered.sequence() == snapshot.sequence() - 1 &&
+                           rendered.titled() == titled && snapshot.dirtyStart() != UNKNOWN;
+        int delta = rendered != null ? text.length() - rendered.length() : 0;
+        Map<Integer, Section> previous = new HashMap<>();
+        if (reusable) {
+            for (Section section : rendered.sections()) previous.put(section.start(), section);
+        }
+
+        RstRenderScheduler scheduler = RstRenderScheduler.getInstance();
+        Map<Integer, CompletableFuture<Pair<String, String>>> pending = new LinkedHashMap<>();
+        Section[] sections = new Section[bounds.size()];
+        for (int i = 0; i < bounds.size(); i++) {
+            int start = bounds.get(i)[0];
+            int end = bounds.get(i)[1];
+
+            Section old = null;
+            if (reusable) {
+                boolean clean = snapshot.dirtyEnd() < 0;
+                if (clean || end <= snapshot.dirtyStart()) {
+                    old = previous.get(start);
+                } else if (start >= snapshot.dirtyEnd()) {
+                    old = previous.get(start - delta);
+                }
+            }
+            if (old != null && old.end() - old.start() == end - start) {
+                sections[i] = new Section(start, end, old.fragment(), old.errors());
+                continue;
+            }
+
+            CharSequence sectionText = text.subSequence(start, end);
+            List<String> args = i == 0 && titled ? List.of() : SECTION_ARGS;
+            RstRenderTrace.Span queue = trace.startStage(RstRenderDiagnostics.Stage.QUEUE);
+            pending.put(i, scheduler.submit(priority, indicator, () -> {
+                queue.finish();
+                return RstPreviewProvider.toHtml(sectionText, myFile, args, indicator, trace, backends);
+            }));
+        }
+
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    RstRenderTrace.Span postProcess = trace.startStage(RstRenderDiagnostics.Stage.POST_PROCESS);
+                    Pair<String, String> result = stitch(snapshot, bounds, titled, sections, reusable ? rendered : null, pending);
+                    if (result != null) postProcess.finish();
+                    return result;
+                });
+    }
+
+    /**
+     * Puts the page together from the sections rendered now and the ones reused from
+     * {@code previous}, on whichever thread finished the last section.
+     */
+    private @Nullable Pair<String, String> stitch(@NotNull Snapshot snapshot, @NotNull List<int[]> bounds, boolean titled,
+                                                  @NotNull Section[] sections, @Nullable Rendered previous,
+                                                  @NotNull Map<Integer, CompletableFuture<Pair<String, String>>> pending) {
+        CharSequence text = snapshot.text();
+        // The first section is only reused with the page it came with.
+        String pagePrefix = previous != null ? previous.pagePrefix() : null;
+        String pageSuffix = previous != null ? previous.pageSuffix() : null;
+        for (Map.Entry<Integer, CompletableFuture<Pair<String, String>>> entry : pending.entrySet()) {
+            int i = entry.getKey();
+            Pair<String, String> htmlAndError = entry.getValue().join();
+            if (htmlAndError == null || htmlAndError.getFirst().isEmpty()) {
+                // Cancelled, or a section failed and the full render should report the problem with
+                // correct line numbers. The dirty range is gone either way, so start from scratch;
+                // unchanged sections come back from the render cache.
+                reset(snapshot.sequence());
+                return null;
+            }
+
+            org.jsoup.nodes.Document page = Jsoup.parse(htmlAndError.getFirst());
+            Element container = findContainer(page);
+            sections[i] = new Section(bounds.get(i)[0], bounds.get(i)[1], container.html(), htmlAndError.getSecond());
+
+            if (i == 0) {
+                container.html(FRAGMENTS_MARKER);
+                String outer = page.outerHtml();
+                int marker = outer.indexOf(FRAGMENTS_MARKER);
+                pagePrefix = outer.substring(0, marker);
+                pageSuffix = outer.substring(marker + FRAGMENTS_MARKER.length());
+            }
+        }
+        if (pagePrefix == null || pageSuffix == null) {
+            reset(snapshot.sequence());
+            return null;
+        }
+
+        synchronized (this) {
+            if (myRendered == null || myRendered.sequence() < snapshot.sequence()) {
+                myRendered = new Rendered(snapshot.sequence(), List.of(sections), text.length(), titled, pagePrefix, pageSuffix);
+            }
+        }
+
+        StringBuilder html = new StringBuilder(text.length() * 2).append(pagePrefix);
+        StringBuilder errors = new StringBuilder();
+        // Sections are rendered on their own, so their source lines start over at 1.
+        int lines = 0;
+        int counted = 0;
+        for (Section section : sections) {
+            lines += countLines(text, counted, section.start());
+            counted = section.start();
+            RstSourceLineIndex.appendShifted(html, section.fragment(), lines);
+            html.append('\n');
+            appendShiftedWarnings(errors, section.errors(), lines);
+        }
+        html.append(pageSuffix);
+        return Pair.create(html.toString(), errors.toString());
+    }
+
+    /**
+     * Appends a section's error section with its {@code <stdin>:N:} locations moved down by the
+     * {@code lines} lines before the section.
+     */
+    private static void appendShiftedWarnings(@NotNull StringBuilder out, @NotNull String errors, int lines) {
+        if (lines == 0 || errors.isEmpty()) {
+            out.append(errors);
+            return;
+        }
+        Matcher matcher = WARNING_LINE.matcher(errors);
+        int copied = 0;
+        while (matcher.find()) {
+            out.append(errors, copied, matcher.start(1))
+               .append(RstSourceLineIndex.parseLine(errors, matcher.start(1), matcher.end(1)) + lines);
+            copied = matcher.end(1);
+        }
+        out.append(errors, copied, errors.length());
+    }
+
+    private @NotNull CompletableFuture<Pair<String, String>> renderInFull(@NotNull Snapshot snapshot,
+                                                                          @NotNull List<RstRendererBackend> backends,
+                                                                          @NotNull RstRenderScheduler.Priority priority,
+                                                                          @NotNull ProgressIndicator indicator,
+                                                                          @NotNull RstRenderTrace trace) {
+        reset(snapshot.sequence());
+        CharSequence text = snapshot.text();
+        RstRenderTrace.Span queue = trace.startStage(RstRenderDiagnostics.Stage.QUEUE);
+        return RstRenderScheduler.getInstance().submit(priority, indicator, () -> {
+            queue.finish();
+            return RstPreviewProvider.toHtml(text, myFile, List.of(), indicator, trace, backends);
+        });
+    }
+
+    /**
+     * Forgets the sections, unless a render of a newer snapshot has replaced them already.
+     */
+    private synchronized void reset(long sequence) {
+        if (myRendered != null && myRendered.sequence() <= sequence) myRendered = null;
+    }
+
+    private static @NotNull Element findContainer(@NotNull org.jsoup.nodes.Document page) {
+        Element container = page.selectFirst("body > div.document, body > main");
+        return container != null ? container : page.body();
+    }
+
+    private static boolean hasCapability(@NotNull RstRendererBackend backend, @NotNull RstRendererBackend.Capability capability) {
+        return backend.getCapabilities().contains(capability);
+    }
+
+    /**
+     * Collects the {@code [start, end)} offsets of the parts the document is rendered in: everything
+     * before the first split section, then one part per split section.
+     *
+     * @return whether the first part carries the document title, or {@code null} if the document
+     *         has no more than one section to split at
+     */
+    static @Nullable Boolean splitIntoSections(@NotNull CharSequence text, @NotNull List<int[]> bounds) {
+        List<int[]> titles = new ArrayList<>();   // {start offset, style}
+        List<Integer> styles = new ArrayList<>();
+        int textEnd = text.length();
+
+        int previousStart = -1;
+        int lineStart = 0;
+        while (lineStart < textEnd) {
+            int lineEnd = lineEnd(text, lineStart);
+            int nextStart = Math.min(lineEnd + 1, textEnd);
+            int nextEnd = nextStart < textEnd ? lineEnd(text, nextStart) : nextStart;
+
+            int underline = adornmentChar(text, nextStart, nextEnd);
+            if (underline != 0 && !isBlank(text, lineStart, lineEnd) && !Character.isWhitespace(text.charAt(lineStart)) &&
+                adornmentChar(text, lineStart, lineEnd) == 0 && nextEnd - nextStart >= trimmedLength(text, lineStart, lineEnd)) {
+                int titleStart = lineStart;
+                int style = underline;
+                if (previousStart >= 0 && adornmentChar(text, previousStart, lineStart - 1) == underline) {
+                    titleStart = previousStart;
+                    style = underline | 0x10000;
+                } else if (previousStart >= 0 && !isBlank(text, previousStart, lineStart - 1)) {
+                    style = 0;
+                }
+                if (style != 0) {
+                    if (!styles.contains(style)) styles.add(style);
+                    titles.add(new int[]{titleStart, style});
+                    previousStart = nextStart;
+                    lineStart = Math.min(nextEnd + 1, textEnd);
+                    continue;
+                }
+            }
+            previousStart = lineStart;
+            lineStart = nextStart;
+        }
+        if (styles.isEmpty()) return null;
+
+        int topStyle = styles.get(0);
+        boolean titled = titles.stream().filter(title -> title[1] == topStyle).count() == 1;
+        int splitStyle = topStyle;
+        if (titled) {
+            if (styles.size() < 2 || !isBlank(text, 0, titles.get(0)[0])) return null;
+            splitStyle = styles.get(1);
+        }
+
+        int partStart = 0;
+        for (int[] title : titles) {
+            if (title[1] != splitStyle) continue;
+            if (title[0] > partStart || bounds.isEmpty()) bounds.add(new int[]{partStart, title[0]});
+            partStart = title[0];
+        }
+        bounds.add(new int[]{partStart, textEnd});
+        return bounds.size() > 2 ? titled : null;
+    }
+
+    private static int countLines(@NotNull CharSequence text, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    private static int lineEnd(@NotNull CharSequence text, int from) {
+        int i = from;
+        while (i < text.length() && text.charAt(i) != '\n') i++;
+        return i;
+    }
+
+    /**
+     * @return the punctuation character the line consists of, or 0 if it isn't a section adornment
+     */
+    private static int adornmentChar(@NotNull CharSequence text, int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+        if (end - start < 2) return 0;
+        char c = text.charAt(start);
+        if (ADORNMENT_CHARS.indexOf(c) < 0) return 0;
+        for (int i = start + 1; i < end; i++) {
+            if (text.charAt(i) != c) return 0;
+        }
+        return c;
+    }
+
+    private static boolean isBlank(@NotNull CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int trimmedLength(@NotNull CharSequence text, int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+        return end - start;
+    }
+}
@@ -0,0 +1,1715 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Renders the common subset of reStructuredText in-process, in the html4css1 layout rst2html
+ * produces: sections, transitions, paragraphs, inline markup, bullet, enumerated and definition
+ * lists, literal blocks, block quotes, grid and simple tables, external hyperlink targets,
+ * references, images and admonitions.
+ * <p>
+ * Top-level blocks and section titles carry their source line in
+ * {@link RstSourceLineIndex#LINE_ATTRIBUTE}, like the pages of the docutils worker.
+ * <p>
+ * The text is read in place, through line offsets into the document's character sequence. The
+ * renderer gives up on the first construct it doesn't support, or that docutils would report a
+ * problem for, and {@link #render} returns {@code null}; the document then goes to docutils.
+ * <p>
+ * The page is not docutils' page: the markup differs in detail and {@link #STYLE} stands in for
+ * docutils' stylesheet, so a preview changes look when a document moves between this renderer and
+ * docutils. That is why it is only used when turned on in settings.
+ */
+final class RstJavaRenderer {
+    private static final Logger LOG = Logger.getInstance(RstJavaRenderer.class);
+
+    private static final String ADORNMENT_CHARS = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+    private static final String BULLETS = "*+-\u2022\u2023\u2043";
+    private static final String START_PRECEDERS = "-:/'\"<([{";
+    private static final String END_FOLLOWERS = "-.,:;!?\\/'\")]}>";
+    private static final String OPENERS = "'\"<([{";
+    private static final String CLOSERS = "'\">)]}";
+    private static final String URI_TRAILING_PUNCTUATION = ".,;:!?'\"";
+    private static final Set<String> ADMONITIONS = Set.of(
+            "attention", "caution", "danger", "error", "hint", "important", "note", "tip", "warning");
+    private static final Set<String> IMAGE_OPTIONS = Set.of("alt", "width", "height", "align", "target");
+    private static final Set<String> IMAGE_ALIGNMENTS = Set.of("left", "center", "right", "top", "middle", "bottom");
+    private static final Set<String> URI_SCHEMES = Set.of("http", "https", "ftp", "file", "mailto");
+    private static final char MARKER = '\u0000';
+    private static final String MARKER_STRING = String.valueOf(MARKER);
+    private static final String STYLE = """
+            div.admonition { margin: 1em 0; padding: 0.1em 1em; border-left: 4px solid #4a90d9; }
+            div.attention, div.caution, div.warning { border-left-color: #e0a030; }
+            div.danger, div.error { border-left-color: #d9534f; }
+            div.hint, div.tip { border-left-color: #4caf50; }
+            p.admonition-title { font-weight: bold; }
+            h1.title, h2.subtitle { text-align: center; }
+            img.align-left { float: left; margin-right: 1em; }
+            img.align-right { float: right; margin-left: 1em; }
+            img.align-center { display: block; margin-left: auto; margin-right: auto; }
+            table.docutils { border-collapse: collapse; margin: 1em 0; }
+            table.docutils th, table.docutils td { border: 1px solid #999; padding: 4px 8px; text-align: left; }
+            dl.docutils dd { margin-left: 2em; }
+            """;
+
+    // Which ASCII characters may come before an inline markup start-string and after an end-string.
+    private static final boolean[] ourAsciiStartBoundary = asciiTable(true);
+    private static final boolean[] ourAsciiEndBoundary = asciiTable(false);
+
+    private enum Kind { BULLET, ENUMERATED, GRID_TABLE, SIMPLE_TABLE, EXPLICIT, ADORNMENT, TEXT }
+
+    /**
+     * Lines of a body as ranges of the text, with the indentation of the body removed. Blank lines
+     * are empty ranges.
+     */
+    private record Block(int @NotNull [] starts, int @NotNull [] ends) {
+        int size() {
+            return starts.length;
+        }
+
+        boolean isBlank(int line) {
+            return starts[line] == ends[line];
+        }
+
+        @NotNull Block slice(int from, int to) {
+            return new Block(Arrays.copyOfRange(starts, from, to), Arrays.copyOfRange(ends, from, to));
+        }
+    }
+
+    private static final class Section {
+        final @Nullable Section parent;
+        final int level;
+        final @NotNull StringBuilder body = new StringBuilder();
+        final @NotNull List<Section> children = new ArrayList<>();
+        @NotNull String title = "";
+        @NotNull String id = "";
+        int line;
+
+        Section(@Nullable Section parent, int level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+
+    /**
+     * A reference to a name that is resolved once the whole document is read.
+     */
+    private record Reference(@NotNull String name, @NotNull String html) {}
+
+    private record Cell(int rowSpan, int colSpan, @NotNull String html) {}
+
+    private static final class UnsupportedException extends RuntimeException {
+        UnsupportedException(@NotNull String construct) {
+            super(construct, null, false, false);
+        }
+    }
+
+    private final @NotNull CharSequence myText;
+    // Title adornment styles in order of appearance, e.g. "=o" for overline and underline.
+    private final List<String> myStyles = new ArrayList<>();
+    private final Map<String, String> myTargets = new HashMap<>();
+    // Section ids by reference name; an empty id marks a name used by several sections.
+    private final Map<String, String> mySectionIds = new HashMap<>();
+    private final Set<String> myIds = new HashSet<>();
+    private final List<Reference> myReferences = new ArrayList<>();
+
+    private RstJavaRenderer(@NotNull CharSequence text) {
+        myText = text;
+    }
+
+    /**
+     * @param docTitle whether a lone top-level section becomes the document title, as without
+     *                 rst2html's {@code --no-doc-title}
+     * @return the page, or {@code null} if the document has to be rendered by docutils
+     */
+    static @Nullable String render(@NotNull CharSequence text, boolean docTitle) {
+        try {
+            return new RstJavaRenderer(text).renderPage(docTitle);
+        } catch (UnsupportedException e) {
+            LOG.debug("Leaving the document to docutils: " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            LOG.warn("Built-in renderer failed, falling back to docutils", e);
+            return null;
+        }
+    }
+
+    private @NotNull String renderPage(boolean docTitle) {
+        Section root = new Section(null, 0);
+        parseBody(splitLines(), root.body, root);
+
+        Section title = null;
+        Section subtitle = null;
+        Section top = root;
+        if (docTitle && root.body.isEmpty() && root.children.size() == 1) {
+            title = top = root.children.get(0);
+            if (title.body.isEmpty() && title.children.size() == 1) {
+                subtitle = top = title.children.get(0);
+            }
+        }
+
+        StringBuilder html = new StringBuilder(myText.length() + myText.length() / 2 + STYLE.length() + 256);
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\" />\n<title>");
+        if (title != null) appendEscaped(plainText(title.title), html);
+        html.append("</title>\n<style type=\"text/css\">\n").append(STYLE).append("</style>\n</head>\n<body>\n");
+        html.append("<div class=\"document\"");
+        if (title != null) html.append(" id=\"").append(title.id).append('"');
+        html.append(">\n");
+        if (title != null) {
+            html.append("<h1 class=\"title\"");
+            appendLine(title.line, html);
+            html.append('>').append(title.title).append("</h1>\n");
+        }
+        if (subtitle != null) {
+            html.append("<h2 class=\"subtitle\" id=\"").append(subtitle.id).append('"');
+            appendLine(subtitle.line, html);
+            html.append('>').append(subtitle.title).append("</h2>\n");
+        }
+        html.append(top.body);
+        for (Section section : top.children) {
+            appendSection(section, 1, html);
+        }
+        html.append("</div>\n</body>\n</html>\n");
+        return resolveReferences(html);
+    }
+
+    private static void appendSection(@NotNull Section section, int depth, @NotNull StringBuilder html) {
+        int heading = Math.min(depth, 6);
+        html.append("<div class=\"section\" id=\"").append(section.id).append("\">\n<h").append(heading);
+        appendLine(section.line, html);
+        html.append('>').append(section.title).append("</h").append(heading).append(">\n").append(section.body);
+        for (Section child : section.children) {
+            appendSection(child, depth + 1, html);
+        }
+        html.append("</div>\n");
+    }
+
+    private static void appendLine(int line, @NotNull StringBuilder html) {
+        html.append(' ').append(RstSourceLineIndex.LINE_ATTRIBUTE).append("=\"").append(line).append('"');
+    }
+
+    /**
+     * Marks the first element written to {@code out} since {@code mark} with a one-based source line.
+     */
+    private static void markLine(@NotNull StringBuilder out, int mark, int line) {
+        int tag = out.indexOf("<", mark);
+        if (tag < 0 || tag + 1 >= out.length() || !Character.isLetter(out.charAt(tag + 1))) return;
+        int nameEnd = tag + 1;
+        while (nameEnd < out.length() && Character.isLetterOrDigit(out.charAt(nameEnd))) nameEnd++;
+        out.insert(nameEnd, " " + RstSourceLineIndex.LINE_ATTRIBUTE + "=\"" + line + "\"");
+    }
+
+    private @NotNull Block splitLines() {
+        int length = myText.length();
+        int[] starts = new int[Math.max(16, length / 32)];
+        int[] ends = new int[starts.length];
+        int count = 0;
+        int lineStart = 0;
+        int contentEnd = 0;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? myText.charAt(i) : '\n';
+            if (c == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = lineStart;
+                ends[count] = contentEnd;
+                count++;
+                lineStart = contentEnd = i + 1;
+            } else if (c == '\t') {
+                throw new UnsupportedException("tab");
+            } else if (c != ' ' && c != '\r' && c != '\f' && c != '\u000B') {
+                contentEnd = i + 1;
+            }
+        }
+        return new Block(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+    }
+
+    // Block structure
+
+    /**
+     * @param root the document, if this is its top level; sections are only allowed there, and
+     *             block indices are line numbers
+     */
+    private void parseBody(@NotNull Block block, @NotNull StringBuilder out, @Nullable Section root) {
+        Section section = root;
+        int n = block.size();
+        int i = 0;
+        // The top-level element started last, which is marked with its line once it is written.
+        StringBuilder lineOut = null;
+        int lineMark = 0;
+        int line = 0;
+        while (i < n) {
+            if (block.isBlank(i)) {
+                i++;
+                continue;
+            }
+            if (root != null) {
+                if (lineOut != null) markLine(lineOut, lineMark, line);
+                lineOut = out;
+                lineMark = out.length();
+                line = i + 1;
+            }
+            if (indent(block, i) > 0) {
+                i = parseBlockQuote(block, i, out);
+                continue;
+            }
+
+            int start = block.starts[i];
+            int end = block.ends[i];
+            switch (kind(start, end)) {
+                case BULLET -> i = parseBulletList(block, i, out);
+                case ENUMERATED -> i = parseEnumeratedList(block, i, out);
+                case GRID_TABLE -> i = parseGridTable(block, i, out);
+                case SIMPLE_TABLE -> i = parseSimpleTable(block, i, out);
+                case EXPLICIT -> i = parseExplicitMarkup(block, i, out);
+                case ADORNMENT -> {
+                    boolean blankNext = i + 1 == n || block.isBlank(i + 1);
+                    boolean overline = !blankNext && i + 2 < n && isSameLine(block, i, i + 2);
+                    if (end - start < 4 && !overline) {
+                        i = parseParagraph(block, i, out);
+                    } else if (blankNext) {
+                        if (section == null || out.isEmpty() || skipBlank(block, i + 1) == n) {
+                            throw new UnsupportedException("transition");
+                        }
+                        out.append("<hr class=\"docutils\" />\n");
+                        i++;
+                    } else {
+                        if (section == null || !overline) throw new UnsupportedException("section title");
+                        int titleStart = skipSpaces(block.starts[i + 1], block.ends[i + 1]);
+                        if (block.ends[i + 1] - titleStart > end - start) throw new UnsupportedException("short overline");
+                        section = openSection(section, myText.charAt(start) + "o", titleStart, block.ends[i + 1]);
+                        section.line = i + 2;
+                        out = section.body;
+                        lineOut = null;
+                        i += 3;
+                    }
+                }
+                case TEXT -> {
+                    if (i + 1 < n && !block.isBlank(i + 1)) {
+                        int nextStart = block.starts[i + 1];
+                        int nextEnd = block.ends[i + 1];
+                        boolean indentedNext = indent(block, i + 1) > 0;
+                        if (!indentedNext && isAdornment(nextStart, nextEnd) &&
+                            (nextEnd - nextStart >= 4 || nextEnd - nextStart >= end - start)) {
+                            if (section == null) throw new UnsupportedException("section title in a nested block");
+                            if (nextEnd - nextStart < end - start) throw new UnsupportedException("short underline");
+                            section = openSection(section, myText.charAt(nextStart) + "u", start, end);
+                            section.line = i + 1;
+                            out = section.body;
+                            lineOut = null;
+                            i += 2;
+                            continue;
+                        }
+                        if (indentedNext) {
+                            i = parseDefinitionList(block, i, out);
+                            continue;
+                        }
+                    }
+                    i = parseParagraph(block, i, out);
+                }
+            }
+        }
+        if (lineOut != null) markLine(lineOut, lineMark, line);
+    }
+
+    /**
+     * Classifies a line that starts a body element, in the order docutils tries them.
+     */
+    private @NotNull Kind kind(int start, int end) {
+        char c = myText.charAt(start);
+        if (BULLETS.indexOf(c) >= 0 && isMarkerEnd(start + 1, end)) return Kind.BULLET;
+        if (parseEnumerator(start, end) != null) return Kind.ENUMERATED;
+        if (c == ':' && isFieldMarker(start, end)) throw new UnsupportedException("field list");
+        if (isOptionMarker(start, end)) throw new UnsupportedException("option list");
+        if (startsWith(start, end, ">>>") && isMarkerEnd(start + 3, end)) throw new UnsupportedException("doctest block");
+        if (c == '|' && isMarkerEnd(start + 1, end)) throw new UnsupportedException("line block");
+        if (c == '+' && isGridBorder(start, end, '-')) return Kind.GRID_TABLE;
+        if (c == '=' && isSimpleBorder(start, end)) return Kind.SIMPLE_TABLE;
+        if (startsWith(start, end, "..") && isMarkerEnd(start + 2, end)) return Kind.EXPLICIT;
+        if (startsWith(start, end, "__") && isMarkerEnd(start + 2, end)) throw new UnsupportedException("anonymous target");
+        if (isAdornment(start, end)) return Kind.ADORNMENT;
+        return Kind.TEXT;
+    }
+
+    private @NotNull Section openSection(@NotNull Section current, @NotNull String style, int titleStart, int titleEnd) {
+        int level = myStyles.indexOf(style) + 1;
+        if (level == 0) {
+            myStyles.add(style);
+            level = myStyles.size();
+        }
+        if (level > current.level + 1) throw new UnsupportedException("inconsistent title level");
+        while (current.level >= level) {
+            current = current.parent;
+            assert current != null;
+        }
+
+        Section section = new Section(current, level);
+        StringBuilder title = new StringBuilder();
+        renderInline(line(titleStart, titleEnd), title);
+        section.title = title.toString();
+        String text = plainText(section.title);
+        section.id = uniqueId(makeId(text));
+        mySectionIds.merge(normalizeName(text), section.id, (first, second) -> "");
+        current.children.add(section);
+        return section;
+    }
+
+    private int parseParagraph(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int n = block.size();
+        int end = i + 1;
+        while (end < n && !block.isBlank(end) && indent(block, end) == 0) end++;
+        if (end < n && !block.isBlank(end)) throw new UnsupportedException("unexpected indentation");
+
+        int last = end - 1;
+        int lastEnd = block.ends[last];
+        if (lastEnd - block.starts[last] < 2 || myText.charAt(lastEnd - 1) != ':' || myText.charAt(lastEnd - 2) != ':') {
+            appendParagraph(block, i, end, out);
+            return end;
+        }
+
+        // "Paragraph::", "Paragraph ::" and "::" all introduce a literal block.
+        Block paragraph = block.slice(i, end);
+        int textEnd = lastEnd - 2;
+        if (textEnd == block.starts[last]) {
+            paragraph = paragraph.slice(0, last - i);
+        } else if (myText.charAt(textEnd - 1) == ' ') {
+            paragraph.ends[last - i] = trimEnd(block.starts[last], textEnd);
+        } else {
+            paragraph.ends[last - i] = lastEnd - 1;
+        }
+        if (paragraph.size() > 0) appendParagraph(paragraph, 0, paragraph.size(), out);
+        return parseLiteralBlock(block, end, out);
+    }
+
+    private void appendParagraph(@NotNull Block block, int from, int to, @NotNull StringBuilder out) {
+        out.append("<p>");
+        renderInline(new JoinedLines(myText, block, from, to), out);
+        out.append("</p>\n");
+    }
+
+    private int parseLiteralBlock(@NotNull Block block, int from, @NotNull StringBuilder out) {
+        int start = skipBlank(block, from);
+        if (start == block.size() || indent(block, start) == 0) throw new UnsupportedException("literal block expected");
+        int end = indentedEnd(block, start);
+        Block literal = indented(block, start, end, -1);
+        out.append("<pre class=\"literal-block\">\n");
+        for (int k = 0; k < literal.size(); k++) {
+            for (int c = literal.starts[k]; c < literal.ends[k]; c++) {
+                appendEscaped(myText.charAt(c), out);
+            }
+            out.append('\n');
+        }
+        out.append("</pre>\n");
+        requireBlankAfter(block, end, "literal block");
+        return end;
+    }
+
+    private int parseBlockQuote(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int end = indentedEnd(block, i);
+        Block quote = indented(block, i, end, -1);
+        for (int k = 0; k < quote.size(); k++) {
+            if (quote.isBlank(k) || indent(quote, k) > 0 || k > 0 && !quote.isBlank(k - 1)) continue;
+            int start = quote.starts[k];
+            if (startsWith(start, quote.ends[k], "--") || myText.charAt(start) == '\u2014') {
+                throw new UnsupportedException("attribution");
+            }
+        }
+        out.append("<blockquote>\n");
+        parseBody(quote, out, null);
+        out.append("</blockquote>\n");
+        requireBlankAfter(block, end, "block quote");
+        return end;
+    }
+
+    private int parseBulletList(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        char bullet = myText.charAt(block.starts[i]);
+        List<String> items = new ArrayList<>();
+        int end = parseListItems(block, i, items, next -> myText.charAt(block.starts[next]) == bullet &&
+                                                          kind(block.starts[next], block.ends[next]) == Kind.BULLET,
+                                 line -> block.starts[line] + 1);
+        boolean simple = items.stream().allMatch(RstJavaRenderer::isSimple);
+        out.append(simple ? "<ul class=\"simple\">\n" : "<ul>\n");
+        appendItems(items, simple, out);
+        out.append("</ul>\n");
+        requireBlankAfter(block, end, "bullet list");
+        return end;
+    }
+
+    private int parseEnumeratedList(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int[] first = parseEnumerator(block.starts[i], block.ends[i]);
+        assert first != null;
+        int n = block.size();
+        if (i + 1 < n && !block.isBlank(i + 1) && indent(block, i + 1) == 0 &&
+            parseEnumerator(block.starts[i + 1], block.ends[i + 1]) == null) {
+            throw new UnsupportedException("enumerator followed by text");
+        }
+
+        int[] expected = {first[0]};
+        List<String> items = new ArrayList<>();
+        int end = parseListItems(block, i, items, next -> {
+            int[] enumerator = parseEnumerator(block.starts[next], block.ends[next]);
+            if (enumerator == null) return false;
+            int ordinal = expected[0] < 0 ? -1 : expected[0] + 1;
+            // "#" continues a numbered list, but numbers don't continue an auto-numbered one.
+            if (enumerator[1] != first[1] || enumerator[0] != ordinal && enumerator[0] >= 0) {
+                throw new UnsupportedException("enumerated list sequence");
+            }
+            expected[0] = ordinal;
+            return true;
+        }, line -> {
+            int[] enumerator = parseEnumerator(block.starts[line], block.ends[line]);
+            assert enumerator != null;
+            return enumerator[2];
+        });
+
+        boolean simple = items.stream().allMatch(RstJavaRenderer::isSimple);
+        out.append("<ol class=\"arabic").append(simple ? " simple\"" : "\"");
+        if (first[0] > 1) out.append(" start=\"").append(first[0]).append('"');
+        out.append(">\n");
+        appendItems(items, simple, out);
+        out.append("</ol>\n");
+        requireBlankAfter(block, end, "enumerated list");
+        return end;
+    }
+
+    private interface LineTest {
+        boolean test(int line);
+    }
+
+    private interface MarkerEnd {
+        int after(int line);
+    }
+
+    /**
+     * Reads list items from line {@code i} on while {@code continues} accepts the next item's line.
+     *
+     * @return the end of the list
+     */
+    private int parseListItems(@NotNull Block block, int i, @NotNull List<String> items, @NotNull LineTest continues,
+                               @NotNull MarkerEnd marker) {
+        int n = block.size();
+        while (true) {
+            int end = Math.max(i + 1, indentedEnd(block, i + 1));
+            Block item = indented(block, i, end, skipSpaces(marker.after(i), block.ends[i]));
+            StringBuilder body = new StringBuilder();
+            parseBody(item, body, null);
+            items.add(body.toString());
+
+            int next = skipBlank(block, end);
+            if (next < n && indent(block, next) == 0 && continues.test(next)) {
+                i = next;
+                continue;
+            }
+            return end;
+        }
+    }
+
+    private static void appendItems(@NotNull List<String> items, boolean simple, @NotNull StringBuilder out) {
+        for (String item : items) {
+            out.append("<li>").append(simple ? unwrapParagraph(item) : item).append("</li>\n");
+        }
+    }
+
+    /**
+     * @return {ordinal, or -1 for "#"; format, 0 for "1.", 1 for "1)" and 2 for "(1)"; where the
+     * item text starts} for an arabic or auto-numbered enumerator, or {@code null}
+     */
+    private int @Nullable [] parseEnumerator(int start, int end) {
+        int i = start;
+        boolean parenthesized = myText.charAt(i) == '(';
+        if (parenthesized) i++;
+        int valueStart = i;
+        int value = 0;
+        if (i < end && myText.charAt(i) == '#') {
+            value = -1;
+            i++;
+        } else {
+            while (i < end && i - valueStart < 9 && isAsciiDigit(myText.charAt(i))) {
+                value = value * 10 + myText.charAt(i++) - '0';
+            }
+            if (i == valueStart) {
+                // Alphabetic and roman enumerators are left to docutils.
+                while (i < end && isAsciiLetter(myText.charAt(i))) i++;
+                if (i > valueStart && i < end && (i - valueStart == 1 || isRoman(valueStart, i)) &&
+                    isEnumeratorSuffix(myText.charAt(i), parenthesized) && isMarkerEnd(i + 1, end)) {
+                    throw new UnsupportedException("alphabetic or roman enumerator");
+                }
+                return null;
+            }
+        }
+        if (i >= end || !isEnumeratorSuffix(myText.charAt(i), parenthesized) || !isMarkerEnd(i + 1, end)) return null;
+        int format = parenthesized ? 2 : myText.charAt(i) == '.' ? 0 : 1;
+        return new int[]{value, format, i + 1};
+    }
+
+    private static boolean isEnumeratorSuffix(char c, boolean parenthesized) {
+        return parenthesized ? c == ')' : c == '.' || c == ')';
+    }
+
+    private boolean isRoman(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if ("ivxlcdmIVXLCDM".indexOf(myText.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    private int parseDefinitionList(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int n = block.size();
+        out.append("<dl class=\"docutils\">\n");
+        while (true) {
+            int termStart = block.starts[i];
+            int termEnd = block.ends[i];
+            for (int c = termStart + 1; c + 1 < termEnd; c++) {
+                if (myText.charAt(c) == ':' && myText.charAt(c - 1) == ' ' && myText.charAt(c + 1) == ' ') {
+                    throw new UnsupportedException("classifier");
+                }
+            }
+            int end = indentedEnd(block, i + 1);
+            out.append("<dt>");
+            renderInline(line(termStart, termEnd), out);
+            out.append("</dt>\n<dd>");
+            parseBody(indented(block, i + 1, end, -1), out, null);
+            out.append("</dd>\n");
+
+            int next = skipBlank(block, end);
+            if (next + 1 < n && !block.isBlank(next + 1) && indent(block, next) == 0 && indent(block, next + 1) > 0 &&
+                kind(block.starts[next], block.ends[next]) == Kind.TEXT) {
+                i = next;
+                continue;
+            }
+            out.append("</dl>\n");
+            requireBlankAfter(block, end, "definition list");
+            return end;
+        }
+    }
+
+    // Explicit markup
+
+    private int parseExplicitMarkup(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int lineEnd = block.ends[i];
+        int textStart = skipSpaces(block.starts[i] + 2, lineEnd);
+        if (textStart == lineEnd && (i + 1 == block.size() || block.isBlank(i + 1))) {
+            // An empty comment doesn't take the indented block after it.
+            return i + 1;
+        }
+
+        int end = Math.max(i + 1, indentedEnd(block, i + 1));
+        char c = textStart < lineEnd ? myText.charAt(textStart) : ' ';
+        if (c == '_') {
+            parseTarget(block, i, textStart + 1, end);
+        } else if (c == '[') {
+            throw new UnsupportedException("footnote or citation");
+        } else if (c == '|') {
+            throw new UnsupportedException("substitution definition");
+        } else {
+            int nameEnd = textStart;
+            while (nameEnd < lineEnd && (Character.isLetterOrDigit(myText.charAt(nameEnd)) || "-_+.:".indexOf(myText.charAt(nameEnd)) >= 0 &&
+                                         !startsWith(nameEnd, lineEnd, "::"))) {
+                nameEnd++;
+            }
+            if (nameEnd > textStart && startsWith(nameEnd, lineEnd, "::") && isMarkerEnd(nameEnd + 2, lineEnd)) {
+                String name = myText.subSequence(textStart, nameEnd).toString().toLowerCase(Locale.ROOT);
+                Block body = indented(block, i, end, skipSpaces(nameEnd + 2, lineEnd));
+                parseDirective(name, body, out);
+            }
+            // Anything else is a comment.
+        }
+        requireBlankAfter(block, end, "explicit markup");
+        return end;
+    }
+
+    /**
+     * Registers an external hyperlink target, {@code .. _name: uri}.
+     */
+    private void parseTarget(@NotNull Block block, int i, int nameStart, int end) {
+        int lineEnd = block.ends[i];
+        String name;
+        int colon;
+        if (nameStart < lineEnd && myText.charAt(nameStart) == '`') {
+            colon = nameStart + 1;
+            while (colon + 1 < lineEnd && !(myText.charAt(colon) == '`' && myText.charAt(colon + 1) == ':')) colon++;
+            if (colon + 1 >= lineEnd) throw new UnsupportedException("hyperlink target");
+            name = myText.subSequence(nameStart + 1, colon).toString();
+            colon++;
+        } else {
+            colon = nameStart;
+            while (colon < lineEnd && !(myText.charAt(colon) == ':' && isMarkerEnd(colon + 1, lineEnd))) colon++;
+            if (colon == lineEnd) throw new UnsupportedException("hyperlink target");
+            name = myText.subSequence(nameStart, colon).toString();
+        }
+        if (name.isEmpty() || name.equals("_") || name.indexOf('\\') >= 0) throw new UnsupportedException("anonymous or escaped target");
+
+        StringBuilder uri = new StringBuilder();
+        appendNonWhitespace(colon + 1, lineEnd, uri);
+        for (int k = i + 1; k < end; k++) {
+            appendNonWhitespace(block.starts[k], block.ends[k], uri);
+        }
+        if (uri.isEmpty()) throw new UnsupportedException("internal target");
+        if (uri.charAt(uri.length() - 1) == '_' || uri.indexOf("\\") >= 0) throw new UnsupportedException("indirect target");
+
+        String previous = myTargets.put(normalizeName(name), uri.toString());
+        if (previous != null && !previous.contentEquals(uri)) throw new UnsupportedException("duplicate target");
+    }
+
+    /**
+     * @param body the argument text on the directive line, followed by the directive block
+     */
+    private void parseDirective(@NotNull String name, @NotNull Block body, @NotNull StringBuilder out) {
+        if (name.equals("image")) {
+            parseImage(body, out);
+        } else if (ADMONITIONS.contains(name)) {
+            int first = skipBlank(body, 0);
+            if (first == body.size()) throw new UnsupportedException("empty admonition");
+            if (isOption(body, first)) throw new UnsupportedException("admonition options");
+            out.append("<div class=\"admonition ").append(name).append("\">\n<p class=\"admonition-title\">")
+               .append(Character.toUpperCase(name.charAt(0))).append(name, 1, name.length()).append("</p>\n");
+            parseBody(body, out, null);
+            out.append("</div>\n");
+        } else if (name.equals("admonition")) {
+            int first = body.isBlank(0) ? 1 : 0;
+            int titleEnd = first;
+            while (titleEnd < body.size() && !body.isBlank(titleEnd) && !isOption(body, titleEnd)) titleEnd++;
+            if (titleEnd == first) throw new UnsupportedException("admonition without a title");
+            if (titleEnd < body.size() && !body.isBlank(titleEnd)) throw new UnsupportedException("admonition options");
+            Block content = body.slice(titleEnd, body.size());
+            if (skipBlank(content, 0) == content.size()) throw new UnsupportedException("empty admonition");
+
+            StringBuilder title = new StringBuilder();
+            renderInline(new JoinedLines(myText, body, first, titleEnd), title);
+            out.append("<div class=\"admonition admonition-").append(makeId(plainText(title.toString())))
+               .append("\">\n<p class=\"admonition-title\">").append(title).append("</p>\n");
+            parseBody(content, out, null);
+            out.append("</div>\n");
+        } else {
+            throw new UnsupportedException("directive " + name);
+        }
+    }
+
+    private void parseImage(@NotNull Block body, @NotNull StringBuilder out) {
+        int k = body.isBlank(0) ? 1 : 0;
+        StringBuilder uri = new StringBuilder();
+        while (k < body.size() && !body.isBlank(k) && !isOption(body, k)) {
+            appendNonWhitespace(body.starts[k], body.ends[k], uri);
+            k++;
+        }
+        if (uri.isEmpty()) throw new UnsupportedException("image without a URI");
+
+        Map<String, String> options = new LinkedHashMap<>();
+        for (; k < body.size() && !body.isBlank(k); k++) {
+            if (!isOption(body, k)) throw new UnsupportedException("image options");
+            int start = body.starts[k];
+            int colon = start + 1;
+            while (myText.charAt(colon) != ':') colon++;
+            String option = myText.subSequence(start + 1, colon).toString();
+            if (!IMAGE_OPTIONS.contains(option)) throw new UnsupportedException("image option " + option);
+            options.put(option, myText.subSequence(skipSpaces(colon + 1, body.ends[k]), body.ends[k]).toString());
+        }
+        if (skipBlank(body, k) < body.size()) throw new UnsupportedException("image content");
+
+        String align = options.get("align");
+        String target = options.get("target");
+        if (align != null && !IMAGE_ALIGNMENTS.contains(align)) throw new UnsupportedException("image alignment");
+        if (target != null && (target.isEmpty() || target.endsWith("_"))) throw new UnsupportedException("image reference");
+
+        if (target != null) {
+            out.append("<a class=\"reference external image-reference\" href=\"");
+            appendEscaped(target, out);
+            out.append("\">");
+        }
+        out.append("<img alt=\"");
+        appendEscaped(options.getOrDefault("alt", uri.toString()), out);
+        out.append('"');
+        if (align != null) out.append(" class=\"align-").append(align).append('"');
+        out.append(" src=\"");
+        appendEscaped(uri, out);
+        out.append('"');
+        String width = options.get("width");
+        String height = options.get("height");
+        if (width != null || height != null) {
+            out.append(" style=\"");
+            if (width != null) appendEscaped("width: " + cssLength(width) + ";", out);
+            if (height != null) appendEscaped((width != null ? " " : "") + "height: " + cssLength(height) + ";", out);
+            out.append('"');
+        }
+        out.append(" />");
+        if (target != null) out.append("</a>");
+        out.append('\n');
+    }
+
+    private static @NotNull String cssLength(@NotNull String value) {
+        boolean unitless = !value.isEmpty() && value.chars().allMatch(c -> isAsciiDigit((char) c) || c == '.');
+        return unitless ? value + "px" : value;
+    }
+
+    // Tables
+
+    private int parseGridTable(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int n = block.size();
+        int end = i;
+        while (end < n && !block.isBlank(end) && indent(block, end) == 0) end++;
+        int width = block.ends[i] - block.starts[i];
+        int headSeparator = -1;
+        for (int k = i; k < end; k++) {
+            int start = block.starts[k];
+            if (block.ends[k] - start != width) throw new UnsupportedException("malformed grid table");
+            char first = myText.charAt(start);
+            char last = myText.charAt(start + width - 1);
+            if (first != '+' && first != '|' || last != '+' && last != '|') throw new UnsupportedException("malformed grid table");
+            if (k > i && isGridBorder(start, start + width, '=')) {
+                if (headSeparator >= 0) throw new UnsupportedException("grid table with two header separators");
+                headSeparator = k - i;
+            }
+        }
+        if (end - i < 3 || !isGridBorder(block.starts[end - 1], block.ends[end - 1], '-')) {
+            throw new UnsupportedException("malformed grid table");
+        }
+
+        new GridTable(block, i, end, width, headSeparator).appendTo(out);
+        requireBlankAfter(block, end, "grid table");
+        return end;
+    }
+
+    /**
+     * Finds the cells of a grid table the way docutils' {@code GridTableParser} does: from each
+     * known top left corner, scan right, down, left and up along the cell border.
+     */
+    private final class GridTable {
+        private final @NotNull Block myBlock;
+        private final int myTop;
+        private final int myBottom;
+        private final int myRight;
+        private final int myHeadSeparator;
+        private final int[] myDone;
+        private final List<int[]> myCells = new ArrayList<>();
+
+        GridTable(@NotNull Block block, int top, int end, int width, int headSeparator) {
+            myBlock = block;
+            myTop = top;
+            myBottom = end - top - 1;
+            myRight = width - 1;
+            myHeadSeparator = headSeparator;
+            myDone = new int[width];
+            Arrays.fill(myDone, -1);
+        }
+
+        private char at(int row, int column) {
+            char c = myText.charAt(myBlock.starts[myTop + row] + column);
+            return c == '=' && row == myHeadSeparator ? '-' : c;
+        }
+
+        void appendTo(@NotNull StringBuilder out) {
+            TreeSet<Long> corners = new TreeSet<>();
+            corners.add(0L);
+            while (!corners.isEmpty()) {
+                long corner = corners.pollFirst();
+                int top = (int) (corner >>> 32);
+                int left = (int) corner;
+                if (top == myBottom || left == myRight || top <= myDone[left]) continue;
+                int[] cell = scanRight(top, left);
+                if (cell == null) continue;
+                for (int column = left; column < cell[3]; column++) {
+                    if (myDone[column] != top - 1) throw new UnsupportedException("malformed grid table");
+                    myDone[column] = cell[2] - 1;
+                }
+                myCells.add(cell);
+                corners.add((long) top << 32 | cell[3]);
+                corners.add((long) cell[2] << 32 | left);
+            }
+            for (int column = 0; column < myRight; column++) {
+                if (myDone[column] != myBottom - 1) throw new UnsupportedException("malformed grid table");
+            }
+
+            TreeSet<Integer> rowSeparators = new TreeSet<>();
+            TreeSet<Integer> columnSeparators = new TreeSet<>();
+            for (int[] cell : myCells) {
+                rowSeparators.add(cell[0]);
+                rowSeparators.add(cell[2]);
+                columnSeparators.add(cell[1]);
+                columnSeparators.add(cell[3]);
+            }
+            List<Integer> rows = new ArrayList<>(rowSeparators);
+            List<Integer> columns = new ArrayList<>(columnSeparators);
+            TreeMap<Integer, List<Cell>> byRow = new TreeMap<>();
+            myCells.sort(Comparator.<int[]>comparingInt(cell -> cell[0]).thenComparingInt(cell -> cell[1]));
+            for (int[] cell : myCells) {
+                int row = rows.indexOf(cell[0]);
+                byRow.computeIfAbsent(row, ignored -> new ArrayList<>()).add(new Cell(
+                        rows.indexOf(cell[2]) - row, columns.indexOf(cell[3]) - columns.indexOf(cell[1]),
+                        renderCell(cell)));
+            }
+
+            int[] widths = new int[columns.size() - 1];
+            for (int c = 0; c < widths.length; c++) {
+                widths[c] = columns.get(c + 1) - columns.get(c) - 1;
+            }
+            List<List<Cell>> all = new ArrayList<>();
+            for (int row = 0; row < rows.size() - 1; row++) {
+                all.add(byRow.getOrDefault(row, List.of()));
+            }
+            int headRows = myHeadSeparator < 0 ? 0 : rows.indexOf(myHeadSeparator);
+            if (headRows < 0) throw new UnsupportedException("malformed grid table");
+            appendTable(widths, all.subList(0, headRows), all.subList(headRows, all.size()), out);
+        }
+
+        /**
+         * @return {top, left, bottom, right} of the cell with this top left corner, or {@code null}
+         */
+        private int @Nullable [] scanRight(int top, int left) {
+            for (int i = left + 1; i <= myRight; i++) {
+                char c = at(top, i);
+                if (c == '+') {
+                    int bottom = scanDown(top, left, i);
+                    if (bottom >= 0) return new int[]{top, left, bottom, i};
+                } else if (c != '-') {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private int scanDown(int top, int left, int right) {
+            for (int i = top + 1; i <= myBottom; i++) {
+                char c = at(i, right);
+                if (c == '+') {
+                    if (scanLeft(top, left, i, right)) return i;
+                } else if (c != '|') {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean scanLeft(int top, int left, int bottom, int right) {
+            for (int i = right - 1; i > left; i--) {
+                char c = at(bottom, i);
+                if (c != '+' && c != '-') return false;
+            }
+            if (at(bottom, left) != '+') return false;
+            for (int i = bottom - 1; i > top; i--) {
+                char c = at(i, left);
+                if (c != '+' && c != '|') return false;
+            }
+            return true;
+        }
+
+        private @NotNull String renderCell(int @NotNull [] cell) {
+            int lines = cell[2] - cell[0] - 1;
+            int[] starts = new int[lines];
+            int[] ends = new int[lines];
+            for (int k = 0; k < lines; k++) {
+                int lineStart = myBlock.starts[myTop + cell[0] + 1 + k];
+                int start = lineStart + cell[1] + 1;
+                int end = trimEnd(start, lineStart + cell[3]);
+                starts[k] = end == start ? end : start;
+                ends[k] = end;
+            }
+            return renderCellBody(new Block(starts, ends));
+        }
+    }
+
+    private int parseSimpleTable(@NotNull Block block, int i, @NotNull StringBuilder out) {
+        int n = block.size();
+        int borderStart = block.starts[i];
+        int borderEnd = block.ends[i];
+        List<int[]> columns = new ArrayList<>();
+        for (int c = borderStart; c < borderEnd; ) {
+            if (myText.charAt(c) != '=') {
+                c++;
+                continue;
+            }
+            int runStart = c;
+            while (c < borderEnd && myText.charAt(c) == '=') c++;
+            columns.add(new int[]{runStart - borderStart, c - borderStart});
+        }
+
+        List<List<Integer>> rows = new ArrayList<>();
+        int headRows = -1;
+        int k = i + 1;
+        while (true) {
+            if (k == n || block.isBlank(k)) throw new UnsupportedException("simple table with blank lines");
+            int start = block.starts[k];
+            int end = block.ends[k];
+            if (isSameLine(block, k, i)) {
+                if (k + 1 == n || block.isBlank(k + 1)) break;
+                if (headRows >= 0 || rows.isEmpty()) throw new UnsupportedException("malformed simple table");
+                headRows = rows.size();
+                k++;
+                continue;
+            }
+            if (isColumnSpanUnderline(start, end) || isSimpleBorder(block.starts[k], end)) {
+                throw new UnsupportedException("simple table column span");
+            }
+            for (int c = 0; c + 1 < columns.size(); c++) {
+                for (int gap = start + columns.get(c)[1]; gap < Math.min(end, start + columns.get(c + 1)[0]); gap++) {
+                    if (myText.charAt(gap) != ' ') throw new UnsupportedException("text in a simple table column gap");
+                }
+            }
+            int firstEnd = Math.min(end, start + columns.get(0)[1]);
+            if (rows.isEmpty() || trimEnd(start, firstEnd) > skipSpaces(start, firstEnd)) rows.add(new ArrayList<>());
+            rows.get(rows.size() - 1).add(k);
+            k++;
+        }
+        int end = k + 1;
+        if (headRows == rows.size()) throw new UnsupportedException("simple table without a body");
+
+        List<List<Cell>> cells = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            List<Cell> rowCells = new ArrayList<>();
+            for (int c = 0; c < columns.size(); c++) {
+                int[] starts = new int[row.size()];
+                int[] ends = new int[row.size()];
+                for (int r = 0; r < row.size(); r++) {
+                    int line = row.get(r);
+                    int lineStart = block.starts[line];
+                    int cellStart = Math.min(lineStart + columns.get(c)[0], block.ends[line]);
+                    int cellEnd = c == columns.size() - 1 ? block.ends[line] : Math.min(lineStart + columns.get(c)[1], block.ends[line]);
+                    cellEnd = trimEnd(cellStart, cellEnd);
+                    starts[r] = cellEnd == cellStart ? cellEnd : cellStart;
+                    ends[r] = cellEnd;
+                }
+                rowCells.add(new Cell(1, 1, renderCellBody(new Block(starts, ends))));
+            }
+            cells.add(rowCells);
+        }
+
+        int[] widths = columns.stream().mapToInt(column -> column[1] - column[0]).toArray();
+        int head = Math.max(0, headRows);
+        appendTable(widths, cells.subList(0, head), cells.subList(head, cells.size()), out);
+        requireBlankAfter(block, end, "simple table");
+        return end;
+    }
+
+    private boolean isColumnSpanUnderline(int start, int end) {
+        for (int c = start; c < end; c++) {
+            char ch = myText.charAt(c);
+            if (ch != '-' && ch != ' ') return false;
+        }
+        return true;
+    }
+
+    private @NotNull String renderCellBody(@NotNull Block cell) {
+        int margin = Integer.MAX_VALUE;
+        for (int k = 0; k < cell.size(); k++) {
+            if (!cell.isBlank(k)) margin = Math.min(margin, indent(cell, k));
+        }
+        if (margin == Integer.MAX_VALUE) return "&nbsp;";
+        for (int k = 0; k < cell.size(); k++) {
+            if (!cell.isBlank(k)) cell.starts[k] += margin;
+        }
+        StringBuilder html = new StringBuilder();
+        parseBody(cell, html, null);
+        return isSimple(html) ? unwrapParagraph(html) : html.toString();
+    }
+
+    private static void appendTable(int @NotNull [] widths, @NotNull List<List<Cell>> head, @NotNull List<List<Cell>> body,
+                                    @NotNull StringBuilder out) {
+        int total = Math.max(1, Arrays.stream(widths).sum());
+        out.append("<table border=\"1\" class=\"docutils\">\n<colgroup>\n");
+        for (int width : widths) {
+            out.append("<col width=\"").append((width * 100 + total / 2) / total).append("%\" />\n");
+        }
+        out.append("</colgroup>\n");
+        if (!head.isEmpty()) {
+            out.append("<thead valign=\"bottom\">\n");
+            appendRows(head, "th class=\"head\"", "th", out);
+            out.append("</thead>\n");
+        }
+        out.append("<tbody valign=\"top\">\n");
+        appendRows(body, "td", "td", out);
+        out.append("</tbody>\n</table>\n");
+    }
+
+    private static void appendRows(@NotNull List<List<Cell>> rows, @NotNull String open, @NotNull String close,
+                                   @NotNull StringBuilder out) {
+        for (List<Cell> row : rows) {
+            out.append("<tr>");
+            for (Cell cell : row) {
+                out.append('<').append(open);
+                if (cell.colSpan() > 1) out.append(" colspan=\"").append(cell.colSpan()).append('"');
+                if (cell.rowSpan() > 1) out.append(" rowspan=\"").append(cell.rowSpan()).append('"');
+                out.append('>').append(cell.html()).append("</").append(close).append(">\n");
+            }
+            out.append("</tr>\n");
+        }
+    }
+
+    // Inline markup
+
+    private void renderInline(@NotNull CharSequence s, @NotNull StringBuilder out) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < n && !Character.isWhitespace(s.charAt(i + 1))) appendEscaped(s.charAt(i + 1), out);
+                i += 2;
+                continue;
+            }
+            if (isStartBoundary(s, i)) {
+                int next = "*`|[:_".indexOf(c) >= 0 ? inlineMarkup(s, i, out)
+                           : Character.isLetterOrDigit(c) ? word(s, i, out) : -1;
+                if (next >= 0) {
+                    i = next;
+                    continue;
+                }
+            }
+            appendEscaped(c, out);
+            i++;
+        }
+    }
+
+    /**
+     * @return the end of the markup starting at {@code i}, or -1 if there is none
+     */
+    private int inlineMarkup(@NotNull CharSequence s, int i, @NotNull StringBuilder out) {
+        int n = s.length();
+        switch (s.charAt(i)) {
+            case '*' -> {
+                String delimiter = i + 1 < n && s.charAt(i + 1) == '*' ? "**" : "*";
+                int content = i + delimiter.length();
+                if (!opensMarkup(s, i, content)) return -1;
+                int end = findEnd(s, content + 1, delimiter, false);
+                if (end < 0) throw new UnsupportedException("unterminated emphasis");
+                String tag = delimiter.length() == 2 ? "strong" : "em";
+                out.append('<').append(tag).append('>');
+                appendText(s, content, end, out);
+                out.append("</").append(tag).append('>');
+                return end + delimiter.length();
+            }
+            case '`' -> {
+                if (i + 1 >= n || s.charAt(i + 1) != '`') return interpretedText(s, i, out);
+                int content = i + 2;
+                if (!opensMarkup(s, i, content)) return -1;
+                int end = findEnd(s, content + 1, "``", true);
+                if (end < 0) throw new UnsupportedException("unterminated inline literal");
+                out.append("<code class=\"docutils literal\">");
+                for (int k = content; k < end; k++) {
+                    char c = s.charAt(k);
+                    appendEscaped(c == '\n' ? ' ' : c, out);
+                }
+                out.append("</code>");
+                return end + 2;
+            }
+            case '_' -> {
+                if (i + 1 < n && s.charAt(i + 1) == '`' && opensMarkup(s, i, i + 2)) throw new UnsupportedException("inline target");
+                return -1;
+            }
+            case '|' -> {
+                if (opensMarkup(s, i, i + 1) && findEnd(s, i + 2, "|", false) >= 0) throw new UnsupportedException("substitution");
+                return -1;
+            }
+            case '[' -> {
+                int k = i + 1;
+                while (k < n && s.charAt(k) != ']' && !Character.isWhitespace(s.charAt(k))) k++;
+                if (k > i + 1 && k + 1 < n && s.charAt(k) == ']' && s.charAt(k + 1) == '_') {
+                    throw new UnsupportedException("footnote or citation reference");
+                }
+                return -1;
+            }
+            case ':' -> {
+                int length = roleLength(s, i);
+                if (length > 0 && i + length < n && s.charAt(i + length) == '`') throw new UnsupportedException("role");
+                return -1;
+            }
+            default -> {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Citations ({@code `title`}), hyperlink references ({@code `text`_}) and embedded URIs
+     * ({@code `text <uri>`_}).
+     */
+    private int interpretedText(@NotNull CharSequence s, int i, @NotNull StringBuilder out) {
+        int n = s.length();
+        int content = i + 1;
+        if (!opensMarkup(s, i, content)) return -1;
+        for (int k = content + 1; k < n; k++) {
+            char c = s.charAt(k);
+            if (c == '\\') {
+                k++;
+                continue;
+            }
+            if (c != '`' || Character.isWhitespace(s.charAt(k - 1))) continue;
+            int suffix = k + 1 < n && s.charAt(k + 1) == '_' ? (k + 2 < n && s.charAt(k + 2) == '_' ? 2 : 1)
+                         : k + 1 < n && s.charAt(k + 1) == ':' ? roleLength(s, k + 1) : 0;
+            if (!isEndBoundary(s, k + 1 + suffix)) continue;
+            if (suffix == 2) throw new UnsupportedException("anonymous reference");
+            if (suffix > 2 || i > 0 && s.charAt(i - 1) == ':') throw new UnsupportedException("role");
+
+            if (suffix == 0) {
+                out.append("<cite>");
+                appendText(s, content, k, out);
+                out.append("</cite>");
+                return k + 1;
+            }
+            if (s.charAt(k - 1) == '>') {
+                int lt = k - 2;
+                while (lt >= content && s.charAt(lt) != '<') lt--;
+                if (lt >= content && (lt == content || Character.isWhitespace(s.charAt(lt - 1)))) {
+                    embeddedUri(s, content, lt, k - 1, out);
+                    return k + 2;
+                }
+            }
+            StringBuilder label = new StringBuilder();
+            appendText(s, content, k, label);
+            addReference(normalizeName(plainText(label.toString())), label.toString(), out);
+            return k + 2;
+        }
+        throw new UnsupportedException("unterminated interpreted text");
+    }
+
+    /**
+     * {@code `label <uri>`_}, where {@code lt} and {@code gt} are the positions of the angle brackets.
+     */
+    private void embeddedUri(@NotNull CharSequence s, int content, int lt, int gt, @NotNull StringBuilder out) {
+        if (gt - 1 > lt && s.charAt(gt - 1) == '_' && s.charAt(gt - 2) != '\\') throw new UnsupportedException("embedded alias");
+        StringBuilder uri = new StringBuilder();
+        for (int k = lt + 1; k < gt; k++) {
+            char c = s.charAt(k);
+            if (c == '\\') {
+                if (++k < gt) uri.append(s.charAt(k));
+            } else if (!Character.isWhitespace(c)) {
+                uri.append(c);
+            }
+        }
+        if (uri.isEmpty()) throw new UnsupportedException("empty embedded URI");
+
+        StringBuilder label = new StringBuilder();
+        int labelEnd = lt;
+        while (labelEnd > content && Character.isWhitespace(s.charAt(labelEnd - 1))) labelEnd--;
+        if (labelEnd > content) {
+            appendText(s, content, labelEnd, label);
+            String name = normalizeName(plainText(label.toString()));
+            String previous = myTargets.put(name, uri.toString());
+            if (previous != null && !previous.contentEquals(uri)) throw new UnsupportedException("duplicate target");
+        } else {
+            appendEscaped(uri, label);
+        }
+        out.append("<a class=\"reference external\" href=\"");
+        appendEscaped(uri, out);
+        out.append("\">").append(label).append("</a>");
+    }
+
+    /**
+     * A word, which may be a standalone URI, an email address or a {@code name_} reference.
+     */
+    private int word(@NotNull CharSequence s, int i, @NotNull StringBuilder out) {
+        int n = s.length();
+        int k = i;
+        while (k < n && isAsciiLetter(s.charAt(k))) k++;
+        if (k < n && s.charAt(k) == ':' && URI_SCHEMES.contains(s.subSequence(i, k).toString().toLowerCase(Locale.ROOT))) {
+            int end = uriEnd(s, k + 1);
+            boolean valid = s.charAt(i) == 'm' || s.charAt(i) == 'M'
+                            ? indexOf(s, '@', k + 1, end) > k + 1
+                            : end > k + 3 && s.charAt(k + 1) == '/' && s.charAt(k + 2) == '/';
+            if (valid) {
+                appendLink(s.subSequence(i, end), s.subSequence(i, end), out);
+                return end;
+            }
+        }
+
+        // The letters read so far start the word.
+        while (true) {
+            while (k < n && Character.isLetterOrDigit(s.charAt(k))) k++;
+            if (k + 1 < n && "-._+:".indexOf(s.charAt(k)) >= 0 && Character.isLetterOrDigit(s.charAt(k + 1))) {
+                k++;
+                continue;
+            }
+            break;
+        }
+
+        if (k + 1 < n && s.charAt(k) == '@' && Character.isLetterOrDigit(s.charAt(k + 1))) {
+            int end = k + 1;
+            int lastDot = -1;
+            while (end < n && (Character.isLetterOrDigit(s.charAt(end)) || s.charAt(end) == '-' ||
+                               s.charAt(end) == '.' && end + 1 < n && Character.isLetterOrDigit(s.charAt(end + 1)))) {
+                if (s.charAt(end) == '.') lastDot = end;
+                end++;
+            }
+            if (lastDot > k && isEndBoundary(s, end)) {
+                appendLink("mailto:" + s.subSequence(i, end), s.subSequence(i, end), out);
+                return end;
+            }
+        }
+
+        if (k < n && s.charAt(k) == '_') {
+            if (k + 1 < n && s.charAt(k + 1) == '_') {
+                if (isEndBoundary(s, k + 2)) throw new UnsupportedException("anonymous reference");
+            } else if (isEndBoundary(s, k + 1)) {
+                StringBuilder label = new StringBuilder();
+                appendText(s, i, k, label);
+                addReference(normalizeName(s.subSequence(i, k).toString()), label.toString(), out);
+                return k + 1;
+            }
+        }
+        appendText(s, i, k, out);
+        return k;
+    }
+
+    private static int uriEnd(@NotNull CharSequence s, int start) {
+        int end = start;
+        while (end < s.length() && !Character.isWhitespace(s.charAt(end)) && "<>\"`\\".indexOf(s.charAt(end)) < 0) end++;
+        while (end > start) {
+            char last = s.charAt(end - 1);
+            if (URI_TRAILING_PUNCTUATION.indexOf(last) >= 0 || last == ')' && indexOf(s, '(', start, end) < 0) {
+                end--;
+            } else {
+                break;
+            }
+        }
+        return end;
+    }
+
+    private void appendLink(@NotNull CharSequence uri, @NotNull CharSequence text, @NotNull StringBuilder out) {
+        out.append("<a class=\"reference external\" href=\"");
+        appendEscaped(uri, out);
+        out.append("\">");
+        appendEscaped(text, out);
+        out.append("</a>");
+    }
+
+    private void addReference(@NotNull String name, @NotNull String html, @NotNull StringBuilder out) {
+        out.append(MARKER).append(myReferences.size()).append(MARKER);
+        myReferences.add(new Reference(name, html));
+    }
+
+    private @NotNull String resolveReferences(@NotNull StringBuilder html) {
+        if (myReferences.isEmpty()) return html.toString();
+        StringBuilder result = new StringBuilder(html.length() + myReferences.size() * 64);
+        int copied = 0;
+        for (int marker = html.indexOf(MARKER_STRING); marker >= 0; marker = html.indexOf(MARKER_STRING, copied)) {
+            int close = html.indexOf(MARKER_STRING, marker + 1);
+            Reference reference = myReferences.get(Integer.parseInt(html, marker + 1, close, 10));
+            result.append(html, copied, marker);
+            String uri = myTargets.get(reference.name());
+            if (uri != null) {
+                result.append("<a class=\"reference external\" href=\"");
+                appendEscaped(uri, result);
+            } else {
+                String id = mySectionIds.get(reference.name());
+                if (id == null || id.isEmpty()) throw new UnsupportedException("unknown or ambiguous target " + reference.name());
+                result.append("<a class=\"reference internal\" href=\"#").append(id);
+            }
+            result.append("\">").append(reference.html()).append("</a>");
+            copied = close + 1;
+        }
+        return result.append(html, copied, html.length()).toString();
+    }
+
+    /**
+     * @return where {@code end} starts at or after {@code from}, or -1
+     */
+    private static int findEnd(@NotNull CharSequence s, int from, @NotNull String end, boolean literal) {
+        int n = s.length();
+        for (int k = from; k + end.length() <= n; k++) {
+            char c = s.charAt(k);
+            if (!literal && c == '\\') {
+                k++;
+                continue;
+            }
+            if (c == end.charAt(0) && (end.length() == 1 || s.charAt(k + 1) == end.charAt(1)) &&
+                !Character.isWhitespace(s.charAt(k - 1)) && isEndBoundary(s, k + end.length())) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the length of {@code :name:} at {@code i}, or 0
+     */
+    private static int roleLength(@NotNull CharSequence s, int i) {
+        int k = i + 1;
+        while (k < s.length() && (Character.isLetterOrDigit(s.charAt(k)) || "-_+.".indexOf(s.charAt(k)) >= 0)) k++;
+        return k > i + 1 && k < s.length() && s.charAt(k) == ':' ? k + 1 - i : 0;
+    }
+
+    private static boolean opensMarkup(@NotNull CharSequence s, int start, int content) {
+        if (content >= s.length() || Character.isWhitespace(s.charAt(content))) return false;
+        if (start == 0) return true;
+        int opener = OPENERS.indexOf(s.charAt(start - 1));
+        return opener < 0 || s.charAt(content) != CLOSERS.charAt(opener);
+    }
+
+    private static boolean isStartBoundary(@NotNull CharSequence s, int i) {
+        if (i == 0) return true;
+        char c = s.charAt(i - 1);
+        return c < 128 ? ourAsciiStartBoundary[c] : precedesMarkup(c);
+    }
+
+    private static boolean isEndBoundary(@NotNull CharSequence s, int i) {
+        if (i >= s.length()) return true;
+        char c = s.charAt(i);
+        return c < 128 ? ourAsciiEndBoundary[c] : followsMarkup(c);
+    }
+
+    private static boolean precedesMarkup(char c) {
+        if (Character.isWhitespace(c) || START_PRECEDERS.indexOf(c) >= 0) return true;
+        int type = Character.getType(c);
+        return type == Character.DASH_PUNCTUATION || type == Character.START_PUNCTUATION ||
+               type == Character.INITIAL_QUOTE_PUNCTUATION || type == Character.FINAL_QUOTE_PUNCTUATION ||
+               type == Character.OTHER_PUNCTUATION;
+    }
+
+    private static boolean followsMarkup(char c) {
+        if (Character.isWhitespace(c) || END_FOLLOWERS.indexOf(c) >= 0) return true;
+        int type = Character.getType(c);
+        return type == Character.DASH_PUNCTUATION || type == Character.END_PUNCTUATION ||
+               type == Character.INITIAL_QUOTE_PUNCTUATION || type == Character.FINAL_QUOTE_PUNCTUATION ||
+               type == Character.OTHER_PUNCTUATION;
+    }
+
+    private static boolean @NotNull [] asciiTable(boolean start) {
+        boolean[] table = new boolean[128];
+        for (char c = 0; c < 128; c++) {
+            table[c] = start ? precedesMarkup(c) : followsMarkup(c);
+        }
+        return table;
+    }
+
+    private static void appendText(@NotNull CharSequence s, int from, int to, @NotNull StringBuilder out) {
+        for (int k = from; k < to; k++) {
+            char c = s.charAt(k);
+            if (c == '\\') {
+                if (k + 1 < to && !Character.isWhitespace(s.charAt(k + 1))) appendEscaped(s.charAt(k + 1), out);
+                k++;
+            } else {
+                appendEscaped(c, out);
+            }
+        }
+    }
+
+    // Lines and characters
+
+    private @NotNull CharSequence line(int start, int end) {
+        return new JoinedLines(myText, new Block(new int[]{start}, new int[]{end}), 0, 1);
+    }
+
+    private int indent(@NotNull Block block, int line) {
+        int start = block.starts[line];
+        int i = start;
+        while (myText.charAt(i) == ' ') i++;
+        return i - start;
+    }
+
+    /**
+     * @return the end of the blank or indented lines from {@code from} on, without trailing blank lines
+     */
+    private int indentedEnd(@NotNull Block block, int from) {
+        int end = from;
+        for (int i = from; i < block.size() && (block.isBlank(i) || indent(block, i) > 0); i++) {
+            if (!block.isBlank(i)) end = i + 1;
+        }
+        return end;
+    }
+
+    /**
+     * The lines {@code from} to {@code to} of {@code block} without their common indentation.
+     *
+     * @param firstStart where the first line starts, after a list or explicit markup marker; -1 if
+     *                   it is indented like the others
+     */
+    private @NotNull Block indented(@NotNull Block block, int from, int to, int firstStart) {
+        int margin = Integer.MAX_VALUE;
+        for (int i = firstStart >= 0 ? from + 1 : from; i < to; i++) {
+            if (!block.isBlank(i)) margin = Math.min(margin, indent(block, i));
+        }
+        int[] starts = new int[to - from];
+        int[] ends = Arrays.copyOfRange(block.ends, from, to);
+        for (int i = from; i < to; i++) {
+            starts[i - from] = block.isBlank(i) ? block.ends[i] : block.starts[i] + margin;
+        }
+        if (firstStart >= 0) starts[0] = Math.min(firstStart, ends[0]);
+        return new Block(starts, ends);
+    }
+
+    private static int skipBlank(@NotNull Block block, int from) {
+        while (from < block.size() && block.isBlank(from)) from++;
+        return from;
+    }
+
+    private static void requireBlankAfter(@NotNull Block block, int end, @NotNull String construct) {
+        if (end < block.size() && !block.isBlank(end)) throw new UnsupportedException(construct + " ends without a blank line");
+    }
+
+    private int skipSpaces(int from, int end) {
+        while (from < end && myText.charAt(from) == ' ') from++;
+        return from;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && myText.charAt(end - 1) == ' ') end--;
+        return end;
+    }
+
+    private boolean isMarkerEnd(int i, int end) {
+        return i >= end || myText.charAt(i) == ' ';
+    }
+
+    private boolean startsWith(int start, int end, @NotNull String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (myText.charAt(start + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean isAdornment(int start, int end) {
+        char c = myText.charAt(start);
+        if (ADORNMENT_CHARS.indexOf(c) < 0) return false;
+        for (int i = start + 1; i < end; i++) {
+            if (myText.charAt(i) != c) return false;
+        }
+        return true;
+    }
+
+    private boolean isSameLine(@NotNull Block block, int a, int b) {
+        int length = block.ends[a] - block.starts[a];
+        if (block.ends[b] - block.starts[b] != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (myText.charAt(block.starts[a] + i) != myText.charAt(block.starts[b] + i)) return false;
+        }
+        return true;
+    }
+
+    private boolean isGridBorder(int start, int end, char fill) {
+        if (end - start < 3 || myText.charAt(end - 1) != '+' || myText.charAt(start + 1) != fill) return false;
+        for (int i = start; i < end; i++) {
+            char c = myText.charAt(i);
+            if (c != '+' && c != fill) return false;
+        }
+        return true;
+    }
+
+    private boolean isSimpleBorder(int start, int end) {
+        int runs = 0;
+        for (int i = start; i < end; i++) {
+            char c = myText.charAt(i);
+            if (c == '=' && (i == start || myText.charAt(i - 1) == ' ')) {
+                runs++;
+            } else if (c != '=' && c != ' ') {
+                return false;
+            }
+        }
+        return runs > 1;
+    }
+
+    private boolean isFieldMarker(int start, int end) {
+        if (start + 1 >= end || myText.charAt(start + 1) == ' ' || myText.charAt(start + 1) == ':') return false;
+        for (int i = start + 2; i < end; i++) {
+            char c = myText.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ':' && myText.charAt(i - 1) != ' ' && isMarkerEnd(i + 1, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOption(@NotNull Block block, int line) {
+        return myText.charAt(block.starts[line]) == ':' && isFieldMarker(block.starts[line], block.ends[line]);
+    }
+
+    private boolean isOptionMarker(int start, int end) {
+        if (start + 1 >= end) return false;
+        char c = myText.charAt(start);
+        char next = myText.charAt(start + 1);
+        if (c == '-') {
+            return isAsciiLetter(next) || isAsciiDigit(next) ||
+                   next == '-' && start + 2 < end && isAsciiLetter(myText.charAt(start + 2));
+        }
+        return c == '/' && isAsciiLetter(next);
+    }
+
+    private void appendNonWhitespace(int start, int end, @NotNull StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = myText.charAt(i);
+            if (!Character.isWhitespace(c)) out.append(c);
+        }
+    }
+
+    private static int indexOf(@NotNull CharSequence s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    // Output helpers
+
+    private static boolean isSimple(@NotNull CharSequence html) {
+        if (html.isEmpty()) return true;
+        String text = html.toString();
+        return text.startsWith("<p>") && text.indexOf("</p>\n") == text.length() - 5;
+    }
+
+    private static @NotNull String unwrapParagraph(@NotNull CharSequence html) {
+        return html.isEmpty() ? "" : html.subSequence(3, html.length() - 5).toString();
+    }
+
+    private static void appendEscaped(char c, @NotNull StringBuilder out) {
+        switch (c) {
+            case '&' -> out.append("&amp;");
+            case '<' -> out.append("&lt;");
+            case '>' -> out.append("&gt;");
+            case '"' -> out.append("&quot;");
+            case MARKER -> out.append('\uFFFD');
+            default -> out.append(c);
+        }
+    }
+
+    private static void appendEscaped(@NotNull CharSequence text, @NotNull StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            appendEscaped(text.charAt(i), out);
+        }
+    }
+
+    /**
+     * The text of rendered inline markup, with references replaced by their labels.
+     */
+    private @NotNull String plainText(@NotNull String html) {
+        StringBuilder text = new StringBuilder(html.length());
+        for (int i = 0; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                i = html.indexOf('>', i);
+            } else if (c == MARKER) {
+                int close = html.indexOf(MARKER, i + 1);
+                text.append(plainText(myReferences.get(Integer.parseInt(html, i + 1, close, 10)).html()));
+                i = close;
+            } else if (c == '&') {
+                int semicolon = html.indexOf(';', i);
+                String entity = html.substring(i, semicolon + 1);
+                text.append(switch (entity) {
+                    case "&amp;" -> '&';
+                    case "&lt;" -> '<';
+                    case "&gt;" -> '>';
+                    default -> '"';
+                });
+                i = semicolon;
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    private static @NotNull String normalizeName(@NotNull String text) {
+        return String.join(" ", text.trim().split("\\s+")).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * docutils' {@code make_id}: lower case ASCII letters and digits separated by single hyphens.
+     */
+    private static @NotNull String makeId(@NotNull String text) {
+        String ascii = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFKD);
+        StringBuilder id = new StringBuilder(ascii.length());
+        boolean hyphen = false;
+        for (int i = 0; i < ascii.length(); i++) {
+            char c = ascii.charAt(i);
+            if (isAsciiLetter(c) || isAsciiDigit(c)) {
+                if (hyphen && !id.isEmpty()) id.append('-');
+                id.append(c);
+                hyphen = false;
+            } else if (c < 128) {
+                hyphen = true;
+            }
+        }
+        int start = 0;
+        while (start < id.length() && !isAsciiLetter(id.charAt(start))) start++;
+        return id.substring(start);
+    }
+
+    private @NotNull String uniqueId(@NotNull String id) {
+        if (!id.isEmpty() && myIds.add(id)) return id;
+        for (int i = 1; ; i++) {
+            String numbered = "id" + i;
+            if (myIds.add(numbered)) return numbered;
+        }
+    }
+
+    /**
+     * The lines {@code from} to {@code to} of a block, joined with newlines, as a view of the text.
+     */
+    private static final class JoinedLines implements CharSequence {
+        private final @NotNull CharSequence myText;
+        private final int @NotNull [] myStarts;
+        // Offset of each line in this sequence, and the total length plus one at the end.
+        private final int @NotNull [] myOffsets;
+        private int myLine;
+
+        JoinedLines(@NotNull CharSequence text, @NotNull Block block, int from, int to) {
+            myText = text;
+            myStarts = Arrays.copyOfRange(block.starts(), from, to);
+            myOffsets = new int[to - from + 1];
+            for (int i = 0; i < to - from; i++) {
+                myOffsets[i + 1] = myOffsets[i] + block.ends()[from + i] - myStarts[i] + 1;
+            }
+        }
+
+        @Override
+        public int length() {
+            return Math.max(0, myOffsets[myOffsets.length - 1] - 1);
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= myOffsets[myLine + 1]) {
+                // Inline markup is read front to back, so the next line is the likely one.
+                myLine = index < myOffsets[Math.min(myLine + 2, myOffsets.length - 1)] ? myLine + 1 : findLine(index);
+            } else if (index < myOffsets[myLine]) {
+                myLine = findLine(index);
+            }
+            int column = index - myOffsets[myLine];
+            return index == myOffsets[myLine + 1] - 1 ? '\n' : myText.charAt(myStarts[myLine] + column);
+        }
+
+        private int findLine(int index) {
+            int line = Arrays.binarySearch(myOffsets, index);
+            return line >= 0 ? line : -line - 2;
+        }
+
+        @Override
+        public @NotNull CharSequence subSequence(int start, int end) {
+            StringBuilder copy = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                copy.append(charAt(i));
+            }
+            return copy;
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.Alarm;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Chromium browsers of the JCEF previews. Every browser has a renderer process of its own, so
+ * instead of one per editor, previews borrow a browser while they are shown, and one idle browser
+ * is kept to hand out at once.
+ * <p>
+ * A hidden preview hibernates after {@link #HIBERNATE_DELAY_MS}, or sooner, least recently shown
+ * first, while more than {@link RstPreviewSettings#getBrowserPoolSize()} browsers are in use or the
+ * previews take more than {@link RstPreviewSettings#getPreviewMemoryBudgetMb()}. A browser is
+ * counted at a fixed cost for its renderer plus a multiple of the page size for the DOM, a
+ * hibernated preview at the size of its snapshot. Shown previews always keep their browser; if the
+ * budget is still exceeded, the oldest snapshots are dropped, and those previews render again
+ * when they are shown.
+ * <p>
+ * Used on the EDT only.
+ */
+public final class RstJcefBrowserPool implements Disposable {
+    private static final long HIBERNATE_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int IDLE_BROWSERS = 1;
+    private static final long BROWSER_BYTES = 40L * 1024 * 1024;
+    private static final int DOM_BYTES_PER_CHAR = 10;
+
+    private final @NotNull Alarm myAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+    // Previews with a browser, least recently shown first.
+    private final @NotNull LinkedHashSet<RstPooledPreviewPanel> myLive = new LinkedHashSet<>();
+    // Hibernated previews with a snapshot, oldest first.
+    private final @NotNull LinkedHashSet<RstPooledPreviewPanel> myHibernated = new LinkedHashSet<>();
+    private final @NotNull List<RstJcefPreviewPanel> myIdle = new ArrayList<>();
+    private volatile @NotNull Stats myStats = new Stats(0, 0, 0, 0);
+
+    /**
+     * @param estimatedBytes the memory the browsers and snapshots are estimated to take
+     */
+    record Stats(int live, int idle, int hibernated, long estimatedBytes) {}
+
+    public static RstJcefBrowserPool getInstance() {
+        return ApplicationManager.getApplication().getService(RstJcefBrowserPool.class);
+    }
+
+    /**
+     * Hands out a browser to a preview that is being shown; the preview then {@linkplain #shown reports} it.
+     */
+    @NotNull RstJcefPreviewPanel acquire(@NotNull RstPooledPreviewPanel preview) {
+        myHibernated.remove(preview);
+        if (!myIdle.isEmpty()) return myIdle.remove(myIdle.size() - 1);
+        RstJcefPreviewPanel browser = new RstJcefPreviewPanel();
+        Disposer.register(this, browser);
+        return browser;
+    }
+
+    void shown(@NotNull RstPooledPreviewPanel preview) {
+        myLive.remove(preview);
+        if (preview.hasBrowser()) myLive.add(preview);
+        trim();
+    }
+
+    void hidden() {
+        myAlarm.addRequest(this::trim, HIBERNATE_DELAY_MS);
+        trim();
+    }
+
+    /**
+     * Called when the page a hibernated preview keeps changed.
+     */
+    void snapshotChanged(@NotNull RstPooledPreviewPanel preview) {
+        if (!preview.hasBrowser() && preview.getSnapshotBytes() > 0) myHibernated.add(preview);
+        trim();
+    }
+
+    /**
+     * Forgets a disposed preview and takes back its browser.
+     */
+    void removed(@NotNull RstPooledPreviewPanel preview, @Nullable RstJcefPreviewPanel browser) {
+        myLive.remove(preview);
+        myHibernated.remove(preview);
+        if (browser != null) release(browser);
+        updateStats();
+    }
+
+    /**
+     * Hibernates hidden previews and drops snapshots until the pool is within its limits again.
+     */
+    void trim() {
+        RstPreviewSettings settings = RstPreviewSettings.getInstance();
+        int poolSize = Math.max(1, settings.getBrowserPoolSize());
+        long budget = settings.getPreviewMemoryBudgetMb() * 1024L * 1024;
+        while (!myIdle.isEmpty() && (myLive.size() + myIdle.size() > poolSize || getEstimatedBytes() > budget)) {
+            Disposer.dispose(myIdle.remove(myIdle.size() - 1));
+        }
+
+        long hiddenBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(HIBERNATE_DELAY_MS);
+        for (RstPooledPreviewPanel preview : List.copyOf(myLive)) {
+            if (preview.isShowing()) continue;
+            boolean overLimit = myLive.size() > poolSize || getEstimatedBytes() > budget;
+            if (!overLimit && preview.getHiddenSinceNanos() - hiddenBefore > 0) continue;
+            myLive.remove(preview);
+            RstJcefPreviewPanel browser = preview.hibernate();
+            if (browser != null) release(browser);
+            if (preview.getSnapshotBytes() > 0) myHibernated.add(preview);
+        }
+
+        for (Iterator<RstPooledPreviewPanel> it = myHibernated.iterator(); it.hasNext() && getEstimatedBytes() > budget; ) {
+            it.next().dropSnapshot();
+            it.remove();
+        }
+        updateStats();
+    }
+
+    private void release(@NotNull RstJcefPreviewPanel browser) {
+        int poolSize = Math.max(1, RstPreviewSettings.getInstance().getBrowserPoolSize());
+        if (myIdle.size() < IDLE_BROWSERS && myLive.size() + myIdle.size() < poolSize) {
+            myIdle.add(browser);
+        } else {
+            Disposer.dispose(browser);
+        }
+    }
+
+    private long getEstimatedBytes() {
+        long bytes = myIdle.size() * BROWSER_BYTES;
+        for (RstPooledPreviewPanel preview : myLive) {
+            bytes += BROWSER_BYTES + (long) DOM_BYTES_PER_CHAR * preview.getPageLength();
+        }
+        for (RstPooledPreviewPanel preview : myHibernated) {
+            bytes += preview.getSnapshotBytes();
+        }
+        return bytes;
+    }
+
+    private void updateStats() {
+        myStats = new Stats(myLive.size(), myIdle.size(), myHibernated.size(), getEstimatedBytes());
+    }
+
+    /**
+     * @return the browsers in use and idle, the previews keeping a snapshot, and the estimated
+     * memory; for diagnostics
+     */
+    @NotNull Stats getStats() {
+        return myStats;
+    }
+
+    @Override
+    public void dispose() {
+        myIdle.clear();
+        myLive.clear();
+        myHibernated.clear();
+    }
+}
@@ -6,6 +6,9 @@ import com.intellij.ide.ui.LafManagerListener;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.jcef.JBCefBrowserBase;
 import com.intellij.ui.jcef.JBCefJSQuery;
 import com.intellij.ui.jcef.JCEFHtmlPanel;
@@ -18,14 +21,12 @@ import org.jetbrains.annotations.Nullable;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 
 import javax.swing.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.EnumMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPreviewPanel {
@@ -35,12 +36,50 @@ public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPrevi
             RstJcefPreviewPanel.class.getSimpleName() + ".class").toExternalForm();
 
     private enum Style { DARCULA, DEFAULT }
-    private static final EnumMap<Style, String> ourLoadedStylesCache = new EnumMap<>(Style.class);
+
+    private static final Set<String> PATCH_ROOT_CONTAINERS = Set.of("div", "main", "article");
 
     private final JBCefJSQuery myJSQueryOpenInBrowser = JBCefJSQuery.create((JBCefBrowserBase) this);
+    private final JBCefJSQuery myJSQueryReload = JBCefJSQuery.create((JBCefBrowserBase) this);
+    private final JBCefJSQuery myJSQueryBlocks = JBCefJSQuery.create((JBCefBrowserBase) this);
     private final CefLoadHandler myCefLoadHandler;
-    private final @NotNull Project myProject;
-    private @Nullable String myLastHtml;
+    private final RstPreviewResourceHandler myCefRequestHandler = new RstPreviewResourceHandler();
+    // The previewed file, which changes when RstJcefBrowserPool hands the browser to another preview.
+    private volatile @NotNull String myBaseUrl = RstPreviewAssetCache.ORIGIN + "/";
+    private volatile @NotNull String myPath = "";
+    private volatile long myLoadStartNanos;
+
+    // The last prepared page, which the next one is diffed against.
+    private final Object myPrepareLock = new Object();
+    private long myPreparedId;
+    private @Nullable List<String> myPreparedStylesheets;
+    private @Nullable String myPreparedRootSignature;
+    private @NotNull List<String> myPreparedBlocks = List.of();
+    private @Nullable RstVirtualPage myPreparedVirtualPage;
+
+    // State of the page currently in the browser; a prepared diff only applies if it was made against it.
+    private volatile @Nullable String myLastHtml;
+    private long myShownId;
+    private @Nullable Style myLoadedStyle;
+    private volatile boolean myPageLoaded;
+
+    // Large document mode: the page in the browser is the shell of this page, see RstVirtualPage.
+    private volatile @Nullable RstVirtualPage myVirtualPage;
+    private volatile int myTopBlock = -1;
+    private volatile int myTopOffset;
+    private @NotNull RstSourceLineIndex myLineIndex = RstSourceLineIndex.EMPTY;
+    // Where the page is scrolled to, as reported by the browser, and where to scroll the next page shown.
+    private volatile int myScrollY;
+    private volatile int myRestoreScrollY = -1;
+    // Counts attach and detach calls on the EDT, so pages prepared for an earlier file aren't shown.
+    private int myAttachCount;
+
+    /**
+     * What a preview keeps of its page while it has no browser.
+     *
+     * @param html the last page shown
+     */
+    record Snapshot(@NotNull String html, int scrollY, int topBlock, int topOffset) {}
 
     private static final @NotNull String JS_CODE =
             "window.__IntelliJTools = {};\n" +
@@ -49,20 +88,219 @@ public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPrevi
             "  e.stopPropagation();\n" +
             "  e.preventDefault();\n" +
             "  var href = e.target.href;\n" +
-            "  if (href.indexOf('#') !== -1 && !/^https?:\\/\\//i.test(href)) {\n" +
-            "    var elementId = href.split('#')[1];\n" +
+            "  var rawHref = e.target.getAttribute('href') || '';\n" +
+            "  if (rawHref.charAt(0) === '#') {\n" +
+            "    var elementId = decodeURIComponent(rawHref.substring(1));\n" +
             "    var elementById = document.getElementById(elementId);\n" +
             "    if (elementById) elementById.scrollIntoView();\n" +
+            "    else if (window.__RstPreview.virtual.observer) window.__RstPreview.virtual.reveal(elementId);\n" +
             "    return;\n" +
             "  }\n" +
             "  if (window.__IntelliJTools.openInBrowserCallback !== undefined) {\n" +
             "    window.__IntelliJTools.openInBrowserCallback(href);\n" +
             "  }\n" +
+            "};\n" +
+            "window.__RstPreview = {\n" +
+            "  patch: function(depth, start, deleteCount, html) {\n" +
+            "    var root = document.body;\n" +
+            "    for (var i = 0; i < depth && root; i++) root = root.firstElementChild;\n" +
+            "    if (!root || root.children.length < start + deleteCount) {\n" +
+            "      if (window.__IntelliJTools.reloadCallback !== undefined) window.__IntelliJTools.reloadCallback();\n" +
+            "      return;\n" +
+            "    }\n" +
+            "    window.__RstPreview.sync.anchors = null;\n" +
+            "    for (var j = 0; j < deleteCount; j++) root.removeChild(root.children[start]);\n" +
+            "    var template = document.createElement('template');\n" +
+            "    template.innerHTML = html;\n" +
+            "    root.insertBefore(template.content, root.children[start] || null);\n" +
+            "  },\n" +
+            // Replaces the content of the shell page. New stylesheets are added before the old ones go,
+            // so the page is never shown unstyled; unchanged ones stay parsed.
+            "  setPage: function(baseUrl, stylesheets, body, heights, topBlock, topOffset, scrollY) {\n" +
+            "    var base = document.querySelector('base');\n" +
+            "    if (!base) base = document.head.appendChild(document.createElement('base'));\n" +
+            "    var sameBase = base.getAttribute('href') === baseUrl;\n" +
+            "    if (!sameBase) base.setAttribute('href', baseUrl);\n" +
+            "    var old = Array.prototype.slice.call(document.querySelectorAll('link[data-rst-style]'));\n" +
+            "    var same = sameBase && old.length === stylesheets.length && old.every(function(link, i) {\n" +
+            "      return link.getAttribute('href') === stylesheets[i];\n" +
+            "    });\n" +
+            "    if (!same) {\n" +
+            "      var pending = stylesheets.length;\n" +
+            "      var loaded = function() { if (--pending <= 0) old.forEach(function(link) { link.remove(); }); };\n" +
+            "      stylesheets.forEach(function(href) {\n" +
+            "        var link = document.createElement('link');\n" +
+            "        link.rel = 'stylesheet';\n" +
+            "        link.setAttribute('data-rst-style', '');\n" +
+            "        link.onload = link.onerror = loaded;\n" +
+            "        link.setAttribute('href', href);\n" +
+            "        document.head.appendChild(link);\n" +
+            "      });\n" +
+            "      if (pending === 0) loaded();\n" +
+            "    }\n" +
+            "    window.__RstPreview.virtual.reset();\n" +
+            "    window.__RstPreview.sync.anchors = null;\n" +
+            "    window.__RstPreview.sync.waiting = -1;\n" +
+            "    document.body.innerHTML = body;\n" +
+            "    if (heights) window.__RstPreview.virtual.init(heights, topBlock, topOffset);\n" +
+            "    else if (scrollY >= 0) window.scrollTo(0, scrollY);\n" +
+            "  },\n" +
+            // The position is kept on the Java side, to restore it when the preview gets a browser again.
+            "  reportScroll: function() {\n" +
+            "    if (window.__RstPreview.virtual.observer) window.__RstPreview.virtual.reportScroll();\n" +
+            "    else window.__IntelliJTools.blocksCallback('^' + Math.round(window.scrollY));\n" +
+            "  }\n" +
+            "};\n" +
+            "if (!window.__RstPreviewScrollListener) {\n" +
+            "  window.__RstPreviewScrollListener = true;\n" +
+            "  window.addEventListener('scroll', function() {\n" +
+            "    if (window.__RstPreviewScrollTimer) return;\n" +
+            "    window.__RstPreviewScrollTimer = setTimeout(function() {\n" +
+            "      window.__RstPreviewScrollTimer = null;\n" +
+            "      window.__RstPreview.reportScroll();\n" +
+            "    }, 200);\n" +
+            "  });\n" +
+            "}\n" +
+            // Scroll sync: targets come from RstSourceLineIndex, and only the last one of a frame is applied.
+            "window.__RstPreview.sync = {\n" +
+            "  anchors: null, target: null, frame: 0, waiting: -1,\n" +
+            "  element: function(block, anchor) {\n" +
+            "    var selector = '[" + RstSourceLineIndex.LINE_ATTRIBUTE + "]';\n" +
+            "    if (block < 0) {\n" +
+            "      if (!this.anchors) this.anchors = document.querySelectorAll(selector);\n" +
+            "      return this.anchors[anchor] || null;\n" +
+            "    }\n" +
+            "    var el = window.__RstPreview.virtual.find(block);\n" +
+            "    if (!el || el.classList.contains('" + RstVirtualPage.PLACEHOLDER_CLASS + "')) {\n" +
+            "      this.waiting = block;\n" +
+            "      return el;\n" +
+            "    }\n" +
+            "    if (el.matches(selector)) {\n" +
+            "      if (anchor === 0) return el;\n" +
+            "      anchor--;\n" +
+            "    }\n" +
+            "    return el.querySelectorAll(selector)[anchor] || el;\n" +
+            "  },\n" +
+            "  scroll: function(target, ratio) {\n" +
+            "    var s = this;\n" +
+            "    s.target = target;\n" +
+            "    s.ratio = ratio;\n" +
+            "    if (!s.frame) s.frame = requestAnimationFrame(function() { s.frame = 0; s.apply(); });\n" +
+            "  },\n" +
+            "  apply: function() {\n" +
+            "    var t = this.target, y;\n" +
+            "    if (!t) return;\n" +
+            "    this.waiting = -1;\n" +
+            "    if (t[1] < 0) {\n" +
+            "      y = t[4] * (document.documentElement.scrollHeight - window.innerHeight) + this.ratio * window.innerHeight;\n" +
+            "    } else {\n" +
+            "      var el = this.element(t[0], t[1]);\n" +
+            "      if (!el) return;\n" +
+            "      var rect = el.getBoundingClientRect();\n" +
+            "      var next = t[3] >= 0 ? this.element(t[2], t[3]) : null;\n" +
+            "      var end = next ? next.getBoundingClientRect().top : rect.bottom;\n" +
+            "      y = window.scrollY + rect.top + Math.max(0, end - rect.top) * t[4];\n" +
+            "    }\n" +
+            "    window.scrollTo(window.scrollX, y - this.ratio * window.innerHeight);\n" +
+            "  }\n" +
+            "};\n" +
+            "window.__RstPreview.virtual = {\n" +
+            "  observer: null, requested: {}, pendingAnchor: null,\n" +
+            "  find: function(index) {\n" +
+            "    return document.querySelector('[" + RstVirtualPage.BLOCK_ATTRIBUTE + "=\"' + index + '\"]');\n" +
+            "  },\n" +
+            "  init: function(heights, topBlock, topOffset) {\n" +
+            "    var v = this;\n" +
+            "    document.querySelectorAll('." + RstVirtualPage.PLACEHOLDER_CLASS + "').forEach(function(el) {\n" +
+            "      el.style.height = heights[+el.getAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "')] + 'px';\n" +
+            "    });\n" +
+            "    var top = topBlock >= 0 ? v.find(topBlock) : null;\n" +
+            "    if (top) window.scrollTo(0, top.getBoundingClientRect().top + window.scrollY + topOffset);\n" +
+            "    v.observer = new IntersectionObserver(function(entries) {\n" +
+            "      var wanted = [];\n" +
+            "      entries.forEach(function(entry) {\n" +
+            "        var el = entry.target, placeholder = el.classList.contains('" + RstVirtualPage.PLACEHOLDER_CLASS + "');\n" +
+            "        var index = el.getAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "');\n" +
+            "        if (entry.isIntersecting && placeholder && !v.requested[index]) {\n" +
+            "          v.requested[index] = true;\n" +
+            "          wanted.push(index);\n" +
+            "        } else if (!entry.isIntersecting && !placeholder) {\n" +
+            "          v.evict(el);\n" +
+            "        }\n" +
+            "      });\n" +
+            "      if (wanted.length > 0) window.__IntelliJTools.blocksCallback(wanted.join(','));\n" +
+            "    }, {rootMargin: '150% 0px'});\n" +
+            "    document.querySelectorAll('[" + RstVirtualPage.BLOCK_ATTRIBUTE + "]').forEach(function(el) { v.observer.observe(el); });\n" +
+            "  },\n" +
+            "  reset: function() {\n" +
+            "    if (this.observer) this.observer.disconnect();\n" +
+            "    this.observer = null;\n" +
+            "    this.requested = {};\n" +
+            "    this.pendingAnchor = null;\n" +
+            "  },\n" +
+            "  evict: function(el) {\n" +
+            "    var placeholder = document.createElement('div'), style = getComputedStyle(el);\n" +
+            "    placeholder.className = '" + RstVirtualPage.PLACEHOLDER_CLASS + "';\n" +
+            "    placeholder.setAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "', el.getAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "'));\n" +
+            "    placeholder.style.height = el.getBoundingClientRect().height + 'px';\n" +
+            "    placeholder.style.marginTop = style.marginTop;\n" +
+            "    placeholder.style.marginBottom = style.marginBottom;\n" +
+            "    this.observer.unobserve(el);\n" +
+            "    el.replaceWith(placeholder);\n" +
+            "    this.observer.observe(placeholder);\n" +
+            "  },\n" +
+            "  swap: function(old, html) {\n" +
+            "    var template = document.createElement('template');\n" +
+            "    template.innerHTML = html;\n" +
+            "    var el = template.content.firstElementChild;\n" +
+            "    if (!el) return;\n" +
+            "    this.observer.unobserve(old);\n" +
+            "    old.replaceWith(el);\n" +
+            "    this.observer.observe(el);\n" +
+            "  },\n" +
+            "  receive: function(response) {\n" +
+            "    var v = this;\n" +
+            "    if (!response) return;\n" +
+            "    JSON.parse(response).forEach(function(block) {\n" +
+            "      delete v.requested[block[0]];\n" +
+            "      var old = v.find(block[0]);\n" +
+            "      if (old && old.classList.contains('" + RstVirtualPage.PLACEHOLDER_CLASS + "')) v.swap(old, block[1]);\n" +
+            "      if (+block[0] === window.__RstPreview.sync.waiting) window.__RstPreview.sync.scroll(window.__RstPreview.sync.target, window.__RstPreview.sync.ratio);\n" +
+            "    });\n" +
+            "    var anchor = v.pendingAnchor && document.getElementById(v.pendingAnchor);\n" +
+            "    if (anchor) {\n" +
+            "      v.pendingAnchor = null;\n" +
+            "      anchor.scrollIntoView();\n" +
+            "    }\n" +
+            "  },\n" +
+            "  update: function(changes) {\n" +
+            "    var v = this;\n" +
+            "    changes.forEach(function(change) {\n" +
+            "      var old = v.find(change[0]);\n" +
+            "      if (!old) return;\n" +
+            "      if (old.classList.contains('" + RstVirtualPage.PLACEHOLDER_CLASS + "')) old.style.height = change[2] + 'px';\n" +
+            "      else v.swap(old, change[1]);\n" +
+            "    });\n" +
+            "  },\n" +
+            "  reveal: function(id) {\n" +
+            "    this.pendingAnchor = id;\n" +
+            "    window.__IntelliJTools.blocksCallback('#' + id);\n" +
+            "  },\n" +
+            "  reportScroll: function() {\n" +
+            "    var el = document.elementFromPoint(document.body.clientWidth / 2, 1);\n" +
+            "    while (el && !el.hasAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "')) el = el.parentElement;\n" +
+            "    if (el) window.__IntelliJTools.blocksCallback('@' + el.getAttribute('" + RstVirtualPage.BLOCK_ATTRIBUTE + "') + ':' + Math.round(-el.getBoundingClientRect().top));\n" +
+            "  }\n" +
             "};\n";
 
-    public RstJcefPreviewPanel(@NotNull Project project) {
+    /**
+     * Creates a browser that shows nothing until it is {@linkplain #attach attached} to a file.
+     */
+    public RstJcefPreviewPanel() {
         super(generateUniqueUrl());
-        myProject = project;
+
+        // Local images are served from the VFS instead of rewriting their URLs in the HTML.
+        getJBCefClient().addRequestHandler(myCefRequestHandler, getCefBrowser());
 
         getJBCefClient().addLoadHandler(myCefLoadHandler = new CefLoadHandlerAdapter() {
             @Override
@@ -71,38 +309,355 @@ public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPrevi
                 browser.executeJavaScript("window.__IntelliJTools.openInBrowserCallback = function(link) {"
                         + myJSQueryOpenInBrowser.inject("link") + "}",
                         getCefBrowser().getURL(), 0);
+                browser.executeJavaScript("window.__IntelliJTools.reloadCallback = function() {"
+                        + myJSQueryReload.inject("'reload'") + "}",
+                        getCefBrowser().getURL(), 0);
+                browser.executeJavaScript("window.__IntelliJTools.blocksCallback = function(request) {"
+                        + myJSQueryBlocks.inject("request", "function(response) { window.__RstPreview.virtual.receive(response); }",
+                                                 "function(code, message) {}") + "}",
+                        getCefBrowser().getURL(), 0);
+                if (!isLoading) {
+                    myPageLoaded = true;
+                    RstVirtualPage virtualPage = myVirtualPage;
+                    int restoreScrollY = myRestoreScrollY;
+                    if (virtualPage != null) {
+                        browser.executeJavaScript("window.__RstPreview.virtual.init(" + virtualPage.getHeightsJson() + ", " +
+                                myTopBlock + ", " + myTopOffset + ");", getCefBrowser().getURL(), 0);
+                    } else if (restoreScrollY > 0 && myLastHtml != null) {
+                        browser.executeJavaScript("window.scrollTo(0, " + restoreScrollY + ");", getCefBrowser().getURL(), 0);
+                    }
+                    if (myLastHtml != null) myRestoreScrollY = -1;
+                    long loadStartNanos = myLoadStartNanos;
+                    if (loadStartNanos != 0) {
+                        myLoadStartNanos = 0;
+                        RstRenderDiagnostics.getInstance().record(myPath, RstRenderDiagnostics.Stage.PAGE_LOAD,
+                                System.nanoTime() - loadStartNanos);
+                    }
+                }
             }
         }, getCefBrowser());
 
         myJSQueryOpenInBrowser.addHandler(link -> {
-            if (!link.isEmpty()) BrowserUtil.browse(link);
+            String localPath = RstPreviewAssetCache.toLocalPath(link);
+            if (localPath != null) {
+                BrowserUtil.browse(new File(localPath));
+            } else if (!link.isEmpty()) {
+                BrowserUtil.browse(link);
+            }
+            return null;
+        });
+
+        myJSQueryReload.addHandler(ignored -> {
+            // The page no longer matches what we think is loaded; start over with a full load.
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (myLastHtml != null) reload(myLastHtml);
+            });
             return null;
         });
 
+        myJSQueryBlocks.addHandler(request -> {
+            RstVirtualPage page = myVirtualPage;
+            try {
+                if (request.startsWith("^")) {
+                    myScrollY = Integer.parseInt(request.substring(1));
+                    return null;
+                }
+                if (page == null || request.isEmpty()) return null;
+                if (request.startsWith("@")) {
+                    int colon = request.indexOf(':');
+                    myTopBlock = Integer.parseInt(request.substring(1, colon));
+                    myTopOffset = Integer.parseInt(request.substring(colon + 1));
+                    return null;
+                }
+                List<Integer> indices = new ArrayList<>();
+                if (request.startsWith("#")) {
+                    int index = page.findAnchor(request.substring(1));
+                    if (index >= 0) indices.add(index);
+                } else {
+                    for (String index : request.split(",")) indices.add(Integer.parseInt(index));
+                }
+                return new JBCefJSQuery.Response(page.getBlocksJson(indices));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return new JBCefJSQuery.Response(null, 1, "bad request: " + request);
+            }
+        });
+
         Disposer.register(this, myJSQueryOpenInBrowser);
+        Disposer.register(this, myJSQueryReload);
+        Disposer.register(this, myJSQueryBlocks);
 
         ApplicationManager.getApplication().getMessageBus().connect(this)
                 .subscribe(LafManagerListener.TOPIC, source -> this.render());
     }
 
+    /**
+     * Makes this browser the preview of {@code file}, with an empty page until a page is shown or
+     * {@linkplain #restore restored}. Called on the EDT; pages prepared before are not shown any more.
+     *
+     * @param file the previewed file; relative links and images resolve against its directory
+     */
+    void attach(@NotNull Project project, @NotNull VirtualFile file) {
+        myAttachCount++;
+        myPath = file.getPath();
+        VirtualFile directory = file.getParent();
+        myCefRequestHandler.setDocument(project, directory);
+        myBaseUrl = directory != null ? RstPreviewAssetCache.getBaseUrl(directory) : RstPreviewAssetCache.ORIGIN + "/";
+        synchronized (myPrepareLock) {
+            myShownId = ++myPreparedId;
+            myPreparedStylesheets = null;
+            myPreparedRootSignature = null;
+            myPreparedBlocks = List.of();
+            myPreparedVirtualPage = null;
+        }
+        myScrollY = 0;
+        myRestoreScrollY = -1;
+        myTopBlock = -1;
+        myTopOffset = 0;
+    }
+
+    /**
+     * Shows the page from {@code snapshot} where it was scrolled to. Called on the EDT after
+     * {@link #attach}.
+     */
+    void restore(@NotNull Snapshot snapshot) {
+        myScrollY = snapshot.scrollY();
+        myRestoreScrollY = snapshot.scrollY();
+        myTopBlock = snapshot.topBlock();
+        myTopOffset = snapshot.topOffset();
+        reload(snapshot.html());
+    }
+
+    /**
+     * Lets go of the page, leaving an empty browser for the next {@link #attach}. Called on the EDT.
+     *
+     * @return the page and its scroll position, or {@code null} if nothing was shown
+     */
+    @Nullable Snapshot detach() {
+        String html = myLastHtml;
+        Snapshot snapshot = html != null ? new Snapshot(html, myScrollY, myTopBlock, myTopOffset) : null;
+        myAttachCount++;
+        // An idle browser keeps nothing of its last page, so it costs only what the pool counts.
+        synchronized (myPrepareLock) {
+            myShownId = ++myPreparedId;
+            myPreparedStylesheets = null;
+            myPreparedRootSignature = null;
+            myPreparedBlocks = List.of();
+            myPreparedVirtualPage = null;
+        }
+        myLastHtml = null;
+        myVirtualPage = null;
+        myLineIndex = RstSourceLineIndex.EMPTY;
+        myRestoreScrollY = -1;
+        myCefRequestHandler.setDocument(null, null);
+        // An empty page frees the DOM; the next page only needs the scripts that come with every load.
+        if (myPageLoaded) {
+            getCefBrowser().executeJavaScript("window.__RstPreview.virtual.reset(); document.body.innerHTML = '';",
+                    getCefBrowser().getURL(), 0);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the length of the shown page, for estimating the memory the browser takes
+     */
+    int getPageLength() {
+        String html = myLastHtml;
+        return html != null ? html.length() : 0;
+    }
+
+    /**
+     * The page the browser loads once: the stylesheets and the body, with nothing of the renderer's
+     * {@code <head>}. Later pages only replace the body and, if they differ, the stylesheets.
+     */
+    static @NotNull String buildShell(@NotNull String baseUrl, @NotNull List<String> stylesheets, @NotNull String body) {
+        StringBuilder shell = new StringBuilder(body.length() + 512)
+                .append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><base href=\"")
+                .append(StringUtil.escapeXmlEntities(baseUrl)).append("\">");
+        for (String stylesheet : stylesheets) {
+            shell.append("<link rel=\"stylesheet\" data-rst-style href=\"").append(StringUtil.escapeXmlEntities(stylesheet))
+                 .append("\">");
+        }
+        return shell.append("</head>\n<body>").append(body).append("</body></html>").toString();
+    }
+
+    /**
+     * A page ready to show, together with a script that turns page {@code baseId} into it.
+     *
+     * @param stylesheets the theme and page stylesheets, in the order the shell links them
+     * @param body        the content of the shell's body; for a large document, its placeholders
+     * @param script      {@code null} if the body has to be replaced, empty if it is the same as page {@code baseId}
+     */
+    private record PreparedPage(long id, long baseId, @NotNull Style style, @NotNull String html,
+                                @NotNull String baseUrl, @NotNull List<String> stylesheets, @NotNull String body,
+                                @Nullable String script, @Nullable RstVirtualPage virtualPage,
+                                @NotNull RstSourceLineIndex lineIndex) implements Update {
+    }
+
+    /**
+     * Takes the stylesheets and body out of the page, computes the blocks that changed since the
+     * previous page and the script that patches them in. Only the body is parsed.
+     */
     @Override
-    protected @NotNull String prepareHtml(@NotNull String html) {
-        return html.replace("<head>", "<head>" + getCssStyleCodeToInject());
+    public @NotNull Update prepare(@NotNull String html) {
+        return prepare(html, false);
+    }
+
+    private @NotNull PreparedPage prepare(@NotNull String html, boolean reload) {
+        Style style = getCurrentStyle();
+        String baseUrl = myBaseUrl;
+        RstPreviewSettings settings = RstPreviewSettings.getInstance();
+        int thresholdKb = settings.getLargeDocumentThresholdKb();
+        boolean large = thresholdKb > 0 && html.length() >= thresholdKb * 1024L;
+        RstPreviewStyles.Page split = RstPreviewStyles.split(html);
+        List<String> stylesheets = new ArrayList<>();
+        stylesheets.add(RstPreviewStyles.register(getBuiltInCss(style == Style.DARCULA)));
+        stylesheets.addAll(split.stylesheets());
+        // A large page is indexed by block while it is split; html is kept as is for reloads.
+        Pair<String, RstSourceLineIndex> indexed = large
+                ? Pair.create(split.body(), RstSourceLineIndex.EMPTY)
+                : RstSourceLineIndex.extract(split.body());
+        String body = indexed.getFirst();
+        Document document = large || settings.isIncrementalDomUpdates() ? Jsoup.parseBodyFragment(body) : null;
+        RstVirtualPage virtualPage = large ? RstVirtualPage.build(document) : null;
+        RstSourceLineIndex lineIndex = virtualPage != null ? virtualPage.getLineIndex() : indexed.getSecond();
+        if (virtualPage != null) {
+            RstPreviewStyles.Page shell = RstPreviewStyles.split(virtualPage.getShell());
+            stylesheets.addAll(shell.stylesheets());
+            body = shell.body();
+        }
+
+        synchronized (myPrepareLock) {
+            long baseId = myPreparedId;
+            long id = ++myPreparedId;
+            // Blocks are only patched into a page styled the same way.
+            boolean sameStyles = stylesheets.equals(myPreparedStylesheets);
+            myPreparedStylesheets = List.copyOf(stylesheets);
+            String script;
+            if (virtualPage != null) {
+                myPreparedRootSignature = null;
+                script = prepareVirtualUpdate(virtualPage);
+            } else {
+                myPreparedVirtualPage = null;
+                if (document == null) myPreparedRootSignature = null;
+                script = document != null ? preparePatch(document) : null;
+            }
+            if (!sameStyles) script = null;
+            return new PreparedPage(id, baseId, style, html, baseUrl, List.copyOf(stylesheets), body, reload ? null : script,
+                    virtualPage, lineIndex);
+        }
     }
 
     @Override
-    public void setHtml(@NotNull String html) {
-        String basePath = myProject.getBasePath();
-        if (basePath != null) {
-            html = makeImageUrlsAbsolute(html, basePath);
+    public void show(@NotNull Update update) {
+        PreparedPage page = (PreparedPage) update;
+        if (page.id() <= myShownId) return;
+
+        boolean patch = page.script() != null && page.baseId() == myShownId && myPageLoaded &&
+                myLoadedStyle == page.style();
+        myShownId = page.id();
+        myLastHtml = page.html();
+        myVirtualPage = page.virtualPage();
+        myLineIndex = page.lineIndex();
+        myLoadedStyle = page.style();
+        if (patch) {
+            if (!page.script().isEmpty()) {
+                getCefBrowser().executeJavaScript(page.script(), getCefBrowser().getURL(), 0);
+            }
+        } else if (myPageLoaded) {
+            // The shell stays; only the body, and the stylesheets if they changed, go to the browser.
+            RstVirtualPage virtualPage = page.virtualPage();
+            String virtualArgs = virtualPage != null
+                    ? virtualPage.getHeightsJson() + ", " + myTopBlock + ", " + myTopOffset
+                    : "null, -1, 0";
+            getCefBrowser().executeJavaScript("window.__RstPreview.setPage(" + toJsString(page.baseUrl()) + ", " +
+                    toJsArray(page.stylesheets()) + ", " + toJsString(page.body()) + ", " + virtualArgs + ", " +
+                    myRestoreScrollY + ");", getCefBrowser().getURL(), 0);
+            myRestoreScrollY = -1;
+        } else {
+            myPageLoaded = false;
+            myLoadStartNanos = System.nanoTime();
+            super.setHtml(buildShell(page.baseUrl(), page.stylesheets(), page.body()));
         }
-        myLastHtml = html;
-        super.setHtml(html);
+        if (page.style() != getCurrentStyle()) render();
+    }
+
+    @Override
+    public void scrollToSourceLine(int line, int lineCount, double viewportRatio) {
+        if (!myPageLoaded) return;
+        String target = myLineIndex.find(line, lineCount).toJson();
+        getCefBrowser().executeJavaScript("window.__RstPreview.sync.scroll(" + target + ", " + (float) viewportRatio + ");",
+                getCefBrowser().getURL(), 0);
     }
 
     @Override
     public void render() {
-        if (myLastHtml != null) setHtml(myLastHtml);
+        // The page already shows myLastHtml; only a theme change needs its stylesheet swapped.
+        if (myLastHtml != null && myLoadedStyle != getCurrentStyle()) reload(myLastHtml);
+    }
+
+    /**
+     * Prepares {@code html} again in the background and replaces the body of the page with it.
+     */
+    void reload(@NotNull String html) {
+        int attachCount = myAttachCount;
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            PreparedPage page = prepare(html, true);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (attachCount == myAttachCount) show(page);
+            }, ignored -> isDisposed());
+        });
+    }
+
+    /**
+     * Large document mode: the browser gets only the shell of the page and requests blocks as they
+     * scroll into view. While the shell stays the same, edits only replace changed blocks.
+     */
+    private @Nullable String prepareVirtualUpdate(@NotNull RstVirtualPage page) {
+        RstVirtualPage previous = myPreparedVirtualPage;
+        myPreparedVirtualPage = page;
+        if (previous == null || !previous.getShell().equals(page.getShell())) return null;
+        String changes = page.getChangesJson(previous);
+        return changes != null ? "window.__RstPreview.virtual.update(" + changes + ");" : "";
+    }
+
+    /**
+     * Finds the top-level blocks that changed since the previous page, to let the browser splice
+     * them into the existing DOM, which keeps scroll position and leaves unchanged blocks untouched.
+     */
+    private @Nullable String preparePatch(@NotNull Document document) {
+        Element root = document.body();
+        StringBuilder rootSignature = new StringBuilder(root.attributes().html());
+        int depth = 0;
+        while (root.children().size() == 1 && root.ownText().isBlank() &&
+               PATCH_ROOT_CONTAINERS.contains(root.child(0).tagName())) {
+            root = root.child(0);
+            depth++;
+            rootSignature.append('/').append(root.tagName()).append(root.attributes().html());
+        }
+
+        List<String> oldBlocks = myPreparedBlocks;
+        boolean canPatch = rootSignature.toString().equals(myPreparedRootSignature);
+
+        myPreparedRootSignature = root.ownText().isBlank() ? rootSignature.toString() : null;
+        myPreparedBlocks = root.children().stream().map(Element::outerHtml).toList();
+        if (!canPatch || myPreparedRootSignature == null) return null;
+
+        List<String> newBlocks = myPreparedBlocks;
+        int common = Math.min(oldBlocks.size(), newBlocks.size());
+        int prefix = 0;
+        while (prefix < common && oldBlocks.get(prefix).equals(newBlocks.get(prefix))) prefix++;
+        int suffix = 0;
+        while (suffix < common - prefix &&
+               oldBlocks.get(oldBlocks.size() - 1 - suffix).equals(newBlocks.get(newBlocks.size() - 1 - suffix))) {
+            suffix++;
+        }
+
+        int deleteCount = oldBlocks.size() - prefix - suffix;
+        List<String> inserted = newBlocks.subList(prefix, newBlocks.size() - suffix);
+        if (deleteCount == 0 && inserted.isEmpty()) return "";
+
+        return "window.__RstPreview.patch(" + depth + ", " + prefix + ", " + deleteCount + ", " +
+               toJsString(String.join("\n", inserted)) + ");";
     }
 
     @Override
@@ -114,21 +669,47 @@ public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPrevi
     public void dispose() {
         super.dispose();
         getJBCefClient().removeLoadHandler(myCefLoadHandler, getCefBrowser());
+        getJBCefClient().removeRequestHandler(myCefRequestHandler, getCefBrowser());
     }
 
     private static @NotNull String generateUniqueUrl() {
         return ourClassUrl + "@" + ourCounter.incrementAndGet();
     }
 
-    private static @NotNull String getCssStyleCodeToInject() {
-        boolean isDarkTheme = !JBColor.isBright();
-        Style style = isDarkTheme ? Style.DARCULA : Style.DEFAULT;
-        String cssCodeToInject = ourLoadedStylesCache.get(style);
-        if (cssCodeToInject != null) return cssCodeToInject;
+    private static @NotNull Style getCurrentStyle() {
+        return JBColor.isBright() ? Style.DEFAULT : Style.DARCULA;
+    }
+
+    static @NotNull String toJsString(@NotNull String value) {
+        StringBuilder result = new StringBuilder(value.length() + 16).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> result.append("\\\"");
+                case '\\' -> result.append("\\\\");
+                case '\n' -> result.append("\\n");
+                case '\r' -> result.append("\\r");
+                case '\u2028' -> result.append("\\u2028");
+                case '\u2029' -> result.append("\\u2029");
+                default -> {
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        result.append(c);
+                    }
+                }
+            }
+        }
+        return result.append('"').toString();
+    }
 
-        cssCodeToInject = "<style>" + getBuiltInCss(isDarkTheme) + "</style>";
-        ourLoadedStylesCache.put(style, cssCodeToInject);
-        return cssCodeToInject;
+    private static @NotNull String toJsArray(@NotNull List<String> values) {
+        StringBuilder result = new StringBuilder("[");
+        for (String value : values) {
+            if (result.length() > 1) result.append(',');
+            result.append(toJsString(value));
+        }
+        return result.append(']').toString();
     }
 
     private static @NotNull String getBuiltInCss(boolean isDarcula) {
@@ -168,27 +749,4 @@ public final class RstJcefPreviewPanel extends JCEFHtmlPanel implements RstPrevi
                    "img { max-width: 100%; height: auto; }\n";
         }
     }
-
-    private static @NotNull String makeImageUrlsAbsolute(@NotNull String html, @NotNull String basePath) {
-        Document document = Jsoup.parse(html);
-        Elements elements = document.getElementsByTag("img");
-
-        for (Element element : elements) {
-            String src = element.attr("src");
-            URI uri = null;
-            try {
-                uri = new URI(src);
-                if (uri.getScheme() != null && !uri.getScheme().equals("file")) continue;
-            } catch (URISyntaxException e) {
-                // Assume file scheme for malformed URIs
-            }
-
-            Path originalPath = Paths.get((uri != null && uri.getPath() != null) ? uri.getPath() : src);
-            if (originalPath.isAbsolute()) continue;
-
-            element.attr("src", Paths.get(basePath, originalPath.toString()).toString());
-        }
-
-        return document.outerHtml();
-    }
 }
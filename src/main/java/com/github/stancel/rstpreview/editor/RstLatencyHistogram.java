@@ -0,0 +1,79 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in microseconds. Buckets are logarithmic with eight linear
+ * sub-buckets per power of two, so percentiles are accurate to within 12.5% over the whole range
+ * at a fixed size of about 4 KB.
+ */
+final class RstLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray myCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong myCount = new AtomicLong();
+    private final AtomicLong myMax = new AtomicLong();
+
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        myCounts.incrementAndGet(bucketOf(value));
+        myCount.incrementAndGet();
+        myMax.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount() {
+        return myCount.get();
+    }
+
+    long getMax() {
+        return myMax.get();
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.95 for the 95th percentile
+     * @return the upper bound of the bucket holding that percentile, or 0 if nothing was recorded
+     */
+    long getPercentile(double fraction) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = myCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            myCounts.set(i, 0);
+        }
+        myCount.set(0);
+        myMax.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,113 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.util.PathUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Renders with Pandoc's reStructuredText reader. Its page looks different from rst2html's and it
+ * supports fewer directives, so it is only used when chosen for a project.
+ */
+public final class RstPandocRendererBackend implements RstRendererBackend {
+    private static final Logger LOG = Logger.getInstance(RstPandocRendererBackend.class);
+    public static final String ID = "pandoc";
+    private static final long LOOKUP_INTERVAL_MS = 60_000L;
+
+    // Looked up again now and then while Pandoc is missing, so installing it doesn't need a restart.
+    private volatile @Nullable Path myPandoc;
+    private volatile long myLookupTime;
+
+    @Override
+    public @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @NotNull String getDisplayName() {
+        return "Pandoc";
+    }
+
+    @Override
+    public @NotNull Set<Capability> getCapabilities() {
+        return EnumSet.noneOf(Capability.class);
+    }
+
+    @Override
+    public @Nullable String checkHealth() {
+        return findPandoc() != null ? null : "pandoc not found in PATH";
+    }
+
+    @Override
+    public @Nullable String getOutputFingerprint(@NotNull Request request) {
+        Path pandoc = findPandoc();
+        if (pandoc == null) return null;
+        try {
+            return "pandoc " + pandoc + " " + Files.getLastModifiedTime(pandoc).toMillis();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public @Nullable Pair<String, String> render(@NotNull Request request) {
+        Path pandoc = findPandoc();
+        if (pandoc == null || !request.getArgs().isEmpty()) return null;
+
+        GeneralCommandLine commandLine = new GeneralCommandLine(pandoc.toString(), "--from=rst", "--to=html5", "--standalone",
+                "--metadata=pagetitle:" + PathUtil.getFileName(request.getTrace().getPath()));
+        if (request.getWorkDir() != null) {
+            commandLine.setWorkDirectory(request.getWorkDir());
+        }
+        try {
+            ProcessOutput output = RstPreviewProvider.runProcess(commandLine, request.getText(), request.getIndicator(), request.getTrace());
+            request.processFinished(output);
+            return RstPreviewProvider.toResult("pandoc", output);
+        } catch (ExecutionException e) {
+            LOG.warn("Failed to run pandoc", e);
+            return Pair.create("", "<p><b>Error running pandoc:</b> " + RstPreviewProvider.escapeHtml(String.valueOf(e.getMessage())) + "</p>");
+        }
+    }
+
+    private @Nullable Path findPandoc() {
+        Path pandoc = myPandoc;
+        if (pandoc != null || System.currentTimeMillis() - myLookupTime < LOOKUP_INTERVAL_MS) return pandoc;
+
+        List<Path> candidates = new ArrayList<>();
+        String pathEnv = System.getenv("PATH");
+        if (pathEnv != null) {
+            for (String dir : pathEnv.split(File.pathSeparator)) {
+                if (!dir.isEmpty()) candidates.add(Paths.get(dir, SystemInfo.isWindows ? "pandoc.exe" : "pandoc"));
+            }
+        }
+        if (SystemInfo.isMac) {
+            candidates.add(Paths.get("/opt/homebrew/bin/pandoc"));
+            candidates.add(Paths.get("/usr/local/bin/pandoc"));
+        }
+
+        for (Path candidate : candidates) {
+            if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                pandoc = candidate;
+                break;
+            }
+        }
+        myPandoc = pandoc;
+        myLookupTime = System.currentTimeMillis();
+        return pandoc;
+    }
+}
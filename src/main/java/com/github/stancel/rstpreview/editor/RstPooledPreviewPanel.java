@@ -0,0 +1,274 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The JCEF preview of a file, which borrows a browser from {@link RstJcefBrowserPool} while it is
+ * shown. When the pool takes the browser back, the preview hibernates: it keeps only a deflated
+ * copy of its page and where it was scrolled to, and shows them again once it has a browser.
+ */
+final class RstPooledPreviewPanel implements RstPreviewPanel {
+    private final @NotNull Project myProject;
+    private final @NotNull VirtualFile myFile;
+    private final @NotNull JPanel myComponent = new JPanel(new BorderLayout());
+
+    // Changed on the EDT; prepare() reads both to tell which browser it prepared a page for.
+    private volatile @Nullable RstJcefPreviewPanel myBrowser;
+    private volatile int myGeneration;
+    // The rest is used on the EDT only.
+    private boolean myShowing;
+    private long myHiddenSinceNanos;
+    private @Nullable CompletableFuture<Hibernated> mySnapshot;
+    // The snapshot being restored into the browser, until its page is shown or a newer one is.
+    private @Nullable CompletableFuture<Hibernated> myRestoring;
+    private int mySnapshotChars;
+    private boolean myPageLost;
+    private boolean myDisposed;
+
+    private record Prepared(@NotNull RstJcefPreviewPanel browser, int generation, @NotNull String html,
+                            @NotNull Update update) implements Update {
+    }
+
+    private record Unprepared(@NotNull String html) implements Update {
+    }
+
+    /**
+     * A page kept while the preview has no browser.
+     *
+     * @param length the length of the page in UTF-8
+     */
+    private record Hibernated(byte @NotNull [] deflated, int length, int scrollY, int topBlock, int topOffset) {
+        static @NotNull Hibernated of(@NotNull RstJcefPreviewPanel.Snapshot snapshot) {
+            byte[] bytes = snapshot.html().getBytes(StandardCharsets.UTF_8);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return new Hibernated(out.toByteArray(), bytes.length, snapshot.scrollY(), snapshot.topBlock(),
+                        snapshot.topOffset());
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @NotNull RstJcefPreviewPanel.Snapshot restore() {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(deflated);
+                byte[] bytes = new byte[length];
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    int count = inflater.inflate(bytes, inflated, length - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    inflated += count;
+                }
+                return new RstJcefPreviewPanel.Snapshot(new String(bytes, 0, inflated, StandardCharsets.UTF_8),
+                        scrollY, topBlock, topOffset);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    RstPooledPreviewPanel(@NotNull Project project, @NotNull VirtualFile file) {
+        myProject = project;
+        myFile = file;
+    }
+
+    @Override
+    public @NotNull Update prepare(@NotNull String html) {
+        int generation = myGeneration;
+        RstJcefPreviewPanel browser = myBrowser;
+        // A browser handed to another preview meanwhile diffs against a page it never showed, which
+        // only costs it a full update.
+        return browser != null ? new Prepared(browser, generation, html, browser.prepare(html)) : new Unprepared(html);
+    }
+
+    @Override
+    public void show(@NotNull Update update) {
+        if (myDisposed) return;
+        String html = update instanceof Prepared prepared ? prepared.html() : ((Unprepared) update).html();
+        myRestoring = null;
+        RstJcefPreviewPanel browser = myBrowser;
+        if (browser == null) {
+            keep(html);
+        } else if (update instanceof Prepared prepared && prepared.browser() == browser && prepared.generation() == myGeneration) {
+            browser.show(prepared.update());
+        } else {
+            browser.reload(html);
+        }
+    }
+
+    /**
+     * Replaces the snapshot of a hibernated preview with a newer page, keeping the scroll position.
+     */
+    private void keep(@NotNull String html) {
+        CompletableFuture<Hibernated> previous = mySnapshot;
+        mySnapshot = CompletableFuture.supplyAsync(() -> {
+            Hibernated old = previous != null ? previous.join() : null;
+            return Hibernated.of(old != null ? new RstJcefPreviewPanel.Snapshot(html, old.scrollY(), old.topBlock(), old.topOffset())
+                                             : new RstJcefPreviewPanel.Snapshot(html, 0, -1, 0));
+        }, AppExecutorUtil.getAppExecutorService());
+        mySnapshotChars = html.length();
+        myPageLost = false;
+        RstJcefBrowserPool.getInstance().snapshotChanged(this);
+    }
+
+    @Override
+    public boolean setShowing(boolean showing) {
+        if (myDisposed || showing == myShowing) return false;
+        myShowing = showing;
+        RstJcefBrowserPool pool = RstJcefBrowserPool.getInstance();
+        if (!showing) {
+            myHiddenSinceNanos = System.nanoTime();
+            pool.hidden();
+            return false;
+        }
+
+        boolean pageLost = false;
+        if (myBrowser == null) {
+            RstJcefPreviewPanel browser = pool.acquire(this);
+            CompletableFuture<Hibernated> snapshot = mySnapshot;
+            mySnapshot = null;
+            pageLost = myPageLost;
+            myPageLost = false;
+            myGeneration++;
+            myBrowser = browser;
+            browser.attach(myProject, myFile);
+            myComponent.add(browser.getComponent(), BorderLayout.CENTER);
+            myComponent.revalidate();
+            myComponent.repaint();
+            if (snapshot != null) restore(browser, snapshot);
+        }
+        pool.shown(this);
+        return pageLost;
+    }
+
+    /**
+     * Shows a snapshot once it is deflated and inflated again off the EDT, unless the preview has
+     * shown a newer page or lost the browser by then.
+     */
+    private void restore(@NotNull RstJcefPreviewPanel browser, @NotNull CompletableFuture<Hibernated> snapshot) {
+        myRestoring = snapshot;
+        snapshot.thenApplyAsync(Hibernated::restore, AppExecutorUtil.getAppExecutorService())
+                .whenComplete((restored, error) -> ApplicationManager.getApplication().invokeLater(() -> {
+                    if (myRestoring != snapshot || myBrowser != browser) return;
+                    myRestoring = null;
+                    if (restored != null) browser.restore(restored);
+                }, ignored -> myDisposed));
+    }
+
+    /**
+     * Gives the browser back, keeping a snapshot of the page. Called by the pool on the EDT.
+     *
+     * @return the browser, or {@code null} if the preview had none
+     */
+    @Nullable RstJcefPreviewPanel hibernate() {
+        RstJcefPreviewPanel browser = myBrowser;
+        if (browser == null) return null;
+        myBrowser = null;
+        myGeneration++;
+        RstJcefPreviewPanel.Snapshot snapshot = browser.detach();
+        myComponent.remove(browser.getComponent());
+        myComponent.repaint();
+        if (snapshot != null) {
+            mySnapshot = CompletableFuture.supplyAsync(() -> Hibernated.of(snapshot), AppExecutorUtil.getAppExecutorService());
+            mySnapshotChars = snapshot.html().length();
+        } else if (myRestoring != null) {
+            // Hidden again before the snapshot was shown, so it is still the page.
+            mySnapshot = myRestoring;
+        }
+        myRestoring = null;
+        return browser;
+    }
+
+    /**
+     * Lets go of the snapshot to stay within the memory budget; the page is rendered again when shown.
+     */
+    void dropSnapshot() {
+        if (mySnapshot == null) return;
+        mySnapshot = null;
+        myPageLost = true;
+    }
+
+    boolean hasBrowser() {
+        return myBrowser != null;
+    }
+
+    boolean isShowing() {
+        return myShowing;
+    }
+
+    long getHiddenSinceNanos() {
+        return myHiddenSinceNanos;
+    }
+
+    int getPageLength() {
+        RstJcefPreviewPanel browser = myBrowser;
+        return browser != null ? browser.getPageLength() : 0;
+    }
+
+    /**
+     * @return the size of the snapshot, or of the page while it is still being deflated
+     */
+    long getSnapshotBytes() {
+        CompletableFuture<Hibernated> snapshot = mySnapshot;
+        if (snapshot == null) return 0;
+        Hibernated hibernated = snapshot.getNow(null);
+        return hibernated != null ? hibernated.deflated().length : mySnapshotChars;
+    }
+
+    @Override
+    public void render() {
+        RstJcefPreviewPanel browser = myBrowser;
+        if (browser != null) browser.render();
+    }
+
+    @Override
+    public void scrollToSourceLine(int line, int lineCount, double viewportRatio) {
+        RstJcefPreviewPanel browser = myBrowser;
+        if (browser != null) browser.scrollToSourceLine(line, lineCount, viewportRatio);
+    }
+
+    @Override
+    public @NotNull JComponent getComponent() {
+        return myComponent;
+    }
+
+    @Override
+    public void dispose() {
+        myDisposed = true;
+        RstJcefPreviewPanel browser = myBrowser;
+        myBrowser = null;
+        myGeneration++;
+        mySnapshot = null;
+        myRestoring = null;
+        if (browser != null) {
+            browser.detach();
+            myComponent.remove(browser.getComponent());
+        }
+        RstJcefBrowserPool.getInstance().removed(this, browser);
+    }
+}
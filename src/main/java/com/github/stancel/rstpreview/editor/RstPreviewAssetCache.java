@@ -0,0 +1,192 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local files referenced by JCEF previews in one project, such as images, read from the VFS and
+ * kept in memory least-recently-used first within {@link #BUDGET_BYTES}. Previews address them
+ * below {@link #ORIGIN}, with the document's directory as the page base, so rst2html output can
+ * use relative paths unchanged.
+ * <p>
+ * The files share the page's origin, so a script in a document could read anything served. Only
+ * files below the document's directory or in the project's content roots are served.
+ */
+public final class RstPreviewAssetCache {
+    private static final Logger LOG = Logger.getInstance(RstPreviewAssetCache.class);
+
+    static final String ORIGIN = "http://rst-preview.localhost";
+    private static final long BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_IMAGE_DIMENSION = 2560;
+    private static final Set<String> SCALABLE_TYPES = Set.of("image/png", "image/jpeg", "image/bmp");
+
+    /**
+     * @param timeStamp the VFS time stamp of the file this was read from
+     */
+    record Asset(byte @NotNull [] bytes, @NotNull String mimeType, long timeStamp) {}
+
+    private final @NotNull Project myProject;
+    private final LinkedHashMap<String, Asset> myAssets = new LinkedHashMap<>(32, 0.75f, true);
+    private long myUsedBytes;
+
+    public RstPreviewAssetCache(@NotNull Project project) {
+        myProject = project;
+    }
+
+    public static RstPreviewAssetCache getInstance(@NotNull Project project) {
+        return project.getService(RstPreviewAssetCache.class);
+    }
+
+    /**
+     * @return the URL relative paths in a preview of a file in {@code directory} resolve against
+     */
+    static @NotNull String getBaseUrl(@NotNull VirtualFile directory) {
+        String path = directory.getPath();
+        try {
+            return new URI("http", "rst-preview.localhost", (path.startsWith("/") ? "" : "/") + path + "/", null).toASCIIString();
+        } catch (URISyntaxException e) {
+            return ORIGIN + "/";
+        }
+    }
+
+    /**
+     * @return the local path {@code url} refers to, or {@code null} if it is not a preview asset URL
+     * or the path has {@code .} or {@code ..} segments left after the browser normalized it
+     */
+    static @Nullable String toLocalPath(@NotNull String url) {
+        if (!url.startsWith(ORIGIN + "/")) return null;
+        try {
+            String path = new URI(url).getPath();
+            if (path == null || path.indexOf('\\') >= 0) return null;
+            for (String segment : StringUtil.split(path, "/")) {
+                if (segment.equals(".") || segment.equals("..")) return null;
+            }
+            // Windows paths are served as /C:/dir/file.
+            return path.length() > 2 && path.charAt(2) == ':' ? path.substring(1) : path;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the asset at {@code url}. Call it on a background thread; cached assets are returned
+     * without touching the file system.
+     *
+     * @param documentDirectory the directory of the previewed file, whose files are served even
+     *                          when it is outside the project
+     * @return the asset, or {@code null} if there is no such file or it may not be served
+     */
+    @Nullable Asset load(@NotNull String url, @Nullable VirtualFile documentDirectory) {
+        String path = toLocalPath(url);
+        if (path == null) return null;
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+        if (file == null || file.isDirectory()) return null;
+        // Symbolic links must not lead out either.
+        VirtualFile canonical = file.getCanonicalFile();
+        if (!isServed(file, documentDirectory) ||
+            canonical != null && !canonical.equals(file) && !isServed(canonical, documentDirectory)) {
+            LOG.debug("Refused preview asset outside the document directory and project: " + path);
+            return null;
+        }
+
+        synchronized (this) {
+            Asset cached = myAssets.get(path);
+            if (cached != null && cached.timeStamp() == file.getTimeStamp()) return cached;
+        }
+
+        Asset asset;
+        try {
+            String mimeType = URLConnection.guessContentTypeFromName(file.getName());
+            if (mimeType == null) mimeType = file.getName().toLowerCase(Locale.ROOT).endsWith(".svg") ? "image/svg+xml" : "application/octet-stream";
+            byte[] bytes = file.contentsToByteArray();
+            if (SCALABLE_TYPES.contains(mimeType) && RstPreviewSettings.getInstance().isDownscaleLargeImages()) {
+                byte[] scaled = downscale(bytes, mimeType);
+                if (scaled != null) {
+                    bytes = scaled;
+                    if (!mimeType.equals("image/jpeg")) mimeType = "image/png";
+                }
+            }
+            asset = new Asset(bytes, mimeType, file.getTimeStamp());
+        } catch (IOException e) {
+            LOG.debug("Failed to read preview asset " + path, e);
+            return null;
+        }
+
+        synchronized (this) {
+            Asset previous = myAssets.put(path, asset);
+            if (previous != null) myUsedBytes -= previous.bytes().length;
+            myUsedBytes += asset.bytes().length;
+            Iterator<Map.Entry<String, Asset>> iterator = myAssets.entrySet().iterator();
+            while (myUsedBytes > BUDGET_BYTES && iterator.hasNext()) {
+                myUsedBytes -= iterator.next().getValue().bytes().length;
+                iterator.remove();
+            }
+        }
+        return asset;
+    }
+
+    private boolean isServed(@NotNull VirtualFile file, @Nullable VirtualFile documentDirectory) {
+        if (documentDirectory != null && VfsUtilCore.isAncestor(documentDirectory, file, true)) return true;
+        return ReadAction.compute(() -> !myProject.isDisposed() && ProjectFileIndex.getInstance(myProject).isInContent(file));
+    }
+
+    /**
+     * Shrinks images larger than {@link #MAX_IMAGE_DIMENSION} in either direction, which the preview
+     * would only scale down to its width anyway.
+     *
+     * @return the re-encoded image, or {@code null} if it is small enough or can't be decoded
+     */
+    private static byte @Nullable [] downscale(byte @NotNull [] bytes, @NotNull String mimeType) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (image == null) return null;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= MAX_IMAGE_DIMENSION && height <= MAX_IMAGE_DIMENSION) return null;
+
+        double scale = (double) MAX_IMAGE_DIMENSION / Math.max(width, height);
+        int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+        int scaledHeight = Math.max(1, (int) Math.round(height * scale));
+        boolean jpeg = mimeType.equals("image/jpeg");
+        BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+        return ImageIO.write(scaled, jpeg ? "jpg" : "png", out) ? out.toByteArray() : null;
+    }
+
+    synchronized void clear() {
+        myAssets.clear();
+        myUsedBytes = 0;
+    }
+}
@@ -1,23 +1,53 @@
 // Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
 package com.github.stancel.rstpreview.editor;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import com.intellij.openapi.util.NlsContexts;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.SimpleListCellRenderer;
+import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.components.JBRadioButton;
 import com.intellij.ui.jcef.JBCefApp;
 import com.intellij.util.ui.FormBuilder;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
 
 public class RstPreviewConfigurable implements Configurable {
+    private final @NotNull Project myProject;
     private TextFieldWithBrowseButton myRst2HtmlPathField;
+    private JBLabel myToolchainLabel;
     private JBRadioButton myJcefRadioButton;
     private JBRadioButton mySwingRadioButton;
+    private JBCheckBox myUseWorkerCheckBox;
+    private JBCheckBox myBuiltInRendererCheckBox;
+    private ComboBox<String> myRendererBackendComboBox;
+    private JBLabel myBackendsLabel;
+    private JBIntSpinner myCacheSizeSpinner;
+    private JBIntSpinner myDiskCacheSizeSpinner;
+    private JBCheckBox myIncrementalDomCheckBox;
+    private JBCheckBox myDownscaleImagesCheckBox;
+    private JBCheckBox myIncrementalRenderingCheckBox;
+    private JBCheckBox myPrewarmCheckBox;
+    private JBCheckBox mySyncScrollingCheckBox;
+    private JBIntSpinner myMaxConcurrentRendersSpinner;
+    private JBIntSpinner myLargeDocumentThresholdSpinner;
+    private JBIntSpinner myBrowserPoolSizeSpinner;
+    private JBIntSpinner myPreviewMemoryBudgetSpinner;
+
+    public RstPreviewConfigurable(@NotNull Project project) {
+        myProject = project;
+    }
 
     @Override
     public @NlsContexts.ConfigurableName String getDisplayName() {
@@ -31,6 +61,28 @@ public class RstPreviewConfigurable implements Configurable {
                 .withTitle("Select rst2html Executable")
                 .withDescription("Select the path to rst2html or rst2html.py");
         myRst2HtmlPathField.addBrowseFolderListener(null, descriptor);
+        myToolchainLabel = new JBLabel();
+
+        myUseWorkerCheckBox = new JBCheckBox("Keep a docutils worker process running (faster previews)");
+        myBuiltInRendererCheckBox = new JBCheckBox("Render common reStructuredText in-process, using docutils only for the rest (pages look different)");
+        myRendererBackendComboBox = new ComboBox<>();
+        myRendererBackendComboBox.addItem(RstPreviewProjectSettings.AUTOMATIC);
+        for (RstRendererBackend backend : RstRendererBackend.EP_NAME.getExtensionList()) {
+            myRendererBackendComboBox.addItem(backend.getId());
+        }
+        myRendererBackendComboBox.setRenderer(SimpleListCellRenderer.create("", id -> {
+            if (id.isEmpty()) return "Fastest measured with docutils output";
+            RstRendererBackend backend = findBackend(id);
+            return backend != null ? backend.getDisplayName() : id;
+        }));
+        myBackendsLabel = new JBLabel();
+
+        myCacheSizeSpinner = new JBIntSpinner(32, 0, 1024, 8);
+        myDiskCacheSizeSpinner = new JBIntSpinner(256, 0, 8192, 64);
+        myIncrementalRenderingCheckBox = new JBCheckBox("Re-render only the edited sections of large documents");
+        myMaxConcurrentRendersSpinner = new JBIntSpinner(2, 1, 32);
+        myPrewarmCheckBox = new JBCheckBox("Render restored, nearby and recently opened files in the background");
+        mySyncScrollingCheckBox = new JBCheckBox("Scroll the preview along with the editor");
 
         myJcefRadioButton = new JBRadioButton("JCEF (Chromium-based, recommended)");
         mySwingRadioButton = new JBRadioButton("Swing (basic HTML support)");
@@ -39,7 +91,18 @@ public class RstPreviewConfigurable implements Configurable {
         panelGroup.add(myJcefRadioButton);
         panelGroup.add(mySwingRadioButton);
 
+        myIncrementalDomCheckBox = new JBCheckBox("Update the JCEF preview in place instead of reloading the page");
+        myDownscaleImagesCheckBox = new JBCheckBox("Downscale very large images in the JCEF preview");
+        myLargeDocumentThresholdSpinner = new JBIntSpinner(2048, 0, 1024 * 1024, 256);
+        myBrowserPoolSizeSpinner = new JBIntSpinner(4, 1, 64);
+        myPreviewMemoryBudgetSpinner = new JBIntSpinner(512, 64, 16384, 64);
+
         if (!JBCefApp.isSupported()) {
+            myIncrementalDomCheckBox.setEnabled(false);
+            myDownscaleImagesCheckBox.setEnabled(false);
+            myLargeDocumentThresholdSpinner.setEnabled(false);
+            myBrowserPoolSizeSpinner.setEnabled(false);
+            myPreviewMemoryBudgetSpinner.setEnabled(false);
             myJcefRadioButton.setEnabled(false);
             myJcefRadioButton.setText("JCEF (not available on this platform)");
         }
@@ -51,9 +114,26 @@ public class RstPreviewConfigurable implements Configurable {
 
         return FormBuilder.createFormBuilder()
                 .addLabeledComponent(new JBLabel("rst2html executable:"), myRst2HtmlPathField)
-                .addComponent(new JBLabel("<html><small>Path to rst2html command. Install with: <code>pip install docutils</code></small></html>"))
+                .addComponent(new JBLabel("<html><small>Path to rst2html command; leave empty to detect it. Install with: <code>pip install docutils</code></small></html>"))
+                .addComponent(myToolchainLabel)
+                .addComponent(myUseWorkerCheckBox)
+                .addComponent(myBuiltInRendererCheckBox)
+                .addLabeledComponent(new JBLabel("Renderer for this project:"), myRendererBackendComboBox)
+                .addComponent(myBackendsLabel)
+                .addLabeledComponent(new JBLabel("Rendered preview cache (MB):"), myCacheSizeSpinner)
+                .addLabeledComponent(new JBLabel("Rendered preview cache on disk (MB, 0 = off):"), myDiskCacheSizeSpinner)
+                .addComponent(myIncrementalRenderingCheckBox)
+                .addLabeledComponent(new JBLabel("Maximum concurrent rst2html processes:"), myMaxConcurrentRendersSpinner)
+                .addComponent(myPrewarmCheckBox)
                 .addVerticalGap(10)
                 .addLabeledComponent(new JBLabel("Preview panel type:"), panelTypePanel)
+                .addComponent(myIncrementalDomCheckBox)
+                .addComponent(myDownscaleImagesCheckBox)
+                .addComponent(mySyncScrollingCheckBox)
+                .addLabeledComponent(new JBLabel("Render only the visible part of pages larger than (KB, 0 = never):"),
+                        myLargeDocumentThresholdSpinner)
+                .addLabeledComponent(new JBLabel("JCEF browsers shared by previews:"), myBrowserPoolSizeSpinner)
+                .addLabeledComponent(new JBLabel("Memory for JCEF previews, estimated (MB):"), myPreviewMemoryBudgetSpinner)
                 .addComponentFillVertically(new JPanel(), 0)
                 .getPanel();
     }
@@ -62,20 +142,82 @@ public class RstPreviewConfigurable implements Configurable {
     public boolean isModified() {
         RstPreviewSettings settings = RstPreviewSettings.getInstance();
         return !myRst2HtmlPathField.getText().equals(settings.getRst2HtmlCommand()) ||
-                !getSelectedPanel().equals(settings.getCurrentPanel());
+                !getSelectedPanel().equals(settings.getCurrentPanel()) ||
+                myUseWorkerCheckBox.isSelected() != settings.isUseDocutilsWorker() ||
+                myBuiltInRendererCheckBox.isSelected() != settings.isUseBuiltInRenderer() ||
+                !getSelectedBackend().equals(RstPreviewProjectSettings.getInstance(myProject).getRendererBackend()) ||
+                myCacheSizeSpinner.getNumber() != settings.getRenderCacheSizeMb() ||
+                myDiskCacheSizeSpinner.getNumber() != settings.getDiskCacheSizeMb() ||
+                myIncrementalDomCheckBox.isSelected() != settings.isIncrementalDomUpdates() ||
+                myDownscaleImagesCheckBox.isSelected() != settings.isDownscaleLargeImages() ||
+                myIncrementalRenderingCheckBox.isSelected() != settings.isIncrementalRendering() ||
+                myMaxConcurrentRendersSpinner.getNumber() != settings.getMaxConcurrentRenders() ||
+                myPrewarmCheckBox.isSelected() != settings.isPrewarmPreviews() ||
+                mySyncScrollingCheckBox.isSelected() != settings.isSyncScrolling() ||
+                myLargeDocumentThresholdSpinner.getNumber() != settings.getLargeDocumentThresholdKb() ||
+                myBrowserPoolSizeSpinner.getNumber() != settings.getBrowserPoolSize() ||
+                myPreviewMemoryBudgetSpinner.getNumber() != settings.getPreviewMemoryBudgetMb();
     }
 
     @Override
     public void apply() {
         RstPreviewSettings settings = RstPreviewSettings.getInstance();
-        settings.setRst2HtmlCommand(myRst2HtmlPathField.getText());
+        if (!myRst2HtmlPathField.getText().equals(settings.getRst2HtmlCommand())) {
+            settings.setRst2HtmlCommand(myRst2HtmlPathField.getText());
+            RstToolchainService.getInstance().invalidate();
+        }
         settings.setCurrentPanel(getSelectedPanel());
+        settings.setUseDocutilsWorker(myUseWorkerCheckBox.isSelected());
+        settings.setUseBuiltInRenderer(myBuiltInRendererCheckBox.isSelected());
+        RstPreviewProjectSettings.getInstance(myProject).setRendererBackend(getSelectedBackend());
+        settings.setRenderCacheSizeMb(myCacheSizeSpinner.getNumber());
+        if (myDiskCacheSizeSpinner.getNumber() != settings.getDiskCacheSizeMb()) {
+            settings.setDiskCacheSizeMb(myDiskCacheSizeSpinner.getNumber());
+            ApplicationManager.getApplication().executeOnPooledThread(() -> RstRenderDiskCache.getInstance().trimToBudget());
+        }
+        settings.setIncrementalDomUpdates(myIncrementalDomCheckBox.isSelected());
+        if (myDownscaleImagesCheckBox.isSelected() != settings.isDownscaleLargeImages()) {
+            settings.setDownscaleLargeImages(myDownscaleImagesCheckBox.isSelected());
+            for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+                RstPreviewAssetCache.getInstance(project).clear();
+            }
+        }
+        settings.setIncrementalRendering(myIncrementalRenderingCheckBox.isSelected());
+        settings.setMaxConcurrentRenders(myMaxConcurrentRendersSpinner.getNumber());
+        settings.setPrewarmPreviews(myPrewarmCheckBox.isSelected());
+        settings.setSyncScrolling(mySyncScrollingCheckBox.isSelected());
+        settings.setLargeDocumentThresholdKb(myLargeDocumentThresholdSpinner.getNumber());
+        settings.setBrowserPoolSize(myBrowserPoolSizeSpinner.getNumber());
+        settings.setPreviewMemoryBudgetMb(myPreviewMemoryBudgetSpinner.getNumber());
+        RstRenderCache.getInstance().trimToBudget();
+        RstJcefBrowserPool.getInstance().trim();
     }
 
     @Override
     public void reset() {
         RstPreviewSettings settings = RstPreviewSettings.getInstance();
         myRst2HtmlPathField.setText(settings.getRst2HtmlCommand());
+        updateToolchainLabel();
+        myUseWorkerCheckBox.setSelected(settings.isUseDocutilsWorker());
+        myBuiltInRendererCheckBox.setSelected(settings.isUseBuiltInRenderer());
+        // A backend whose plugin was removed is shown by its id, so opening the settings keeps the choice.
+        String backend = RstPreviewProjectSettings.getInstance(myProject).getRendererBackend();
+        if (((DefaultComboBoxModel<String>) myRendererBackendComboBox.getModel()).getIndexOf(backend) < 0) {
+            myRendererBackendComboBox.addItem(backend);
+        }
+        myRendererBackendComboBox.setSelectedItem(backend);
+        updateBackendsLabel();
+        myCacheSizeSpinner.setNumber(settings.getRenderCacheSizeMb());
+        myDiskCacheSizeSpinner.setNumber(settings.getDiskCacheSizeMb());
+        myIncrementalDomCheckBox.setSelected(settings.isIncrementalDomUpdates());
+        myDownscaleImagesCheckBox.setSelected(settings.isDownscaleLargeImages());
+        myIncrementalRenderingCheckBox.setSelected(settings.isIncrementalRendering());
+        myMaxConcurrentRendersSpinner.setNumber(settings.getMaxConcurrentRenders());
+        myPrewarmCheckBox.setSelected(settings.isPrewarmPreviews());
+        mySyncScrollingCheckBox.setSelected(settings.isSyncScrolling());
+        myLargeDocumentThresholdSpinner.setNumber(settings.getLargeDocumentThresholdKb());
+        myBrowserPoolSizeSpinner.setNumber(settings.getBrowserPoolSize());
+        myPreviewMemoryBudgetSpinner.setNumber(settings.getPreviewMemoryBudgetMb());
 
         String currentPanel = settings.getCurrentPanel();
         if (RstPreviewSettings.JCEF.equals(currentPanel) && JBCefApp.isSupported()) {
@@ -85,6 +227,54 @@ public class RstPreviewConfigurable implements Configurable {
         }
     }
 
+    private void updateToolchainLabel() {
+        myToolchainLabel.setText("<html><small>Detecting rst2html…</small></html>");
+        RstToolchainService.getInstance().getToolchain().thenAccept(toolchain -> SwingUtilities.invokeLater(() -> {
+            String text = !toolchain.executable() ? "rst2html not found: " + toolchain.command()
+                    : "Using " + String.join(" ", toolchain.launchCommand()) +
+                      (toolchain.docutilsVersion() != null ? " (docutils " + toolchain.docutilsVersion() + ")" : "");
+            myToolchainLabel.setText("<html><small>" + StringUtil.escapeXmlEntities(text) + "</small></html>");
+        }));
+    }
+
+    /**
+     * Lists every backend with its measurements on the documents previewed since the IDE started.
+     */
+    private void updateBackendsLabel() {
+        RstRendererSelector selector = RstRendererSelector.getInstance();
+        StringBuilder html = new StringBuilder("<html><small><table>")
+                .append("<tr><th align='left'>Renderer</th><th align='right'>Renders</th><th align='right'>Median</th>")
+                .append("<th align='right'>95%</th><th align='right'>Failed</th><th align='left'>Status</th></tr>");
+        for (RstRendererBackend backend : RstRendererBackend.EP_NAME.getExtensionList()) {
+            RstRendererSelector.Stats stats = selector.getStats(backend);
+            String problem = backend.checkHealth();
+            html.append("<tr><td>").append(StringUtil.escapeXmlEntities(backend.getDisplayName()))
+                .append("</td><td align='right'>").append(stats.renders())
+                .append("</td><td align='right'>").append(stats.renders() > 0 ? formatMillis(stats.p50Micros()) : "–")
+                .append("</td><td align='right'>").append(stats.renders() > 0 ? formatMillis(stats.p95Micros()) : "–")
+                .append("</td><td align='right'>").append(stats.failures())
+                .append("</td><td>").append(StringUtil.escapeXmlEntities(problem != null ? problem : "Available"))
+                .append("</td></tr>");
+        }
+        myBackendsLabel.setText(html.append("</table></small></html>").toString());
+    }
+
+    private static @NotNull String formatMillis(long micros) {
+        return String.format("%.1f ms", micros / 1000.0);
+    }
+
+    private static @Nullable RstRendererBackend findBackend(@NotNull String id) {
+        for (RstRendererBackend backend : RstRendererBackend.EP_NAME.getExtensionList()) {
+            if (backend.getId().equals(id)) return backend;
+        }
+        return null;
+    }
+
+    private @NotNull String getSelectedBackend() {
+        Object selected = myRendererBackendComboBox.getSelectedItem();
+        return selected != null ? (String) selected : RstPreviewProjectSettings.AUTOMATIC;
+    }
+
     private String getSelectedPanel() {
         return myJcefRadioButton.isSelected() ? RstPreviewSettings.JCEF : RstPreviewSettings.SWING;
     }
@@ -0,0 +1,92 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.actionSystem.ActionManager;
+import com.intellij.openapi.actionSystem.ActionToolbar;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DefaultActionGroup;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.SimpleToolWindowPanel;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.JBUI;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * The RST Preview Diagnostics tool window: the {@link RstRenderDiagnostics} report for the file in
+ * the selected editor, refreshed every second while the tool window is visible.
+ */
+public final class RstPreviewDiagnosticsToolWindowFactory implements ToolWindowFactory, DumbAware {
+    private static final int REFRESH_MS = 1000;
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        JTextArea report = new JTextArea();
+        report.setEditable(false);
+        report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, UIUtil.getLabelFont().getSize()));
+        report.setBorder(JBUI.Borders.empty(4));
+
+        SimpleToolWindowPanel panel = new SimpleToolWindowPanel(true, true);
+        panel.setContent(new JBScrollPane(report));
+
+        Content content = ContentFactory.getInstance().createContent(panel, null, false);
+        Alarm alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, content);
+        Runnable refresh = () -> {
+            if (project.isDisposed()) return;
+            String text = RstRenderDiagnostics.getInstance().buildReport(getSelectedPath(project));
+            if (!text.equals(report.getText())) {
+                int caret = Math.min(report.getCaretPosition(), text.length());
+                report.setText(text);
+                report.setCaretPosition(caret);
+            }
+        };
+        Runnable[] poll = new Runnable[1];
+        poll[0] = () -> {
+            if (toolWindow.isVisible()) refresh.run();
+            alarm.addRequest(poll[0], REFRESH_MS);
+        };
+
+        DefaultActionGroup actions = new DefaultActionGroup();
+        actions.add(new DumbAwareAction("Refresh", null, AllIcons.Actions.Refresh) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                refresh.run();
+            }
+        });
+        actions.add(new DumbAwareAction("Reset Statistics", null, AllIcons.Actions.GC) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                RstRenderDiagnostics.getInstance().reset();
+                refresh.run();
+            }
+        });
+        AnAction copy = ActionManager.getInstance().getAction(RstCopyDiagnosticsAction.ID);
+        if (copy != null) actions.add(copy);
+        ActionToolbar toolbar = ActionManager.getInstance().createActionToolbar("RstPreviewDiagnostics", actions, true);
+        toolbar.setTargetComponent(panel);
+        panel.setToolbar(toolbar.getComponent());
+
+        toolWindow.getContentManager().addContent(content);
+        poll[0].run();
+    }
+
+    static @Nullable String getSelectedPath(@NotNull Project project) {
+        VirtualFile[] selected = FileEditorManager.getInstance(project).getSelectedFiles();
+        return selected.length > 0 ? selected[0].getPath() : null;
+    }
+}
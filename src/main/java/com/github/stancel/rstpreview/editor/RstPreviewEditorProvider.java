@@ -32,6 +32,7 @@ public class RstPreviewEditorProvider implements FileEditorProvider, DumbAware {
     public @NotNull FileEditor createEditor(@NotNull Project project, @NotNull VirtualFile file) {
         TextEditor textEditor = (TextEditor) TextEditorProvider.getInstance().createEditor(project, file);
         RstPreviewFileEditor previewEditor = new RstPreviewFileEditor(file, project);
+        previewEditor.followEditor(textEditor.getEditor());
         return new TextEditorWithPreview(textEditor, previewEditor, "RST Editor with Preview",
                 TextEditorWithPreview.Layout.SHOW_EDITOR_AND_PREVIEW);
     }
@@ -0,0 +1,74 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for preview rendering. All events of one render share a correlation
+ * id, see {@link RstRenderTrace#getId()}, so they can be lined up with IDE events in a recording.
+ */
+final class RstPreviewEvents {
+    private static final String CATEGORY = "ReStructuredText Preview";
+
+    private RstPreviewEvents() {
+    }
+
+    @Name("com.github.stancel.rstpreview.Render")
+    @Label("RST Preview Render")
+    @Description("A preview render, from the end of the update delay until the result is on screen")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RenderEvent extends Event {
+        @Label("File") String path;
+        @Label("Document Length") @DataAmount(DataAmount.BYTES) int documentLength;
+        @Label("Outcome") String outcome;
+        @Label("Correlation Id") long correlationId;
+    }
+
+    @Name("com.github.stancel.rstpreview.Stage")
+    @Label("RST Preview Render Stage")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage") String stage;
+        @Label("File") String path;
+        @Label("Document Length") @DataAmount(DataAmount.BYTES) int documentLength;
+        @Label("Correlation Id") long correlationId;
+    }
+
+    @Name("com.github.stancel.rstpreview.Debounce")
+    @Label("RST Preview Update Delay")
+    @Description("Emitted when a render starts; the delay is how long the oldest edit waited for it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class DebounceEvent extends Event {
+        @Label("File") String path;
+        @Label("Document Length") @DataAmount(DataAmount.BYTES) int documentLength;
+        @Label("Delay") @Timespan(Timespan.MILLISECONDS) long delay;
+        @Label("Correlation Id") long correlationId;
+    }
+
+    @Name("com.github.stancel.rstpreview.Conversion")
+    @Label("RST Preview Conversion")
+    @Description("One rst2html conversion of a document or section, from launch to exit")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ConversionEvent extends Event {
+        @Label("File") String path;
+        @Label("Document Length") @DataAmount(DataAmount.BYTES) int documentLength;
+        @Label("Outcome") String outcome;
+        @Label("Correlation Id") long correlationId;
+        @Label("Backend") @Description("Id of the renderer backend, or cache") String backend;
+        @Label("Exit Code") int exitCode;
+        @Label("Stdin") @DataAmount(DataAmount.BYTES) long stdinBytes;
+        @Label("Stdout") @DataAmount(DataAmount.BYTES) long stdoutBytes;
+        @Label("Stderr") @DataAmount(DataAmount.BYTES) long stderrBytes;
+    }
+}
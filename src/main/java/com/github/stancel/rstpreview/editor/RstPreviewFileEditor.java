@@ -1,30 +1,56 @@
 // Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
 package com.github.stancel.rstpreview.editor;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.FileEditorState;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.WindowManager;
 import com.intellij.ui.jcef.JBCefApp;
 import com.intellij.util.Alarm;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.ui.update.Activatable;
+import com.intellij.util.ui.update.UiNotifyConnector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
 
 public class RstPreviewFileEditor extends UserDataHolderBase implements FileEditor {
-    private static final long PARSING_CALL_TIMEOUT_MS = 50L;
+    private static final Logger LOG = Logger.getInstance(RstPreviewFileEditor.class);
     private static final String NO_PREVIEW = "<h2>No preview available.</h2><br/><br/>";
-    private static final long RENDERING_DELAY_MS = 20L;
+    private static final int FRAME_MS = 16;
 
     private final @NotNull RstPreviewPanel myPanel;
     private final @NotNull VirtualFile myFile;
@@ -32,31 +58,86 @@ public class RstPreviewFileEditor extends UserDataHolderBase implements FileEdit
     private final @Nullable Document myDocument;
     private final @NotNull Alarm myPooledAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
     private final @NotNull Alarm mySwingAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+    private final @NotNull RstIncrementalRenderer myRenderer;
+    private final @NotNull RstPreviewUpdateScheduler myScheduler = new RstPreviewUpdateScheduler();
 
     private final Object REQUESTS_LOCK = new Object();
     private @Nullable Runnable myLastRequest = null;
-    private @NotNull String myLastRenderedHtml = "";
+    private @Nullable RstPreviewPanel.Update myPendingUpdate = null;
+    private long myLastFingerprint;
     private volatile boolean myDisposed = false;
+    private volatile @Nullable ProgressIndicator myRenderIndicator;
+    private volatile boolean myPreviewShowing = false;
+    private volatile boolean myStale = true;
+    private volatile boolean myDiskCacheChecked = false;
+    // Set when the panel lost its page, so the next render is shown even if it is the same as the last.
+    private volatile boolean myPanelEmpty = false;
+    // The last page rendered for the preview, until it is written to the disk cache.
+    private final AtomicReference<ShownPage> myUnsavedPage = new AtomicReference<>();
+    private @Nullable Window myWindow;
+    // Scroll sync target, written and read on the EDT.
+    private int mySyncLine;
+    private double mySyncRatio;
+    private boolean mySyncScheduled;
+    private final @NotNull WindowAdapter myWindowListener = new WindowAdapter() {
+        @Override
+        public void windowIconified(WindowEvent e) {
+            visibilityChanged();
+        }
+
+        @Override
+        public void windowDeiconified(WindowEvent e) {
+            visibilityChanged();
+        }
+    };
+
+    private record ShownPage(@NotNull CharSequence text, @NotNull Pair<String, String> htmlAndError,
+                             @NotNull List<String> cacheKeys) {
+    }
 
     public RstPreviewFileEditor(@NotNull VirtualFile file, @NotNull Project project) {
         myFile = file;
         myProject = project;
         myDocument = FileDocumentManager.getInstance().getDocument(myFile);
+        myRenderer = new RstIncrementalRenderer(myProject, myFile);
+        // Resolve rst2html in the background while the editor is being set up.
+        RstToolchainService.getInstance().getToolchain();
 
         boolean useJcef = JBCefApp.isSupported() &&
                 RstPreviewSettings.JCEF.equals(RstPreviewSettings.getInstance().getCurrentPanel());
-        myPanel = useJcef ? new RstJcefPreviewPanel(myProject) : new RstSwingPreviewPanel();
+        myPanel = useJcef ? new RstPooledPreviewPanel(myProject, myFile) : new RstSwingPreviewPanel();
+        Disposer.register(this, UiNotifyConnector.installOn(getComponent(), new Activatable() {
+            @Override
+            public void showNotify() {
+                attachToWindow(SwingUtilities.getWindowAncestor(getComponent()));
+                visibilityChanged();
+            }
+
+            @Override
+            public void hideNotify() {
+                attachToWindow(null);
+                visibilityChanged();
+            }
+        }));
 
         if (myDocument != null) {
             myDocument.addDocumentListener(new DocumentListener() {
                 @Override
                 public void beforeDocumentChange(@NotNull DocumentEvent e) {
                     myPooledAlarm.cancelAllRequests();
+                    if (myScheduler.shouldCancelRenderInFlight()) {
+                        cancelRender();
+                    }
                 }
 
                 @Override
                 public void documentChanged(final @NotNull DocumentEvent e) {
-                    myPooledAlarm.addRequest(() -> updateHtml(), PARSING_CALL_TIMEOUT_MS);
+                    myRenderer.documentChanged(e);
+                    if (!myPreviewShowing) {
+                        myStale = true;
+                        return;
+                    }
+                    scheduleUpdate(myScheduler.documentChanged(e.getDocument().getTextLength()));
                 }
             }, this);
         }
@@ -67,6 +148,40 @@ public class RstPreviewFileEditor extends UserDataHolderBase implements FileEdit
         return myPanel.getComponent();
     }
 
+    /**
+     * Makes the preview follow {@code editor}: scrolling brings the top line's element to the top
+     * of the preview, and moving the caret puts the caret line's element at the caret's height.
+     * Events are coalesced into at most one panel call per frame.
+     */
+    void followEditor(@NotNull Editor editor) {
+        editor.getScrollingModel().addVisibleAreaListener(e -> {
+            Rectangle area = e.getNewRectangle();
+            if (area == null || area.height <= 0) return;
+            requestScrollSync(editor.xyToLogicalPosition(area.getLocation()).line, 0);
+        }, this);
+        editor.getCaretModel().addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                Rectangle area = editor.getScrollingModel().getVisibleArea();
+                if (area.height <= 0) return;
+                int y = editor.logicalPositionToXY(event.getNewPosition()).y;
+                requestScrollSync(event.getNewPosition().line, Math.max(0, Math.min(1, (double) (y - area.y) / area.height)));
+            }
+        }, this);
+    }
+
+    private void requestScrollSync(int line, double viewportRatio) {
+        if (!myPreviewShowing || myDocument == null || !RstPreviewSettings.getInstance().isSyncScrolling()) return;
+        mySyncLine = line;
+        mySyncRatio = viewportRatio;
+        if (mySyncScheduled) return;
+        mySyncScheduled = true;
+        mySwingAlarm.addRequest(() -> {
+            mySyncScheduled = false;
+            myPanel.scrollToSourceLine(mySyncLine, myDocument.getLineCount(), mySyncRatio);
+        }, FRAME_MS, ModalityState.stateForComponent(getComponent()));
+    }
+
     @Override
     public @Nullable JComponent getPreferredFocusedComponent() {
         return myPanel.getComponent();
@@ -93,44 +208,235 @@ public class RstPreviewFileEditor extends UserDataHolderBase implements FileEdit
 
     @Override
     public void selectNotify() {
+        scheduleUpdate(myScheduler.renderRequested());
+    }
+
+    /**
+     * Called on the EDT when the preview is shown or hidden: by switching tabs, by the
+     * editor-only layout of {@link com.intellij.openapi.fileEditor.TextEditorWithPreview}, or by
+     * minimizing the IDE window. A hidden preview only remembers that it is stale and renders
+     * once when it is shown again, and the panel may let go of its browser meanwhile.
+     */
+    private void visibilityChanged() {
+        boolean showing = isPreviewShowing();
+        if (showing == myPreviewShowing) return;
+        myPreviewShowing = showing;
+        if (myPanel.setShowing(showing)) {
+            myPanelEmpty = true;
+            myStale = true;
+        }
+        if (!showing) {
+            if (myUnsavedPage.get() != null) {
+                ApplicationManager.getApplication().executeOnPooledThread(this::saveShownPage);
+            }
+            if (!myPooledAlarm.isEmpty()) {
+                myPooledAlarm.cancelAllRequests();
+                myStale = true;
+            }
+        } else if (myStale) {
+            scheduleUpdate(myScheduler.renderRequested());
+        }
+    }
+
+    private boolean isPreviewShowing() {
+        if (isDisposed() || !getComponent().isShowing()) return false;
+        return !(myWindow instanceof Frame frame) || (frame.getExtendedState() & Frame.ICONIFIED) == 0;
+    }
+
+    private void attachToWindow(@Nullable Window window) {
+        if (myWindow == window) return;
+        if (myWindow != null) myWindow.removeWindowListener(myWindowListener);
+        myWindow = window;
+        if (myWindow != null) myWindow.addWindowListener(myWindowListener);
+    }
+
+    /**
+     * @return the render time and update delay the scheduler is currently working with
+     */
+    @NotNull RstPreviewUpdateScheduler getScheduler() {
+        return myScheduler;
+    }
+
+    private void scheduleUpdate(long delayMs) {
+        if (delayMs == RstPreviewUpdateScheduler.NO_RENDER || isDisposed()) return;
+        if (!myPreviewShowing) {
+            myStale = true;
+            return;
+        }
         myPooledAlarm.cancelAllRequests();
-        myPooledAlarm.addRequest(() -> updateHtml(), 0);
+        myPooledAlarm.addRequest(() -> updateHtml(), delayMs);
     }
 
     private void updateHtml() {
-        if (!myFile.isValid() || myDocument == null || isDisposed()) {
+        Document document = myDocument;
+        if (!myFile.isValid() || document == null || isDisposed()) {
+            return;
+        }
+        if (!myPreviewShowing) {
+            myStale = true;
             return;
         }
+        myStale = false;
+
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        myRenderIndicator = indicator;
+        long delayMs = myScheduler.renderStarted();
+        long startNanos = System.nanoTime();
+        RstRenderTrace trace = new RstRenderTrace(myFile, document.getTextLength());
+        if (delayMs >= 0) trace.debounced(delayMs);
+
+        CompletableFuture<Pair<String, String>> render;
+        CharSequence text = null;
+        try {
+            RstIncrementalRenderer.Snapshot snapshot = ReadAction.compute(() -> myRenderer.snapshot(document));
+            text = snapshot.text();
+            if (!myDiskCacheChecked) {
+                myDiskCacheChecked = true;
+                showSavedPage(text);
+            }
+            render = myRenderer.render(snapshot, getRenderPriority(), indicator, trace);
+        } catch (RuntimeException e) {
+            render = CompletableFuture.failedFuture(e);
+        }
+
+        CharSequence renderedText = text;
+        render.whenComplete((htmlAndError, error) -> {
+            boolean completed = false;
+            try {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof RejectedExecutionException) {
+                    myScheduler.retryLater();
+                } else if (cause != null && !(cause instanceof CancellationException)) {
+                    LOG.warn("Failed to render RST preview", cause);
+                } else if (htmlAndError != null && !indicator.isCanceled()) {
+                    completed = publishHtml(htmlAndError, indicator, trace);
+                    if (completed && !htmlAndError.getFirst().isEmpty()) {
+                        myUnsavedPage.set(new ShownPage(renderedText, htmlAndError, trace.getCacheKeys()));
+                    }
+                }
+                if (!completed) {
+                    trace.abandoned(cause != null && !(cause instanceof CancellationException) && !(cause instanceof RejectedExecutionException)
+                            ? RstRenderDiagnostics.Outcome.ERROR
+                            : RstRenderDiagnostics.Outcome.CANCELLED);
+                }
+            } finally {
+                long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                scheduleUpdate(myScheduler.renderFinished(latencyMs, document.getTextLength(), completed));
+            }
+        });
+    }
+
+    /**
+     * Shows the page saved when the preview of this text was last hidden or closed, usually
+     * in a previous session. The render that follows replaces it if anything changed since.
+     */
+    private void showSavedPage(@NotNull CharSequence text) {
+        Pair<String, String> saved = RstRenderDiskCache.getInstance().get(RstRenderDiskCache.pageKey(myFile, text));
+        if (saved != null) {
+            publishHtml(saved, new EmptyProgressIndicator(), new RstRenderTrace(myFile, text.length()));
+        }
+    }
+
+    /**
+     * Writes the last rendered page, and the render cache entries it was made of, to the disk
+     * cache, so reopening the file shows it at once.
+     */
+    private void saveShownPage() {
+        ShownPage page = myUnsavedPage.getAndSet(null);
+        if (page == null) return;
+        RstRenderCache.getInstance().persist(page.cacheKeys());
+        RstRenderDiskCache.getInstance().put(RstRenderDiskCache.pageKey(myFile, page.text()), page.htmlAndError());
+    }
 
-        final Pair<String, String> htmlAndError = RstPreviewProvider.toHtml(myDocument.getText(), myFile);
-        if (htmlAndError == null) return;
+    private @NotNull RstRenderScheduler.Priority getRenderPriority() {
+        if (!myPreviewShowing) return RstRenderScheduler.Priority.BACKGROUND;
+        return ArrayUtil.contains(myFile, FileEditorManager.getInstance(myProject).getSelectedFiles())
+                ? RstRenderScheduler.Priority.FOCUSED
+                : RstRenderScheduler.Priority.VISIBLE;
+    }
+
+    private void cancelRender() {
+        ProgressIndicator indicator = myRenderIndicator;
+        if (indicator != null) {
+            indicator.cancel();
+            RstRenderScheduler.getInstance().cancel(indicator);
+        }
+    }
 
+    /**
+     * Prepares a finished render for the panel on this background thread and hands it over to the
+     * EDT, which only has to show it. Output identical to the last page is not prepared again.
+     *
+     * @return {@code false} if the editor went away in the meantime
+     */
+    private boolean publishHtml(@NotNull Pair<String, String> htmlAndError, @NotNull ProgressIndicator indicator,
+                                @NotNull RstRenderTrace trace) {
         String html = htmlAndError.getFirst();
         if (html.isEmpty()) {
             html = NO_PREVIEW + htmlAndError.getSecond();
         }
 
         if (!myFile.isValid() || isDisposed()) {
-            return;
+            return false;
+        }
+
+        // Renders of one editor finish one at a time, so the fingerprint needs no lock.
+        long fingerprint = fingerprint(html);
+        RstPreviewPanel.Update update = null;
+        if (fingerprint != myLastFingerprint || myPanelEmpty) {
+            myPanelEmpty = false;
+            RstRenderTrace.Span prepare = trace.startStage(RstRenderDiagnostics.Stage.PANEL_PREPARE);
+            update = myPanel.prepare(html);
+            prepare.finish();
+            myLastFingerprint = fingerprint;
         }
 
         synchronized (REQUESTS_LOCK) {
             if (myLastRequest != null) {
                 mySwingAlarm.cancelRequest(myLastRequest);
             }
-            String finalHtml = html;
+            // A page that was prepared but not shown yet is still owed to the panel.
+            if (update == null) update = myPendingUpdate;
+            myPendingUpdate = update;
+            RstPreviewPanel.Update finalUpdate = update;
             myLastRequest = () -> {
-                if (!finalHtml.equals(myLastRenderedHtml)) {
-                    myLastRenderedHtml = finalHtml;
-                    myPanel.setHtml(myLastRenderedHtml);
+                synchronized (REQUESTS_LOCK) {
+                    if (myPendingUpdate == finalUpdate) myPendingUpdate = null;
+                }
+                // A prepared page is shown even if a newer edit came in meanwhile: the fingerprint
+                // already stands for it, so an identical render would not prepare it again.
+                if (finalUpdate != null) {
+                    RstRenderTrace.Span show = trace.startStage(RstRenderDiagnostics.Stage.PANEL_SHOW);
+                    myPanel.show(finalUpdate);
+                    show.finish();
+                }
+                if (indicator.isCanceled()) {
+                    trace.abandoned(RstRenderDiagnostics.Outcome.CANCELLED);
+                } else {
+                    trace.shown();
                 }
-                myPanel.render();
                 synchronized (REQUESTS_LOCK) {
                     myLastRequest = null;
                 }
+                StatusBar statusBar = WindowManager.getInstance().getStatusBar(myProject);
+                if (statusBar != null) statusBar.updateWidget(RstPreviewStatusBarWidgetFactory.ID);
             };
-            mySwingAlarm.addRequest(myLastRequest, RENDERING_DELAY_MS, ModalityState.stateForComponent(getComponent()));
+            mySwingAlarm.addRequest(myLastRequest, 0, ModalityState.stateForComponent(getComponent()));
         }
+        return true;
+    }
+
+    /**
+     * A 64-bit hash of {@code html}, made of CRC32C of its UTF-8 bytes and {@link String#hashCode}.
+     */
+    private static long fingerprint(@NotNull String html) {
+        CRC32C crc = new CRC32C();
+        try {
+            RstProcessIO.encode(html, crc::update);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return crc.getValue() << 32 | html.hashCode() & 0xFFFFFFFFL;
     }
 
     @Override
@@ -153,6 +459,12 @@ public class RstPreviewFileEditor extends UserDataHolderBase implements FileEdit
     @Override
     public void dispose() {
         myDisposed = true;
+        cancelRender();
+        // The disk cache writes and may compact, which must not hold up closing tabs or projects.
+        if (myUnsavedPage.get() != null) {
+            ApplicationManager.getApplication().executeOnPooledThread(this::saveShownPage);
+        }
+        attachToWindow(null);
         Disposer.dispose(myPanel);
     }
 }
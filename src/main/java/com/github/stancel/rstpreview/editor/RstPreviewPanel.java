@@ -6,8 +6,54 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 
+/**
+ * Shows rendered HTML. A new page goes through two steps: {@link #prepare} does all the work on
+ * the HTML on a background thread, and {@link #show} hands the result to the component on the EDT
+ * in time that doesn't depend on the size of the page.
+ */
 public interface RstPreviewPanel extends Disposable {
-    void setHtml(@NotNull String html);
+    /**
+     * Called on a background thread, one page at a time.
+     */
+    @NotNull Update prepare(@NotNull String html);
+
+    /**
+     * Called on the EDT with pages from {@link #prepare}. A page may be skipped when a newer one is
+     * ready, but is never shown after it.
+     */
+    void show(@NotNull Update update);
+
+    /**
+     * Brings the shown page up to date with the IDE theme; called on the EDT.
+     */
     void render();
+
     @NotNull JComponent getComponent();
+
+    /**
+     * Scrolls the shown page to the element rendered from a source line; called on the EDT at most
+     * once per frame, so it must not wait for the page.
+     *
+     * @param line          zero-based
+     * @param lineCount     the number of lines in the document
+     * @param viewportRatio where the line should end up, from 0 at the top to 1 at the bottom
+     */
+    default void scrollToSourceLine(int line, int lineCount, double viewportRatio) {
+    }
+
+    /**
+     * Called on the EDT when the preview is shown or hidden, so the panel can let go of resources
+     * while hidden.
+     *
+     * @return {@code true} if the panel lost its page meanwhile and needs it shown again
+     */
+    default boolean setShowing(boolean showing) {
+        return false;
+    }
+
+    /**
+     * A page ready to be shown by the panel that prepared it.
+     */
+    interface Update {
+    }
 }
@@ -0,0 +1,31 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tells the {@link RstPreviewPrewarmer} which files were opened and selected.
+ */
+public final class RstPreviewPrewarmListener implements FileEditorManagerListener {
+    private final @NotNull Project myProject;
+
+    public RstPreviewPrewarmListener(@NotNull Project project) {
+        myProject = project;
+    }
+
+    @Override
+    public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+        RstPreviewPrewarmer.getInstance(myProject).fileOpened(file);
+    }
+
+    @Override
+    public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+        VirtualFile file = event.getNewFile();
+        if (file != null) RstPreviewPrewarmer.getInstance(myProject).fileSelected(file);
+    }
+}
@@ -0,0 +1,236 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.ide.PowerSaveMode;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.impl.EditorHistoryManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.restructuredtext.RestFileType;
+import com.intellij.util.Alarm;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders previews before they are shown, so they come from {@link RstRenderCache} when the user
+ * switches to them, or from {@link RstRenderDiskCache} after a restart: editors restored with the
+ * project, the files next to the selected one in its directory and recently opened files.
+ * <p>
+ * Files are rendered one at a time with {@link RstRenderScheduler.Priority#PREWARM}, only while
+ * indexing is done and no preview is being rendered, and with pauses that keep the prewarmer
+ * within {@link #CPU_PERCENT} of one core.
+ */
+public final class RstPreviewPrewarmer implements Disposable {
+    private static final Logger LOG = Logger.getInstance(RstPreviewPrewarmer.class);
+    private static final int CPU_PERCENT = 25;
+    private static final int NEIGHBOURS = 2;
+    private static final int RECENT_FILES = 8;
+    private static final int MAX_QUEUED = 32;
+    private static final long MAX_FILE_LENGTH = 1024 * 1024;
+    private static final long START_DELAY_MS = 2000;
+    private static final long BUSY_DELAY_MS = 500;
+    private static final long MIN_PAUSE_MS = 50;
+
+    private final @NotNull Project myProject;
+    private final @NotNull Alarm myAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+    private final @NotNull ProgressIndicator myIndicator = new EmptyProgressIndicator();
+    // Guarded by this. Files most likely to be shown next come first.
+    private final @NotNull LinkedHashSet<VirtualFile> myQueue = new LinkedHashSet<>();
+    private boolean myRecentFilesQueued;
+    // Whether prewarmNext is scheduled or running; it reschedules itself until the queue is empty.
+    private boolean myChainActive;
+    // Modification stamps of the documents already rendered.
+    private final @NotNull Map<VirtualFile, Long> myWarmed = ContainerUtil.createWeakMap();
+
+    public RstPreviewPrewarmer(@NotNull Project project) {
+        myProject = project;
+    }
+
+    public static RstPreviewPrewarmer getInstance(@NotNull Project project) {
+        return project.getService(RstPreviewPrewarmer.class);
+    }
+
+    /**
+     * Called on the EDT when an editor is opened, including the ones restored with the project.
+     * The first call also queues the recently opened files.
+     */
+    void fileOpened(@NotNull VirtualFile file) {
+        List<VirtualFile> recent = List.of();
+        synchronized (this) {
+            if (!myRecentFilesQueued) {
+                myRecentFilesQueued = true;
+                recent = getRecentFiles();
+            }
+        }
+        enqueue(List.of(file), false);
+        enqueue(recent, false);
+    }
+
+    /**
+     * Called on the EDT when another editor is selected; queues the files next to it in its
+     * directory ahead of the rest.
+     */
+    void fileSelected(@NotNull VirtualFile file) {
+        if (!RstPreviewSettings.getInstance().isPrewarmPreviews()) return;
+        // Listing a large directory is too slow for the EDT.
+        ApplicationManager.getApplication().executeOnPooledThread(
+                () -> enqueue(ReadAction.compute(() -> getNeighbours(file)), true));
+    }
+
+    private void enqueue(@NotNull List<VirtualFile> files, boolean first) {
+        if (files.isEmpty() || myProject.isDisposed() || !RstPreviewSettings.getInstance().isPrewarmPreviews()) return;
+        synchronized (this) {
+            if (first) {
+                List<VirtualFile> rest = new ArrayList<>(myQueue);
+                myQueue.clear();
+                myQueue.addAll(files);
+                myQueue.addAll(rest);
+            } else {
+                myQueue.addAll(files);
+            }
+            while (myQueue.size() > MAX_QUEUED) {
+                myQueue.remove(ContainerUtil.getLastItem(new ArrayList<>(myQueue)));
+            }
+        }
+        DumbService.getInstance(myProject).runWhenSmart(() -> {
+            synchronized (this) {
+                if (myChainActive) return;
+                myChainActive = true;
+            }
+            schedule(START_DELAY_MS);
+        });
+    }
+
+    private void schedule(long delayMs) {
+        if (!myAlarm.isDisposed()) myAlarm.addRequest(this::prewarmNext, delayMs);
+    }
+
+    private void prewarmNext() {
+        if (myProject.isDisposed() || !RstPreviewSettings.getInstance().isPrewarmPreviews() || PowerSaveMode.isEnabled()) {
+            synchronized (this) {
+                myQueue.clear();
+                myChainActive = false;
+            }
+            return;
+        }
+        if (DumbService.isDumb(myProject)) {
+            DumbService.getInstance(myProject).runWhenSmart(() -> schedule(START_DELAY_MS));
+            return;
+        }
+        RstRenderScheduler scheduler = RstRenderScheduler.getInstance();
+        if (scheduler.getQueuedCount() > 0 || scheduler.getRunningCount() > 0) {
+            schedule(BUSY_DELAY_MS);
+            return;
+        }
+
+        VirtualFile file;
+        synchronized (this) {
+            file = ContainerUtil.getFirstItem(myQueue);
+            if (file == null) {
+                myChainActive = false;
+                return;
+            }
+            myQueue.remove(file);
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            prewarm(file);
+        } finally {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            schedule(Math.max(MIN_PAUSE_MS, elapsedMs * (100 - CPU_PERCENT) / CPU_PERCENT));
+        }
+    }
+
+    private void prewarm(@NotNull VirtualFile file) {
+        // The selected previews render themselves.
+        if (ArrayUtil.contains(file, FileEditorManager.getInstance(myProject).getSelectedFiles())) return;
+        Document document = ReadAction.compute(() -> isCandidate(file) ? FileDocumentManager.getInstance().getDocument(file) : null);
+        if (document == null) return;
+
+        RstIncrementalRenderer renderer = new RstIncrementalRenderer(myProject, file);
+        RstIncrementalRenderer.Snapshot snapshot = ReadAction.compute(() -> renderer.snapshot(document));
+        long stamp = document.getModificationStamp();
+        synchronized (this) {
+            Long warmed = myWarmed.get(file);
+            if (warmed != null && warmed == stamp) return;
+        }
+
+        RstRenderTrace trace = new RstRenderTrace(file, snapshot.text().length());
+        try {
+            Pair<String, String> htmlAndError = renderer.render(snapshot, RstRenderScheduler.Priority.PREWARM, myIndicator, trace).join();
+            // Kept on disk as well, so the preview opens at once in the next session too.
+            if (htmlAndError != null && !htmlAndError.getFirst().isEmpty()) {
+                RstRenderCache.getInstance().persist(trace.getCacheKeys());
+                RstRenderDiskCache.getInstance().put(RstRenderDiskCache.pageKey(file, snapshot.text()), htmlAndError);
+            }
+            synchronized (this) {
+                myWarmed.put(file, stamp);
+            }
+        } catch (CancellationException | CompletionException e) {
+            LOG.debug("Prewarming " + file.getPath() + " failed", e);
+        }
+        trace.abandoned(trace.getOutcome());
+    }
+
+    private @NotNull List<VirtualFile> getNeighbours(@NotNull VirtualFile file) {
+        VirtualFile parent = file.getParent();
+        if (parent == null) return List.of();
+        VirtualFile[] siblings = Arrays.stream(parent.getChildren())
+                .filter(RstPreviewPrewarmer::isCandidate)
+                .sorted(Comparator.comparing(VirtualFile::getName))
+                .toArray(VirtualFile[]::new);
+        int index = ArrayUtil.indexOf(siblings, file);
+        if (index < 0) return List.of();
+
+        // Nearest first: the next file, the previous one, then the ones after those.
+        List<VirtualFile> neighbours = new ArrayList<>();
+        for (int distance = 1; distance <= NEIGHBOURS; distance++) {
+            if (index + distance < siblings.length) neighbours.add(siblings[index + distance]);
+            if (index - distance >= 0) neighbours.add(siblings[index - distance]);
+        }
+        return neighbours;
+    }
+
+    private @NotNull List<VirtualFile> getRecentFiles() {
+        List<VirtualFile> history = EditorHistoryManager.getInstance(myProject).getFileList();
+        List<VirtualFile> recent = new ArrayList<>();
+        for (int i = history.size() - 1; i >= 0 && recent.size() < RECENT_FILES; i--) {
+            if (isCandidate(history.get(i))) recent.add(history.get(i));
+        }
+        return recent;
+    }
+
+    private static boolean isCandidate(@Nullable VirtualFile file) {
+        return file != null && file.isValid() && !file.isDirectory() && file.getLength() <= MAX_FILE_LENGTH &&
+               file.getFileType() instanceof RestFileType;
+    }
+
+    @Override
+    public void dispose() {
+        myIndicator.cancel();
+        RstRenderScheduler.getInstance().cancel(myIndicator);
+    }
+}
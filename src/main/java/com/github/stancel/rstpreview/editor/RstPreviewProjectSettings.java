@@ -0,0 +1,45 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Preview settings stored with the project, so everyone working on it renders the same way.
+ */
+@State(name = "RstPreviewProjectSettings", storages = @Storage("rstPreviewStandalone.xml"))
+public class RstPreviewProjectSettings implements PersistentStateComponent<RstPreviewProjectSettings> {
+    public static final String AUTOMATIC = "";
+
+    private @NotNull String myRendererBackend = AUTOMATIC;
+
+    /**
+     * @return the id of the {@link RstRendererBackend} previews in this project use, or
+     * {@link #AUTOMATIC} to pick the fastest one that produces docutils output
+     */
+    public @NotNull String getRendererBackend() {
+        return myRendererBackend;
+    }
+
+    public void setRendererBackend(@NotNull String rendererBackend) {
+        myRendererBackend = rendererBackend;
+    }
+
+    public static RstPreviewProjectSettings getInstance(@NotNull Project project) {
+        return project.getService(RstPreviewProjectSettings.class);
+    }
+
+    @Override
+    public RstPreviewProjectSettings getState() {
+        return this;
+    }
+
+    @Override
+    public void loadState(@NotNull RstPreviewProjectSettings state) {
+        XmlSerializerUtil.copyBean(state, this);
+    }
+}
@@ -1,170 +1,289 @@
 // Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
 package com.github.stancel.rstpreview.editor;
 
+import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
-import com.intellij.execution.process.CapturingProcessHandler;
 import com.intellij.execution.process.ProcessOutput;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectLocator;
 import com.intellij.openapi.util.Pair;
-import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.List;
 
 public final class RstPreviewProvider {
     private static final Logger LOG = Logger.getInstance(RstPreviewProvider.class);
-    private static final int TIMEOUT_MS = 10000;
+    static final int TIMEOUT_MS = 10000;
+    private static final List<String> RENDER_ARGS = List.of("--no-generator", "--no-source-link", "--no-datestamp");
+    static final String NO_DOC_TITLE = "--no-doc-title";
+    private static final String PYTHON_TRACEBACK = "Traceback (most recent call last)";
+    private static final String INSTALL_HINT =
+            "<p>Please install docutils (<code>pip install docutils</code>) or configure the correct path in " +
+            "Settings → Languages & Frameworks → ReStructuredText Preview.</p>";
 
     private RstPreviewProvider() {}
 
     public static @Nullable Pair<String, String> toHtml(@NotNull String text, @NotNull VirtualFile virtualFile) {
-        String rst2htmlPath = RstPreviewSettings.getInstance().getRst2HtmlCommand();
+        return toHtml(text, virtualFile, List.of(), new EmptyProgressIndicator(),
+                new RstRenderTrace(virtualFile, text.length()));
+    }
 
-        if (rst2htmlPath.isEmpty()) {
-            return Pair.create("", "<p><b>Error:</b> rst2html not found. Please install docutils " +
-                    "(<code>pip install docutils</code>) and configure the path in " +
-                    "Settings → Languages & Frameworks → ReStructuredText Preview.</p>");
-        }
+    /**
+     * Renders with the backends {@link RstRendererSelector} picks for the file's project.
+     *
+     * @param extraArgs rst2html options passed in addition to the default ones
+     * @param indicator cancelling it kills a running rst2html process
+     * @param trace     receives the time spent in each stage
+     * @return the HTML and an error section, or {@code null} if the render was cancelled
+     */
+    public static @Nullable Pair<String, String> toHtml(@NotNull CharSequence text, @NotNull VirtualFile virtualFile,
+                                                        @NotNull List<String> extraArgs,
+                                                        @NotNull ProgressIndicator indicator,
+                                                        @NotNull RstRenderTrace trace) {
+        Project project = ProjectLocator.getInstance().guessProjectForFile(virtualFile);
+        return toHtml(text, virtualFile, extraArgs, indicator, trace, RstRendererSelector.getInstance().getCandidates(project));
+    }
 
-        if (!isExecutable(rst2htmlPath)) {
-            return Pair.create("", "<p><b>Error:</b> rst2html not found at: <code>" + rst2htmlPath + "</code></p>" +
-                    "<p>Please install docutils (<code>pip install docutils</code>) or configure the correct path.</p>");
-        }
+    /**
+     * {@link #toHtml} with the given backends, tried in order. Reports an error if none of them
+     * renders the document.
+     */
+    static @Nullable Pair<String, String> toHtml(@NotNull CharSequence text, @NotNull VirtualFile virtualFile,
+                                                 @NotNull List<String> extraArgs,
+                                                 @NotNull ProgressIndicator indicator,
+                                                 @NotNull RstRenderTrace trace,
+                                                 @NotNull List<RstRendererBackend> backends) {
+        Pair<String, String> result = tryRender(text, virtualFile, extraArgs, indicator, trace, backends);
+        if (result != null || indicator.isCanceled()) return result;
+
+        RstPreviewEvents.ConversionEvent event = new RstPreviewEvents.ConversionEvent();
+        event.begin();
+        result = Pair.create("", noRendererError());
+        finish(text, result, null, trace, event);
+        return result;
+    }
 
-        try {
-            GeneralCommandLine commandLine = new GeneralCommandLine();
+    /**
+     * Tries {@code backends} in order until one of them renders the document, using the render
+     * cache for backends with an output fingerprint. A backend that throws, times out or crashes
+     * is passed over like one that declines; errors in the document are returned right away.
+     *
+     * @return the HTML and an error section, the last backend failure if no backend rendered the
+     * document, or {@code null} if the render was cancelled or all backends declined it
+     */
+    static @Nullable Pair<String, String> tryRender(@NotNull CharSequence text, @NotNull VirtualFile virtualFile,
+                                                    @NotNull List<String> extraArgs,
+                                                    @NotNull ProgressIndicator indicator,
+                                                    @NotNull RstRenderTrace trace,
+                                                    @NotNull List<RstRendererBackend> backends) {
+        VirtualFile parent = virtualFile.getParent();
+        String workDir = parent != null ? parent.getPath() : null;
+        RstRendererSelector selector = RstRendererSelector.getInstance();
+        RstRenderCache cache = RstRenderCache.getInstance();
+        Pair<String, String> failure = null;
 
-            if (rst2htmlPath.endsWith(".py") || needsPythonInterpreter(rst2htmlPath)) {
-                String pythonPath = findPython();
-                if (pythonPath != null) {
-                    commandLine.setExePath(pythonPath);
-                    commandLine.addParameter(rst2htmlPath);
-                } else {
-                    commandLine.setExePath(rst2htmlPath);
-                }
-            } else {
-                commandLine.setExePath(rst2htmlPath);
+        for (RstRendererBackend backend : backends) {
+            RstRendererBackend.Request request = new RstRendererBackend.Request(text, workDir, extraArgs, indicator, trace);
+            RstPreviewEvents.ConversionEvent event = new RstPreviewEvents.ConversionEvent();
+            event.begin();
+            if (indicator.isCanceled()) {
+                finish(text, null, request, trace, event);
+                return null;
             }
 
-            commandLine.addParameter("--no-generator");
-            commandLine.addParameter("--no-source-link");
-            commandLine.addParameter("--no-datestamp");
+            String fingerprint = backend.getOutputFingerprint(request);
+            String cacheKey = fingerprint != null ? RstRenderCache.computeKey(text, workDir, fingerprint, extraArgs) : null;
+            Pair<String, String> cached = cacheKey != null ? cache.get(cacheKey) : null;
+            if (cached != null) {
+                event.backend = "cache";
+                trace.cacheKeyUsed(cacheKey);
+                finish(text, cached, request, trace, event);
+                return cached;
+            }
 
-            VirtualFile parent = virtualFile.getParent();
-            if (parent != null) {
-                commandLine.setWorkDirectory(parent.getPath());
+            long startNanos = System.nanoTime();
+            Pair<String, String> result;
+            try {
+                result = backend.render(request);
+            } catch (ProcessCanceledException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                LOG.warn("Renderer backend " + backend.getId() + " failed", e);
+                selector.failed(backend);
+                continue;
+            }
+            if (result == null) {
+                if (indicator.isCanceled()) {
+                    finish(text, null, request, trace, event);
+                    return null;
+                }
+                selector.declined(backend);
+                continue;
             }
 
-            commandLine.setCharset(StandardCharsets.UTF_8);
+            event.backend = backend.getId();
+            if (event.isEnabled()) event.stdoutBytes = RstProcessIO.utf8Length(result.getFirst());
+            RstRenderDiagnostics.Outcome outcome = finish(text, result, request, trace, event);
+            selector.rendered(backend, outcome, System.nanoTime() - startNanos);
+            if (outcome == RstRenderDiagnostics.Outcome.TIMEOUT || outcome == RstRenderDiagnostics.Outcome.ERROR) {
+                // The next backend may well render the document; this error is shown only if none does.
+                failure = result;
+                continue;
+            }
+            if (cacheKey != null && outcome == RstRenderDiagnostics.Outcome.SUCCESS) {
+                cache.put(cacheKey, result);
+                trace.cacheKeyUsed(cacheKey);
+            }
+            return result;
+        }
+        return failure;
+    }
 
-            CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
-            Process process = handler.getProcess();
+    private static @NotNull RstRenderDiagnostics.Outcome finish(@NotNull CharSequence text, @Nullable Pair<String, String> result,
+                                                                @Nullable RstRendererBackend.Request request,
+                                                                @NotNull RstRenderTrace trace,
+                                                                @NotNull RstPreviewEvents.ConversionEvent event) {
+        ProcessOutput output = request != null ? request.getProcessOutput() : null;
+        RstRenderDiagnostics.Outcome outcome = result == null ? RstRenderDiagnostics.Outcome.CANCELLED
+                : !result.getFirst().isEmpty() ? RstRenderDiagnostics.Outcome.SUCCESS
+                : output != null && output.isTimeout() ? RstRenderDiagnostics.Outcome.TIMEOUT
+                : isDocumentError(output) ? RstRenderDiagnostics.Outcome.DOCUMENT_ERROR
+                : RstRenderDiagnostics.Outcome.ERROR;
+        trace.outcome(outcome);
 
-            byte[] inputBytes = text.getBytes(StandardCharsets.UTF_8);
-            Thread stdinWriter = new Thread(() -> {
-                try (OutputStream stdin = process.getOutputStream()) {
-                    stdin.write(inputBytes);
-                    stdin.flush();
-                } catch (Exception e) {
-                    LOG.debug("Error writing to stdin", e);
-                }
-            });
-            stdinWriter.start();
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = trace.getPath();
+            event.documentLength = text.length();
+            event.outcome = outcome.name();
+            event.correlationId = trace.getId();
+            event.stdinBytes = RstProcessIO.utf8Length(text);
+            if (output != null) {
+                event.exitCode = output.getExitCode();
+                event.stderrBytes = RstProcessIO.utf8Length(output.getStderr());
+            }
+            event.commit();
+        }
+        return outcome;
+    }
 
-            ProcessOutput output = handler.runProcess(TIMEOUT_MS);
+    /**
+     * Tells a converter that stopped at an error in the document, such as a missing include, from
+     * one that crashed: the latter exits with a signal or a Python traceback, or never ran at all.
+     */
+    private static boolean isDocumentError(@Nullable ProcessOutput output) {
+        if (output == null || output.isTimeout() || output.isCancelled()) return false;
+        int exitCode = output.getExitCode();
+        String stderr = output.getStderr();
+        return exitCode >= 0 && exitCode < 128 && !stderr.isEmpty() && !stderr.contains(PYTHON_TRACEBACK);
+    }
 
-            if (output.isTimeout()) {
-                return Pair.create("", "<p><b>Error:</b> rst2html timed out after " + (TIMEOUT_MS / 1000) + " seconds.</p>");
+    private static @NotNull String noRendererError() {
+        StringBuilder reasons = new StringBuilder();
+        for (RstRendererBackend backend : RstRendererBackend.EP_NAME.getExtensionList()) {
+            String problem = backend.getCapabilities().contains(RstRendererBackend.Capability.DOCUTILS_OUTPUT)
+                    ? backend.checkHealth() : null;
+            if (problem != null) {
+                reasons.append("<li>").append(escapeHtml(backend.getDisplayName())).append(": ")
+                       .append(escapeHtml(problem)).append("</li>");
             }
+        }
+        return "<p><b>Error:</b> No renderer could render this document.</p>" +
+               (reasons.length() > 0 ? "<ul>" + reasons + "</ul>" : "") + INSTALL_HINT;
+    }
 
-            if (output.getExitCode() != 0) {
-                String stderr = output.getStderr();
-                if (!stderr.isEmpty()) {
-                    return Pair.create("", "<p><b>rst2html error:</b></p><pre>" + escapeHtml(stderr) + "</pre>");
-                }
-                return Pair.create("", "<p><b>Error:</b> rst2html exited with code " + output.getExitCode() + "</p>");
-            }
+    /**
+     * @return the default rst2html options followed by {@code extraArgs}
+     */
+    static @NotNull List<String> rst2htmlArgs(@NotNull List<String> extraArgs) {
+        return extraArgs.isEmpty() ? RENDER_ARGS : ContainerUtil.concat(RENDER_ARGS, extraArgs);
+    }
 
-            String html = output.getStdout();
-            String warnings = output.getStderr();
+    static @NotNull String notFoundError(@NotNull RstToolchainService.Toolchain toolchain) {
+        return "<p><b>Error:</b> rst2html not found at: <code>" + escapeHtml(toolchain.command()) + "</code></p>" + INSTALL_HINT;
+    }
 
-            if (html.isEmpty() && !warnings.isEmpty()) {
-                return Pair.create("", "<p><b>rst2html warnings:</b></p><pre>" + escapeHtml(warnings) + "</pre>");
-            }
+    /**
+     * Turns the output of a converter process into the HTML and an error section.
+     *
+     * @param tool the converter's name for error messages
+     * @return {@code null} if the conversion was cancelled
+     */
+    static @Nullable Pair<String, String> toResult(@NotNull String tool, @NotNull ProcessOutput output) {
+        if (output.isCancelled()) {
+            return null;
+        }
+
+        if (output.isTimeout()) {
+            return Pair.create("", "<p><b>Error:</b> " + tool + " timed out after " + (TIMEOUT_MS / 1000) + " seconds.</p>");
+        }
 
-            String errorSection = "";
-            if (!warnings.isEmpty()) {
-                errorSection = "<details><summary>Warnings</summary><pre>" + escapeHtml(warnings) + "</pre></details>";
+        if (output.getExitCode() != 0) {
+            String stderr = output.getStderr();
+            if (!stderr.isEmpty()) {
+                return Pair.create("", "<p><b>" + tool + " error:</b></p><pre>" + escapeHtml(stderr) + "</pre>");
             }
+            return Pair.create("", "<p><b>Error:</b> " + tool + " exited with code " + output.getExitCode() + "</p>");
+        }
 
-            return Pair.create(html, errorSection);
+        String html = output.getStdout();
+        String warnings = output.getStderr();
 
-        } catch (Exception e) {
-            LOG.warn("Failed to run rst2html", e);
-            return Pair.create("", "<p><b>Error running rst2html:</b> " + escapeHtml(e.getMessage()) + "</p>");
+        if (html.isEmpty() && !warnings.isEmpty()) {
+            return Pair.create("", "<p><b>" + tool + " warnings:</b></p><pre>" + escapeHtml(warnings) + "</pre>");
         }
-    }
 
-    private static boolean isExecutable(@NotNull String path) {
-        if (!path.contains(File.separator) && !path.contains("/")) {
-            return true;
+        String errorSection = "";
+        if (!warnings.isEmpty()) {
+            errorSection = "<details><summary>Warnings</summary><pre>" + escapeHtml(warnings) + "</pre></details>";
         }
-        Path p = Paths.get(path);
-        return Files.exists(p) && (Files.isExecutable(p) || SystemInfo.isWindows);
+        return Pair.create(html, errorSection);
     }
 
-    private static boolean needsPythonInterpreter(@NotNull String path) {
-        try {
-            Path p = Paths.get(path);
-            if (Files.exists(p)) {
-                byte[] bytes = Files.readAllBytes(p);
-                String content = new String(bytes, StandardCharsets.UTF_8);
-                return content.startsWith("#!") && content.contains("python");
-            }
-        } catch (Exception ignored) {}
-        return false;
-    }
+    static @NotNull ProcessOutput runRst2Html(@NotNull RstToolchainService.Toolchain toolchain, @NotNull CharSequence text,
+                                                      @Nullable String workDir, @NotNull List<String> args,
+                                                      @NotNull ProgressIndicator indicator,
+                                                      @Nullable RstRenderTrace trace) throws ExecutionException {
+        GeneralCommandLine commandLine = new GeneralCommandLine(toolchain.launchCommand());
+        commandLine.addParameters(args);
 
-    private static @Nullable String findPython() {
-        String[] candidates = SystemInfo.isWindows
-                ? new String[]{"python.exe", "python3.exe", "py.exe"}
-                : new String[]{"python3", "python"};
-
-        String pathEnv = System.getenv("PATH");
-        if (pathEnv != null) {
-            for (String dir : pathEnv.split(File.pathSeparator)) {
-                for (String candidate : candidates) {
-                    Path p = Paths.get(dir, candidate);
-                    if (Files.exists(p) && Files.isExecutable(p)) {
-                        return p.toString();
-                    }
-                }
-            }
+        if (workDir != null) {
+            commandLine.setWorkDirectory(workDir);
         }
+        return runProcess(commandLine, text, indicator, trace);
+    }
 
-        String homeDir = System.getProperty("user.home");
-        if (homeDir != null) {
-            Path pyenvPython = Paths.get(homeDir, ".pyenv", "shims", "python3");
-            if (Files.exists(pyenvPython)) return pyenvPython.toString();
-            pyenvPython = Paths.get(homeDir, ".pyenv", "shims", "python");
-            if (Files.exists(pyenvPython)) return pyenvPython.toString();
-        }
+    /**
+     * Runs a converter that reads the document from stdin and writes the page to stdout.
+     */
+    static @NotNull ProcessOutput runProcess(@NotNull GeneralCommandLine commandLine, @NotNull CharSequence text,
+                                             @NotNull ProgressIndicator indicator,
+                                             @Nullable RstRenderTrace trace) throws ExecutionException {
+        commandLine.setCharset(StandardCharsets.UTF_8);
 
-        for (String loc : new String[]{"/usr/bin/python3", "/usr/local/bin/python3", "/usr/bin/python"}) {
-            if (Files.exists(Paths.get(loc))) return loc;
+        RstRenderTrace.Span start = trace != null ? trace.startStage(RstRenderDiagnostics.Stage.PROCESS_START) : null;
+        Process process = commandLine.createProcess();
+        if (start != null) {
+            start.finish();
+            RstRenderDiagnostics.getInstance().processStarted();
         }
 
-        return null;
+        // Cancelling the indicator destroys the whole process tree within a few milliseconds.
+        RstRenderTrace.Span convert = trace != null ? trace.startStage(RstRenderDiagnostics.Stage.CONVERT) : null;
+        ProcessOutput output = RstProcessIO.run(process, text, indicator, TIMEOUT_MS, trace);
+        if (convert != null && !output.isCancelled()) convert.finish();
+        return output;
     }
 
-    private static @NotNull String escapeHtml(@NotNull String text) {
+    static @NotNull String escapeHtml(@NotNull String text) {
         return text
                 .replace("&", "&amp;")
                 .replace("<", "&lt;")
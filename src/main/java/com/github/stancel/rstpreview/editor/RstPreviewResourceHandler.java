@@ -0,0 +1,114 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.cef.browser.CefBrowser;
+import org.cef.browser.CefFrame;
+import org.cef.callback.CefCallback;
+import org.cef.handler.CefRequestHandlerAdapter;
+import org.cef.handler.CefResourceHandler;
+import org.cef.handler.CefResourceHandlerAdapter;
+import org.cef.handler.CefResourceRequestHandler;
+import org.cef.handler.CefResourceRequestHandlerAdapter;
+import org.cef.misc.BoolRef;
+import org.cef.misc.IntRef;
+import org.cef.misc.StringRef;
+import org.cef.network.CefRequest;
+import org.cef.network.CefResponse;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Answers requests a preview page makes below {@link RstPreviewAssetCache#ORIGIN} with local files
+ * from {@link RstPreviewAssetCache}, and below {@link RstPreviewStyles#ORIGIN} with stylesheets.
+ * The file is read on a pooled thread, not on the CEF IO thread.
+ */
+final class RstPreviewResourceHandler extends CefRequestHandlerAdapter {
+    private record Document(@NotNull Project project, @Nullable VirtualFile directory) {}
+
+    // The previewed file; null while the browser previews nothing.
+    private volatile @Nullable Document myDocument;
+
+    /**
+     * @param directory the directory of the previewed file, whose files are served besides the
+     *                  project's; see {@link RstPreviewAssetCache#load}
+     */
+    void setDocument(@Nullable Project project, @Nullable VirtualFile directory) {
+        myDocument = project != null ? new Document(project, directory) : null;
+    }
+
+    @Override
+    public CefResourceRequestHandler getResourceRequestHandler(CefBrowser browser, CefFrame frame, CefRequest request,
+                                                               boolean isNavigation, boolean isDownload,
+                                                               String requestInitiator, BoolRef disableDefaultHandling) {
+        String url = request.getURL();
+        Document document = myDocument;
+        if (isNavigation) return null;
+        if (!RstPreviewStyles.isStyleUrl(url) && (document == null || RstPreviewAssetCache.toLocalPath(url) == null)) return null;
+        return new CefResourceRequestHandlerAdapter() {
+            @Override
+            public CefResourceHandler getResourceHandler(CefBrowser browser, CefFrame frame, CefRequest request) {
+                return new AssetResourceHandler(document);
+            }
+        };
+    }
+
+    private static final class AssetResourceHandler extends CefResourceHandlerAdapter {
+        private final @Nullable Document myDocument;
+        private volatile @Nullable RstPreviewAssetCache.Asset myAsset;
+        private volatile boolean myImmutable;
+        private int myOffset;
+
+        AssetResourceHandler(@Nullable Document document) {
+            myDocument = document;
+        }
+
+        @Override
+        public boolean processRequest(CefRequest request, CefCallback callback) {
+            String url = request.getURL();
+            AppExecutorUtil.getAppExecutorService().execute(() -> {
+                if (RstPreviewStyles.isStyleUrl(url)) {
+                    byte[] css = RstPreviewStyles.load(url);
+                    if (css != null) myAsset = new RstPreviewAssetCache.Asset(css, "text/css", 0);
+                    myImmutable = true;
+                } else if (myDocument != null && !myDocument.project().isDisposed()) {
+                    myAsset = RstPreviewAssetCache.getInstance(myDocument.project()).load(url, myDocument.directory());
+                }
+                callback.Continue();
+            });
+            return true;
+        }
+
+        @Override
+        public void getResponseHeaders(CefResponse response, IntRef responseLength, StringRef redirectUrl) {
+            RstPreviewAssetCache.Asset asset = myAsset;
+            if (asset == null) {
+                response.setStatus(404);
+                responseLength.set(0);
+                return;
+            }
+            response.setStatus(200);
+            response.setMimeType(asset.mimeType());
+            // A stylesheet URL names its content, so it never has to be checked again.
+            response.setHeaderByName("Cache-Control",
+                    myImmutable ? "max-age=31536000, immutable" : "no-cache", true);
+            responseLength.set(asset.bytes().length);
+        }
+
+        @Override
+        public boolean readResponse(byte[] dataOut, int bytesToRead, IntRef bytesRead, CefCallback callback) {
+            RstPreviewAssetCache.Asset asset = myAsset;
+            if (asset == null || myOffset >= asset.bytes().length) {
+                bytesRead.set(0);
+                return false;
+            }
+            int count = Math.min(bytesToRead, asset.bytes().length - myOffset);
+            System.arraycopy(asset.bytes(), myOffset, dataOut, 0, count);
+            myOffset += count;
+            bytesRead.set(count);
+            return true;
+        }
+    }
+}
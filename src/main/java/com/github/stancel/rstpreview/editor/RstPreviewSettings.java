@@ -6,18 +6,10 @@ import com.intellij.openapi.components.PersistentStateComponent;
 import com.intellij.openapi.components.RoamingType;
 import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
-import com.intellij.openapi.util.SystemInfo;
 import com.intellij.ui.jcef.JBCefApp;
 import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-
 @State(name = "RstPreviewSettings", storages = @Storage(value = "rstPreviewStandalone.xml", roamingType = RoamingType.DISABLED))
 public class RstPreviewSettings implements PersistentStateComponent<RstPreviewSettings> {
     public static final String JCEF = "JCEF";
@@ -25,6 +17,19 @@ public class RstPreviewSettings implements PersistentStateComponent<RstPreviewSe
 
     private @NotNull String myCurrentPanel = JBCefApp.isSupported() ? JCEF : SWING;
     private @NotNull String myRst2HtmlCommand = "";
+    private boolean myUseDocutilsWorker = true;
+    private boolean myUseBuiltInRenderer = false;
+    private int myRenderCacheSizeMb = 32;
+    private int myDiskCacheSizeMb = 256;
+    private boolean myIncrementalDomUpdates = true;
+    private boolean myIncrementalRendering = true;
+    private boolean myDownscaleLargeImages = true;
+    private int myMaxConcurrentRenders = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private int myLargeDocumentThresholdKb = 2048;
+    private boolean myPrewarmPreviews = true;
+    private boolean mySyncScrolling = true;
+    private int myBrowserPoolSize = 4;
+    private int myPreviewMemoryBudgetMb = 512;
 
     public @NotNull String getCurrentPanel() {
         return myCurrentPanel;
@@ -34,10 +39,11 @@ public class RstPreviewSettings implements PersistentStateComponent<RstPreviewSe
         myCurrentPanel = currentPanel;
     }
 
+    /**
+     * @return the configured rst2html command, or an empty string to detect it; see
+     * {@link RstToolchainService}
+     */
     public @NotNull String getRst2HtmlCommand() {
-        if (myRst2HtmlCommand.isEmpty()) {
-            myRst2HtmlCommand = findRst2Html();
-        }
         return myRst2HtmlCommand;
     }
 
@@ -45,6 +51,133 @@ public class RstPreviewSettings implements PersistentStateComponent<RstPreviewSe
         myRst2HtmlCommand = rst2HtmlCommand;
     }
 
+    public boolean isUseDocutilsWorker() {
+        return myUseDocutilsWorker;
+    }
+
+    public void setUseDocutilsWorker(boolean useDocutilsWorker) {
+        myUseDocutilsWorker = useDocutilsWorker;
+    }
+
+    /**
+     * Whether documents that only use common constructs are rendered in-process by
+     * {@link RstJavaRenderer} instead of docutils.
+     */
+    public boolean isUseBuiltInRenderer() {
+        return myUseBuiltInRenderer;
+    }
+
+    public void setUseBuiltInRenderer(boolean useBuiltInRenderer) {
+        myUseBuiltInRenderer = useBuiltInRenderer;
+    }
+
+    public int getRenderCacheSizeMb() {
+        return myRenderCacheSizeMb;
+    }
+
+    public void setRenderCacheSizeMb(int renderCacheSizeMb) {
+        myRenderCacheSizeMb = renderCacheSizeMb;
+    }
+
+    /**
+     * @return the size cap of {@link RstRenderDiskCache}, or 0 to keep nothing on disk
+     */
+    public int getDiskCacheSizeMb() {
+        return myDiskCacheSizeMb;
+    }
+
+    public void setDiskCacheSizeMb(int diskCacheSizeMb) {
+        myDiskCacheSizeMb = diskCacheSizeMb;
+    }
+
+    public boolean isIncrementalDomUpdates() {
+        return myIncrementalDomUpdates;
+    }
+
+    public void setIncrementalDomUpdates(boolean incrementalDomUpdates) {
+        myIncrementalDomUpdates = incrementalDomUpdates;
+    }
+
+    public boolean isIncrementalRendering() {
+        return myIncrementalRendering;
+    }
+
+    public void setIncrementalRendering(boolean incrementalRendering) {
+        myIncrementalRendering = incrementalRendering;
+    }
+
+    public int getMaxConcurrentRenders() {
+        return myMaxConcurrentRenders;
+    }
+
+    public void setMaxConcurrentRenders(int maxConcurrentRenders) {
+        myMaxConcurrentRenders = maxConcurrentRenders;
+    }
+
+    public boolean isDownscaleLargeImages() {
+        return myDownscaleLargeImages;
+    }
+
+    public void setDownscaleLargeImages(boolean downscaleLargeImages) {
+        myDownscaleLargeImages = downscaleLargeImages;
+    }
+
+    /**
+     * @return the HTML size from which the JCEF preview only keeps the visible part of the page in
+     * the browser, or 0 to always load the whole page
+     */
+    public int getLargeDocumentThresholdKb() {
+        return myLargeDocumentThresholdKb;
+    }
+
+    public void setLargeDocumentThresholdKb(int largeDocumentThresholdKb) {
+        myLargeDocumentThresholdKb = largeDocumentThresholdKb;
+    }
+
+    /**
+     * Whether {@link RstPreviewPrewarmer} renders restored, nearby and recent files in the background.
+     */
+    public boolean isPrewarmPreviews() {
+        return myPrewarmPreviews;
+    }
+
+    public void setPrewarmPreviews(boolean prewarmPreviews) {
+        myPrewarmPreviews = prewarmPreviews;
+    }
+
+    /**
+     * Whether the preview scrolls along with the editor; see {@link RstSourceLineIndex}.
+     */
+    public boolean isSyncScrolling() {
+        return mySyncScrolling;
+    }
+
+    public void setSyncScrolling(boolean syncScrolling) {
+        mySyncScrolling = syncScrolling;
+    }
+
+    /**
+     * @return how many JCEF browsers the previews share; see {@link RstJcefBrowserPool}
+     */
+    public int getBrowserPoolSize() {
+        return myBrowserPoolSize;
+    }
+
+    public void setBrowserPoolSize(int browserPoolSize) {
+        myBrowserPoolSize = browserPoolSize;
+    }
+
+    /**
+     * @return the estimated memory the JCEF browsers and the snapshots of hibernated previews may take
+     */
+    public int getPreviewMemoryBudgetMb() {
+        return myPreviewMemoryBudgetMb;
+    }
+
+    public void setPreviewMemoryBudgetMb(int previewMemoryBudgetMb) {
+        myPreviewMemoryBudgetMb = previewMemoryBudgetMb;
+    }
+
     public static RstPreviewSettings getInstance() {
         return ApplicationManager.getApplication().getService(RstPreviewSettings.class);
     }
@@ -58,48 +191,4 @@ public class RstPreviewSettings implements PersistentStateComponent<RstPreviewSe
     public void loadState(@NotNull RstPreviewSettings state) {
         XmlSerializerUtil.copyBean(state, this);
     }
-
-    private static @NotNull String findRst2Html() {
-        List<String> candidates = new ArrayList<>();
-
-        String pathEnv = System.getenv("PATH");
-        if (pathEnv != null) {
-            for (String dir : pathEnv.split(File.pathSeparator)) {
-                candidates.add(Paths.get(dir, "rst2html").toString());
-                candidates.add(Paths.get(dir, "rst2html.py").toString());
-            }
-        }
-
-        String homeDir = System.getProperty("user.home");
-        if (homeDir != null) {
-            // pyenv
-            candidates.add(Paths.get(homeDir, ".pyenv", "shims", "rst2html").toString());
-            // Local bin
-            candidates.add(Paths.get(homeDir, ".local", "bin", "rst2html").toString());
-            // pyenv versions
-            try {
-                Path pyenvVersions = Paths.get(homeDir, ".pyenv", "versions");
-                if (Files.exists(pyenvVersions) && Files.isDirectory(pyenvVersions)) {
-                    Files.list(pyenvVersions).forEach(version -> {
-                        candidates.add(version.resolve("bin/rst2html").toString());
-                    });
-                }
-            } catch (Exception ignored) {}
-        }
-
-        if (!SystemInfo.isWindows) {
-            candidates.add("/usr/bin/rst2html");
-            candidates.add("/usr/bin/rst2html.py");
-            candidates.add("/usr/local/bin/rst2html");
-        }
-
-        for (String candidate : candidates) {
-            Path path = Paths.get(candidate);
-            if (Files.exists(path) && Files.isExecutable(path)) {
-                return candidate;
-            }
-        }
-
-        return "rst2html";
-    }
 }
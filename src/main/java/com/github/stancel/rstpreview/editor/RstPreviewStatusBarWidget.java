@@ -0,0 +1,89 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.fileEditor.TextEditorWithPreview;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.StatusBarWidget;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+
+/**
+ * Shows the last render time of the selected RST preview and the delay the update scheduler
+ * currently waits after an edit.
+ */
+final class RstPreviewStatusBarWidget implements StatusBarWidget, StatusBarWidget.TextPresentation {
+    private final @NotNull Project myProject;
+    private @Nullable StatusBar myStatusBar;
+
+    RstPreviewStatusBarWidget(@NotNull Project project) {
+        myProject = project;
+    }
+
+    @Override
+    public @NonNls @NotNull String ID() {
+        return RstPreviewStatusBarWidgetFactory.ID;
+    }
+
+    @Override
+    public @Nullable WidgetPresentation getPresentation() {
+        return this;
+    }
+
+    @Override
+    public void install(@NotNull StatusBar statusBar) {
+        myStatusBar = statusBar;
+        myProject.getMessageBus().connect(this).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER,
+                new FileEditorManagerListener() {
+                    @Override
+                    public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+                        if (myStatusBar != null) myStatusBar.updateWidget(ID());
+                    }
+                });
+    }
+
+    @Override
+    public @NotNull String getText() {
+        RstPreviewFileEditor preview = findSelectedPreview();
+        if (preview == null) return "";
+        RstPreviewUpdateScheduler scheduler = preview.getScheduler();
+        long latencyMs = scheduler.getLastLatencyMs();
+        if (latencyMs < 0) return "";
+        return "RST " + latencyMs + " ms";
+    }
+
+    @Override
+    public @Nullable String getTooltipText() {
+        RstPreviewFileEditor preview = findSelectedPreview();
+        if (preview == null) return null;
+        RstPreviewUpdateScheduler scheduler = preview.getScheduler();
+        return "Last preview render: " + scheduler.getLastLatencyMs() + " ms (average " +
+               scheduler.getAverageLatencyMs() + " ms); update delay after typing: " + scheduler.getLastDelayMs() + " ms";
+    }
+
+    @Override
+    public float getAlignment() {
+        return Component.CENTER_ALIGNMENT;
+    }
+
+    private @Nullable RstPreviewFileEditor findSelectedPreview() {
+        if (myProject.isDisposed()) return null;
+        FileEditor editor = FileEditorManager.getInstance(myProject).getSelectedEditor();
+        if (editor instanceof TextEditorWithPreview split && split.getPreviewEditor() instanceof RstPreviewFileEditor preview) {
+            return preview;
+        }
+        return null;
+    }
+
+    @Override
+    public void dispose() {
+        myStatusBar = null;
+    }
+}
@@ -0,0 +1,42 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.NlsContexts;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.StatusBarWidget;
+import com.intellij.openapi.wm.StatusBarWidgetFactory;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Adds a status bar widget showing how long the selected RST preview takes to render.
+ */
+public final class RstPreviewStatusBarWidgetFactory implements StatusBarWidgetFactory {
+    public static final @NonNls String ID = "RstPreviewStatus";
+
+    @Override
+    public @NonNls @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @NlsContexts.ConfigurableName @NotNull String getDisplayName() {
+        return "ReStructuredText Preview Timing";
+    }
+
+    @Override
+    public boolean isAvailable(@NotNull Project project) {
+        return true;
+    }
+
+    @Override
+    public @NotNull StatusBarWidget createWidget(@NotNull Project project) {
+        return new RstPreviewStatusBarWidget(project);
+    }
+
+    @Override
+    public boolean canBeEnabledOn(@NotNull StatusBar statusBar) {
+        return true;
+    }
+}
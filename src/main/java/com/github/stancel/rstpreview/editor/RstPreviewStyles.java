@@ -0,0 +1,101 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stylesheets of JCEF preview pages, served as resources below {@link #ORIGIN} instead of being
+ * sent with every page. A stylesheet's URL is made from a hash of its text, so the browser keeps
+ * it for good, and pages with the same styles, such as all pages from one docutils version, share
+ * one parsed copy.
+ */
+final class RstPreviewStyles {
+    static final String ORIGIN = "http://rst-preview-styles.localhost";
+
+    private static final Pattern HEAD_ELEMENT = Pattern.compile("<style[^>]*>(.*?)</style>|<link\\b[^>]*>",
+            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern STYLESHEET_REL = Pattern.compile("\\brel\\s*=\\s*[\"']?stylesheet\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HREF = Pattern.compile("\\bhref\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BODY_START = Pattern.compile("<body\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    // Few distinct stylesheets exist at a time: the two themes and one per renderer version.
+    private static final int MAX_STYLES = 32;
+    private static final Map<String, byte[]> ourStyles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_STYLES;
+        }
+    };
+
+    /**
+     * A page taken apart for a preview that stays loaded.
+     *
+     * @param stylesheets the URLs of the page's stylesheets in document order, relative ones
+     *                    resolving against the page base
+     * @param body        the content of {@code <body>}
+     */
+    record Page(@NotNull List<String> stylesheets, @NotNull String body) {}
+
+    private RstPreviewStyles() {
+    }
+
+    /**
+     * @return the URL {@code css} is served at
+     */
+    static @NotNull String register(@NotNull String css) {
+        String url = ORIGIN + "/" + RstRenderCache.computeKey(css, null, "stylesheet", List.of()) + ".css";
+        synchronized (ourStyles) {
+            if (ourStyles.get(url) == null) ourStyles.put(url, css.getBytes(StandardCharsets.UTF_8));
+        }
+        return url;
+    }
+
+    /**
+     * @return the stylesheet at {@code url}, or {@code null} if it isn't a registered one
+     */
+    static byte @Nullable [] load(@NotNull String url) {
+        synchronized (ourStyles) {
+            return ourStyles.get(url);
+        }
+    }
+
+    static boolean isStyleUrl(@NotNull String url) {
+        return url.startsWith(ORIGIN + "/");
+    }
+
+    /**
+     * Splits a standalone page into its stylesheets, with embedded ones registered, and its body.
+     * Everything else in {@code <head>} is dropped, as the preview shell has its own.
+     */
+    static @NotNull Page split(@NotNull String html) {
+        int headEnd = StringUtil.indexOfIgnoreCase(html, "</head>", 0);
+        List<String> stylesheets = new ArrayList<>();
+        if (headEnd >= 0) {
+            Matcher matcher = HEAD_ELEMENT.matcher(html).region(0, headEnd);
+            while (matcher.find()) {
+                if (matcher.group(1) != null) {
+                    stylesheets.add(register(matcher.group(1)));
+                } else if (STYLESHEET_REL.matcher(matcher.group()).find()) {
+                    Matcher href = HREF.matcher(matcher.group());
+                    if (href.find()) {
+                        stylesheets.add(StringUtil.unescapeXmlEntities(href.group(1) != null ? href.group(1) : href.group(2)));
+                    }
+                }
+            }
+        }
+
+        Matcher bodyStart = BODY_START.matcher(html).region(Math.max(0, headEnd), html.length());
+        if (!bodyStart.find()) return new Page(stylesheets, headEnd >= 0 ? "" : html);
+        int bodyEnd = StringUtil.lastIndexOfIgnoreCase(html, "</body>", html.length());
+        return new Page(stylesheets, html.substring(bodyStart.end(), bodyEnd >= bodyStart.end() ? bodyEnd : html.length()));
+    }
+}
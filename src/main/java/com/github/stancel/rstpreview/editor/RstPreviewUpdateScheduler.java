@@ -0,0 +1,155 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+/**
+ * Decides how long a preview waits after an edit before it renders, based on how long this file
+ * took to render recently and how big it is.
+ * <p>
+ * An edit after a pause renders right away. While the user keeps typing the delay grows with the
+ * measured render time, so renders don't pile up behind the keyboard, but the preview is never
+ * left more than {@link #MAX_STALENESS_MS} behind the document. At most one render is in flight;
+ * edits made meanwhile are picked up by a single follow-up render.
+ */
+final class RstPreviewUpdateScheduler {
+    /** Returned when no render should be scheduled now. */
+    static final long NO_RENDER = -1L;
+
+    private static final long IDLE_MS = 750L;
+    private static final long MIN_TYPING_DELAY_MS = 20L;
+    private static final long MAX_DELAY_MS = 1500L;
+    private static final long MAX_STALENESS_MS = 2000L;
+    private static final double BACKOFF_STEP = 1.5;
+    private static final double MAX_BACKOFF = 8.0;
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private double myLatencyMs = -1;
+    private long myLastEditTime;
+    private long myFirstPendingEditTime;
+    private long myScheduledTime;
+    private boolean myRendering;
+    private boolean myEditedWhileRendering;
+    private double myBackoff = 1.0;
+    private long myLastDelayMs;
+    private long myLastLatencyMs = -1;
+    private long myLastCompletedTime = System.currentTimeMillis();
+
+    /**
+     * @return the delay before the next render, or {@link #NO_RENDER} if a render is in flight
+     */
+    synchronized long documentChanged(int documentLength) {
+        long now = System.currentTimeMillis();
+        boolean idle = now - myLastEditTime > IDLE_MS;
+        boolean renderPending = myScheduledTime > now;
+        myLastEditTime = now;
+        if (myFirstPendingEditTime == 0) myFirstPendingEditTime = now;
+
+        if (myRendering) {
+            myEditedWhileRendering = true;
+            myBackoff = Math.min(myBackoff * BACKOFF_STEP, MAX_BACKOFF);
+            return NO_RENDER;
+        }
+
+        if (idle && !renderPending) {
+            myBackoff = 1.0;
+            return schedule(now, 0);
+        }
+        if (renderPending) {
+            myBackoff = Math.min(myBackoff * BACKOFF_STEP, MAX_BACKOFF);
+        }
+
+        long delay = (long) (Math.max(MIN_TYPING_DELAY_MS, estimateLatencyMs(documentLength)) * myBackoff);
+        return schedule(now, delay);
+    }
+
+    /**
+     * Called when a render is requested outside of editing, e.g. when the preview is shown.
+     */
+    synchronized long renderRequested() {
+        if (myRendering) {
+            myEditedWhileRendering = true;
+            return NO_RENDER;
+        }
+        return schedule(System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @return how long the oldest edit waited for this render in milliseconds, or -1 if it wasn't
+     * started by an edit
+     */
+    synchronized long renderStarted() {
+        long delayMs = myFirstPendingEditTime == 0 ? -1 : System.currentTimeMillis() - myFirstPendingEditTime;
+        myRendering = true;
+        myEditedWhileRendering = false;
+        myFirstPendingEditTime = 0;
+        myScheduledTime = 0;
+        return delayMs;
+    }
+
+    /**
+     * Tells whether a render in flight should be abandoned for a newer edit. It is kept when the
+     * preview is already at its maximum staleness, as otherwise fast typing could starve it.
+     */
+    synchronized boolean shouldCancelRenderInFlight() {
+        return System.currentTimeMillis() - myLastCompletedTime < MAX_STALENESS_MS;
+    }
+
+    /**
+     * Called when the render scheduler turned a render down because it is saturated; a follow-up
+     * render is scheduled with a longer delay once this one is reported finished.
+     */
+    synchronized void retryLater() {
+        myEditedWhileRendering = true;
+        myBackoff = Math.min(myBackoff * BACKOFF_STEP, MAX_BACKOFF);
+    }
+
+    /**
+     * @param completed {@code false} if the render was cancelled; its time isn't representative
+     * @return the delay before the follow-up render, or {@link #NO_RENDER} if nothing changed meanwhile
+     */
+    synchronized long renderFinished(long latencyMs, int documentLength, boolean completed) {
+        myRendering = false;
+        if (completed) {
+            myLastCompletedTime = System.currentTimeMillis();
+            myLastLatencyMs = latencyMs;
+            myLatencyMs = myLatencyMs < 0 ? latencyMs : myLatencyMs + LATENCY_SMOOTHING * (latencyMs - myLatencyMs);
+        }
+        if (!myEditedWhileRendering) return NO_RENDER;
+
+        long now = System.currentTimeMillis();
+        long delay = now - myLastEditTime > IDLE_MS && completed
+                     ? 0
+                     : (long) (Math.max(MIN_TYPING_DELAY_MS, estimateLatencyMs(documentLength)) * myBackoff);
+        return schedule(now, delay);
+    }
+
+    synchronized long getLastDelayMs() {
+        return myLastDelayMs;
+    }
+
+    /**
+     * @return the duration of the last render, or -1 if nothing has been rendered yet
+     */
+    synchronized long getLastLatencyMs() {
+        return myLastLatencyMs;
+    }
+
+    synchronized long getAverageLatencyMs() {
+        return Math.round(myLatencyMs);
+    }
+
+    private long schedule(long now, long delay) {
+        long latest = myFirstPendingEditTime == 0 ? now + delay : myFirstPendingEditTime + MAX_STALENESS_MS;
+        delay = Math.max(0, Math.min(Math.min(delay, MAX_DELAY_MS), latest - now));
+        myScheduledTime = now + delay;
+        myLastDelayMs = delay;
+        return delay;
+    }
+
+    /**
+     * Uses the measured render time once there is one, and a size-based guess before that.
+     */
+    private double estimateLatencyMs(int documentLength) {
+        if (myLatencyMs >= 0) return myLatencyMs;
+        return 50 + documentLength / 2048.0;
+    }
+}
@@ -0,0 +1,227 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.process.OSProcessUtil;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Streams document text to rst2html and its output back without whole-document copies: stdin is
+ * encoded straight from the document's {@link CharSequence} in 64 KB chunks, and stdout is read
+ * into pooled chunks and decoded once into the String that is cached and shown.
+ */
+final class RstProcessIO {
+    private static final Logger LOG = Logger.getInstance(RstProcessIO.class);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int POLL_MS = 20;
+
+    // At most 2 MB of chunks and a few encoders are kept between renders.
+    private static final ArrayBlockingQueue<byte[]> ourChunks = new ArrayBlockingQueue<>(32);
+    private static final ArrayBlockingQueue<CharsetEncoder> ourEncoders = new ArrayBlockingQueue<>(8);
+
+    @FunctionalInterface
+    interface ByteSink {
+        void write(byte @NotNull [] bytes, int offset, int length) throws IOException;
+    }
+
+    private RstProcessIO() {
+    }
+
+    /**
+     * Feeds {@code input} to the process on a virtual thread, collects stdout and stderr on two
+     * more, and waits for the process to exit and the output to be read. Cancelling
+     * {@code indicator} or running into the timeout kills the process tree.
+     */
+    static @NotNull ProcessOutput run(@NotNull Process process, @NotNull CharSequence input,
+                                      @NotNull ProgressIndicator indicator, int timeoutMs,
+                                      @Nullable RstRenderTrace trace) {
+        Thread.ofVirtual().name("RST Preview rst2html stdin").start(() -> {
+            RstRenderTrace.Span transfer = trace != null ? trace.startStage(RstRenderDiagnostics.Stage.TRANSFER) : null;
+            try (OutputStream stdin = process.getOutputStream()) {
+                encode(input, stdin::write);
+            } catch (IOException e) {
+                LOG.debug("Error writing to stdin", e);
+            }
+            if (transfer != null) transfer.finish();
+        });
+        CompletableFuture<String> stdout = readAsync(process.getInputStream(), "stdout");
+        CompletableFuture<String> stderr = readAsync(process.getErrorStream(), "stderr");
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean completed = false;
+        try {
+            boolean exited = false;
+            while (!exited && !indicator.isCanceled() && System.currentTimeMillis() <= deadline) {
+                exited = process.waitFor(POLL_MS, TimeUnit.MILLISECONDS);
+            }
+            // A process the script started may keep the pipes open after rst2html exits.
+            String out = exited ? await(stdout, indicator, deadline) : null;
+            String err = out != null ? await(stderr, indicator, deadline) : null;
+            if (out == null || err == null) {
+                boolean cancelled = indicator.isCanceled();
+                return new ProcessOutput("", "", -1, !cancelled, cancelled);
+            }
+            completed = true;
+            return new ProcessOutput(out, err, process.exitValue(), false, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ProcessOutput("", "", -1, false, true);
+        } catch (ExecutionException e) {
+            return new ProcessOutput("", "Error reading rst2html output: " + e.getCause().getMessage(), -1, false, false);
+        } finally {
+            // Whatever else went wrong, the process or one it started may still be running.
+            if (!completed) OSProcessUtil.killProcessTree(process);
+        }
+    }
+
+    /**
+     * Waits for {@code output} until {@code deadline}, checking for cancellation every
+     * {@link #POLL_MS}.
+     *
+     * @return the output, or {@code null} if cancelled or out of time
+     */
+    private static @Nullable String await(@NotNull CompletableFuture<String> output, @NotNull ProgressIndicator indicator,
+                                          long deadline) throws InterruptedException, ExecutionException {
+        while (!indicator.isCanceled()) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs < 0) return null;
+            try {
+                return output.get(Math.min(POLL_MS, remainingMs), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes {@code text} as UTF-8 into {@code sink} one chunk at a time. Unpaired surrogates
+     * become {@code '?'}, as with {@link String#getBytes}.
+     */
+    static void encode(@NotNull CharSequence text, @NotNull ByteSink sink) throws IOException {
+        CharsetEncoder encoder = ourEncoders.poll();
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        byte[] chunk = acquireChunk();
+        try {
+            CharBuffer in = CharBuffer.wrap(text);
+            ByteBuffer out = ByteBuffer.wrap(chunk);
+            boolean flushing = false;
+            while (true) {
+                CoderResult result = flushing ? encoder.flush(out) : encoder.encode(in, out, true);
+                if (result.isOverflow()) {
+                    sink.write(chunk, 0, out.position());
+                    out.clear();
+                } else if (result.isUnderflow()) {
+                    if (flushing) break;
+                    flushing = true;
+                } else {
+                    result.throwException();
+                }
+            }
+            if (out.position() > 0) sink.write(chunk, 0, out.position());
+        } finally {
+            encoder.reset();
+            ourEncoders.offer(encoder);
+            ourChunks.offer(chunk);
+        }
+    }
+
+    /**
+     * The number of bytes {@link #encode} produces for {@code text}.
+     */
+    static long utf8Length(@NotNull CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                length += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads {@code in} to the end, or only {@code limit} bytes if it isn't negative, and decodes it as UTF-8.
+     */
+    static @NotNull String readString(@NotNull InputStream in, long limit) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        byte[] chunk = acquireChunk();
+        chunks.add(chunk);
+        int filled = 0;
+        long remaining = limit < 0 ? Long.MAX_VALUE : limit;
+        try {
+            while (remaining > 0) {
+                if (filled == chunk.length) {
+                    chunk = acquireChunk();
+                    chunks.add(chunk);
+                    filled = 0;
+                }
+                int read = in.read(chunk, filled, (int) Math.min(chunk.length - filled, remaining));
+                if (read < 0) {
+                    if (limit >= 0) throw new IOException("stream ended " + remaining + " bytes early");
+                    break;
+                }
+                filled += read;
+                remaining -= read;
+            }
+            if (chunks.size() == 1) return new String(chunk, 0, filled, StandardCharsets.UTF_8);
+
+            byte[] all = new byte[(chunks.size() - 1) * CHUNK_SIZE + filled];
+            for (int i = 0; i < chunks.size(); i++) {
+                System.arraycopy(chunks.get(i), 0, all, i * CHUNK_SIZE, i < chunks.size() - 1 ? CHUNK_SIZE : filled);
+            }
+            return new String(all, StandardCharsets.UTF_8);
+        } finally {
+            for (byte[] used : chunks) ourChunks.offer(used);
+        }
+    }
+
+    private static @NotNull CompletableFuture<String> readAsync(@NotNull InputStream in, @NotNull String name) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Thread.ofVirtual().name("RST Preview rst2html " + name).start(() -> {
+            try (in) {
+                result.complete(readString(in, -1));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static byte @NotNull [] acquireChunk() {
+        byte[] chunk = ourChunks.poll();
+        return chunk != null ? chunk : new byte[CHUNK_SIZE];
+    }
+}
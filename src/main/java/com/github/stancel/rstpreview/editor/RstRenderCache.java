@@ -0,0 +1,150 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application-wide cache of rendered previews, keyed by a hash of everything that affects the
+ * rst2html output. Entries are evicted least-recently-used first once the memory budget from
+ * {@link RstPreviewSettings#getRenderCacheSizeMb()} is exceeded. Misses fall back to
+ * {@link RstRenderDiskCache}, and entries reach the disk through {@link #persist} once a preview
+ * has shown them, so renders that were only passed through don't wear out the disk.
+ */
+public final class RstRenderCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 128L;
+
+    private final LinkedHashMap<String, Pair<String, String>> myEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private long myUsedBytes;
+    private final AtomicLong myHits = new AtomicLong();
+    private final AtomicLong myMisses = new AtomicLong();
+
+    public static RstRenderCache getInstance() {
+        return ApplicationManager.getApplication().getService(RstRenderCache.class);
+    }
+
+    public static @NotNull String computeKey(@NotNull CharSequence text, @Nullable String workDir,
+                                             @NotNull String rst2htmlCommand, @NotNull List<String> args) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, rst2htmlCommand);
+        update(digest, String.join("\0", args));
+        update(digest, workDir != null ? workDir : "");
+        update(digest, text);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(@NotNull MessageDigest digest, @NotNull CharSequence value) {
+        digest.update(Long.toString(RstProcessIO.utf8Length(value)).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        try {
+            RstProcessIO.encode(value, digest::update);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public @Nullable Pair<String, String> get(@NotNull String key) {
+        synchronized (this) {
+            Pair<String, String> entry = myEntries.get(key);
+            if (entry != null) {
+                myHits.incrementAndGet();
+                return entry;
+            }
+        }
+        // Read outside the lock, so a slow disk doesn't hold up other editors' memory hits.
+        Pair<String, String> stored = RstRenderDiskCache.getInstance().get(key);
+        if (stored == null) {
+            myMisses.incrementAndGet();
+            return null;
+        }
+        myHits.incrementAndGet();
+        put(key, stored);
+        return stored;
+    }
+
+    public synchronized void put(@NotNull String key, @NotNull Pair<String, String> htmlAndError) {
+        long budget = getBudgetBytes();
+        long size = sizeOf(key, htmlAndError);
+        if (size > budget) return;
+
+        Pair<String, String> previous = myEntries.put(key, htmlAndError);
+        if (previous != null) myUsedBytes -= sizeOf(key, previous);
+        myUsedBytes += size;
+        trimTo(budget);
+    }
+
+    /**
+     * Writes the entries for {@code keys} that are still in memory to {@link RstRenderDiskCache}.
+     */
+    public void persist(@NotNull Collection<String> keys) {
+        RstRenderDiskCache diskCache = RstRenderDiskCache.getInstance();
+        for (String key : keys) {
+            Pair<String, String> entry;
+            synchronized (this) {
+                entry = myEntries.get(key);
+            }
+            if (entry != null) diskCache.put(key, entry);
+        }
+    }
+
+    public synchronized void trimToBudget() {
+        trimTo(getBudgetBytes());
+    }
+
+    public synchronized void clear() {
+        myEntries.clear();
+        myUsedBytes = 0;
+    }
+
+    public long getHitCount() {
+        return myHits.get();
+    }
+
+    public long getMissCount() {
+        return myMisses.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return myEntries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return myUsedBytes;
+    }
+
+    private void trimTo(long budget) {
+        Iterator<Map.Entry<String, Pair<String, String>>> iterator = myEntries.entrySet().iterator();
+        while (myUsedBytes > budget && iterator.hasNext()) {
+            Map.Entry<String, Pair<String, String>> eldest = iterator.next();
+            myUsedBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long getBudgetBytes() {
+        return RstPreviewSettings.getInstance().getRenderCacheSizeMb() * 1024L * 1024L;
+    }
+
+    private static long sizeOf(@NotNull String key, @NotNull Pair<String, String> htmlAndError) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + htmlAndError.getFirst().length() + htmlAndError.getSecond().length());
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManagerCore;
+import com.intellij.openapi.application.ApplicationInfo;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.extensions.PluginId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times every stage of preview rendering, for all previews together and per file, and counts what
+ * the render pipeline did. Shown in the RST Preview Diagnostics tool window and copied by
+ * {@link RstCopyDiagnosticsAction}.
+ */
+public final class RstRenderDiagnostics {
+    private static final String PLUGIN_ID = "com.github.stancel.rst-preview-standalone";
+    private static final int MAX_FILES = 100;
+    private static final int REPORTED_FILES = 10;
+
+    public enum Stage {
+        DEBOUNCE("Update delay"),
+        QUEUE("Render queue wait"),
+        PROCESS_START("Process start"),
+        TRANSFER("stdin transfer"),
+        CONVERT("rst2html / docutils"),
+        POST_PROCESS("HTML post-processing"),
+        PANEL_PREPARE("Panel prepare"),
+        PANEL_SHOW("Panel show (EDT)"),
+        PAGE_LOAD("JCEF page load"),
+        TOTAL("Render to screen");
+
+        private final String myDisplayName;
+
+        Stage(@NotNull String displayName) {
+            myDisplayName = displayName;
+        }
+
+        public @NotNull String getDisplayName() {
+            return myDisplayName;
+        }
+    }
+
+    /**
+     * How a conversion ended. {@link #DOCUMENT_ERROR} means the converter ran and rejected the
+     * document; {@link #ERROR} means it crashed or couldn't be run.
+     */
+    public enum Outcome { SUCCESS, DOCUMENT_ERROR, CANCELLED, TIMEOUT, ERROR }
+
+    private final RstLatencyHistogram[] myStages = newStages();
+    private final Map<String, RstLatencyHistogram[]> myFiles = new ConcurrentHashMap<>();
+    private final AtomicLongArray myOutcomes = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLong myProcessesStarted = new AtomicLong();
+    private final AtomicLong myWorkerStarts = new AtomicLong();
+    private final AtomicLong myWorkerRequests = new AtomicLong();
+
+    public static RstRenderDiagnostics getInstance() {
+        return ApplicationManager.getApplication().getService(RstRenderDiagnostics.class);
+    }
+
+    /**
+     * @param path the previewed file, or {@code null} to only count it across the IDE
+     */
+    public void record(@Nullable String path, @NotNull Stage stage, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        myStages[stage.ordinal()].record(micros);
+        if (path == null) return;
+
+        RstLatencyHistogram[] file = myFiles.get(path);
+        if (file == null) {
+            if (myFiles.size() >= MAX_FILES) {
+                Iterator<String> iterator = myFiles.keySet().iterator();
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            file = myFiles.computeIfAbsent(path, ignored -> newStages());
+        }
+        file[stage.ordinal()].record(micros);
+    }
+
+    public void outcome(@NotNull Outcome outcome) {
+        myOutcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    void processStarted() {
+        myProcessesStarted.incrementAndGet();
+    }
+
+    void workerStarted() {
+        myWorkerStarts.incrementAndGet();
+    }
+
+    void workerRequest() {
+        myWorkerRequests.incrementAndGet();
+    }
+
+    public void reset() {
+        for (RstLatencyHistogram histogram : myStages) histogram.reset();
+        myFiles.clear();
+        for (int i = 0; i < myOutcomes.length(); i++) myOutcomes.set(i, 0);
+        myProcessesStarted.set(0);
+        myWorkerStarts.set(0);
+        myWorkerRequests.set(0);
+    }
+
+    /**
+     * @param selectedPath a file whose stages are listed first, e.g. the one in the selected editor
+     * @return a plain text report suitable for bug reports
+     */
+    public @NotNull String buildReport(@Nullable String selectedPath) {
+        StringBuilder report = new StringBuilder();
+        IdeaPluginDescriptor plugin = PluginManagerCore.getPlugin(PluginId.getId(PLUGIN_ID));
+        report.append("ReStructuredText Preview ").append(plugin != null ? plugin.getVersion() : "?")
+              .append(" on ").append(ApplicationInfo.getInstance().getFullApplicationName()).append('\n');
+
+        RstToolchainService.Toolchain toolchain = RstToolchainService.getInstance().getToolchain().getNow(null);
+        report.append("rst2html: ").append(toolchain == null ? "(resolving)" : String.join(" ", toolchain.launchCommand()) +
+                (toolchain.executable() ? "" : " (not found)") + ", docutils " + toolchain.docutilsVersion()).append('\n');
+
+        RstPreviewSettings settings = RstPreviewSettings.getInstance();
+        report.append("Settings: panel=").append(settings.getCurrentPanel())
+              .append(", worker=").append(settings.isUseDocutilsWorker())
+              .append(", incrementalRendering=").append(settings.isIncrementalRendering())
+              .append(", incrementalDom=").append(settings.isIncrementalDomUpdates())
+              .append(", maxConcurrentRenders=").append(settings.getMaxConcurrentRenders()).append("\n\n");
+
+        report.append("All previews\n");
+        appendStages(report, myStages);
+
+        if (selectedPath != null) {
+            RstLatencyHistogram[] selected = myFiles.get(selectedPath);
+            if (selected != null) {
+                report.append('\n').append(selectedPath).append('\n');
+                appendStages(report, selected);
+            }
+        }
+
+        report.append("\nConversions: ");
+        for (Outcome outcome : Outcome.values()) {
+            report.append(outcome.name().toLowerCase()).append('=').append(myOutcomes.get(outcome.ordinal())).append(' ');
+        }
+        report.append("\nProcesses: rst2html started=").append(myProcessesStarted.get())
+              .append(", worker starts=").append(myWorkerStarts.get())
+              .append(", worker requests=").append(myWorkerRequests.get()).append('\n');
+
+        report.append("Renderer backends\n");
+        RstRendererSelector.getInstance().appendReport(report);
+
+        RstRenderCache cache = RstRenderCache.getInstance();
+        long hits = cache.getHitCount();
+        long lookups = hits + cache.getMissCount();
+        report.append("Render cache: ").append(hits).append('/').append(lookups).append(" hits")
+              .append(lookups > 0 ? String.format(" (%.0f%%)", 100.0 * hits / lookups) : "")
+              .append(", ").append(cache.getEntryCount()).append(" entries, ")
+              .append(cache.getUsedBytes() / 1024).append(" KB\n");
+
+        RstRenderDiskCache diskCache = RstRenderDiskCache.getInstance();
+        long diskHits = diskCache.getHitCount();
+        long diskLookups = diskHits + diskCache.getMissCount();
+        report.append("Disk cache: ").append(diskHits).append('/').append(diskLookups).append(" hits")
+              .append(diskLookups > 0 ? String.format(" (%.0f%%)", 100.0 * diskHits / diskLookups) : "")
+              .append(", ").append(diskCache.getEntryCount()).append(" entries, ")
+              .append(diskCache.getTotalBytes() / 1024).append(" KB\n");
+
+        RstJcefBrowserPool.Stats browsers = RstJcefBrowserPool.getInstance().getStats();
+        report.append("JCEF browsers: ").append(browsers.live()).append(" in use, ").append(browsers.idle())
+              .append(" idle, ").append(browsers.hibernated()).append(" previews hibernated, ~")
+              .append(browsers.estimatedBytes() / (1024 * 1024)).append(" MB estimated\n");
+
+        RstRenderScheduler scheduler = RstRenderScheduler.getInstance();
+        report.append("Render queue: queued=").append(scheduler.getQueuedCount())
+              .append(", running=").append(scheduler.getRunningCount())
+              .append(", rejected=").append(scheduler.getRejectedCount()).append('\n');
+
+        report.append("\nSlowest files (p95 render to screen)\n");
+        myFiles.entrySet().stream()
+                .filter(entry -> entry.getValue()[Stage.TOTAL.ordinal()].getCount() > 0)
+                .sorted(Comparator.comparingLong(
+                        (Map.Entry<String, RstLatencyHistogram[]> entry) -> entry.getValue()[Stage.TOTAL.ordinal()].getPercentile(0.95)).reversed())
+                .limit(REPORTED_FILES)
+                .forEach(entry -> {
+                    RstLatencyHistogram total = entry.getValue()[Stage.TOTAL.ordinal()];
+                    report.append(String.format("  %8s ms  %6d renders  %s%n",
+                            formatMillis(total.getPercentile(0.95)), total.getCount(), entry.getKey()));
+                });
+        return report.toString();
+    }
+
+    private static void appendStages(@NotNull StringBuilder report, RstLatencyHistogram @NotNull [] stages) {
+        report.append(String.format("  %-22s %8s %9s %9s %9s %9s%n", "Stage (ms)", "count", "p50", "p95", "p99", "max"));
+        for (Stage stage : Stage.values()) {
+            RstLatencyHistogram histogram = stages[stage.ordinal()];
+            if (histogram.getCount() == 0) continue;
+            report.append(String.format("  %-22s %8d %9s %9s %9s %9s%n", stage.getDisplayName(), histogram.getCount(),
+                    formatMillis(histogram.getPercentile(0.50)), formatMillis(histogram.getPercentile(0.95)),
+                    formatMillis(histogram.getPercentile(0.99)), formatMillis(histogram.getMax())));
+        }
+    }
+
+    private static @NotNull String formatMillis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static RstLatencyHistogram @NotNull [] newStages() {
+        RstLatencyHistogram[] stages = new RstLatencyHistogram[Stage.values().length];
+        for (int i = 0; i < stages.length; i++) stages[i] = new RstLatencyHistogram();
+        return stages;
+    }
+}
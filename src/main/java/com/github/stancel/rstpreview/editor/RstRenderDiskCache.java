@@ -0,0 +1,540 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Rendered previews kept on disk below the IDE system directory, so they survive restarts. Keys
+ * are {@link RstRenderCache} keys, which hash the text, the renderer's fingerprint and the render
+ * options, and {@link #pageKey} keys for the last page an editor showed.
+ * <p>
+ * Records are appended to segment files of up to {@link #SEGMENT_BYTES} and found through an
+ * in-memory index in least-recently-used order, which is saved on shutdown. Records appended
+ * after the last save are recovered by scanning the segment tails. Every record carries a CRC: a
+ * record that doesn't check out is dropped, and a segment is cut off at its first broken record.
+ * Once the segments outgrow {@link RstPreviewSettings#getDiskCacheSizeMb()}, the least recently
+ * used entries are evicted and segments that are mostly dead are rewritten.
+ * <p>
+ * Records are read with positional reads rather than mapped, since a mapped segment can't be
+ * deleted on Windows until the mapping is garbage collected.
+ */
+public final class RstRenderDiskCache implements Disposable {
+    private static final Logger LOG = Logger.getInstance(RstRenderDiskCache.class);
+    private static final int RECORD_MAGIC = 0x52535452;
+    private static final int INDEX_MAGIC = 0x52535449;
+    private static final int INDEX_VERSION = 1;
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+    private static final double COMPACT_TO = 0.75;
+    private static final double MIN_LIVE_RATIO = 0.5;
+    private static final int MAX_KEY_BYTES = 256;
+    // Magic, key length, HTML length and error length, then the payload and its CRC.
+    private static final int HEADER_BYTES = 4 + 2 + 4 + 4;
+    private static final int TRAILER_BYTES = 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index";
+
+    private record Location(int segment, long offset, int length) {}
+
+    private static final class Segment {
+        final int myId;
+        final @NotNull FileChannel myChannel;
+        long mySize;
+        long myLiveBytes;
+
+        Segment(int id, @NotNull FileChannel channel, long size) {
+            myId = id;
+            myChannel = channel;
+            mySize = size;
+        }
+    }
+
+    private final @NotNull Path myDirectory = PathManager.getSystemDir().resolve("rst-preview").resolve("render-cache");
+    private final LinkedHashMap<String, Location> myIndex = new LinkedHashMap<>(256, 0.75f, true);
+    private final TreeMap<Integer, Segment> mySegments = new TreeMap<>();
+    // Segments being compacted away, which nothing may be appended to.
+    private final Set<Segment> myRetiring = new HashSet<>();
+    private boolean myLoaded;
+    // Set on shutdown; pages saved by previews closing at the same time are dropped.
+    private boolean myDisposed;
+    private boolean myBroken;
+    private boolean myIndexDirty;
+    // Copies of the index size and segment sizes, for reading without the lock.
+    private volatile int myEntryCount;
+    private volatile long myTotalBytes;
+    private final AtomicLong myHits = new AtomicLong();
+    private final AtomicLong myMisses = new AtomicLong();
+
+    public static RstRenderDiskCache getInstance() {
+        return ApplicationManager.getApplication().getService(RstRenderDiskCache.class);
+    }
+
+    /**
+     * The key of the last page shown for {@code file} with this text, whatever rendered it.
+     */
+    static @NotNull String pageKey(@NotNull VirtualFile file, @NotNull CharSequence text) {
+        return RstRenderCache.computeKey(text, file.getPath(), "preview page", List.of());
+    }
+
+    public synchronized @Nullable Pair<String, String> get(@NotNull String key) {
+        if (getBudgetBytes() <= 0 || !ensureLoaded()) return null;
+        Location location = myIndex.get(key);
+        if (location != null) {
+            try {
+                Pair<String, String> entry = decode(readRecord(location), key);
+                if (entry != null) {
+                    myHits.incrementAndGet();
+                    return entry;
+                }
+                LOG.info("Dropping a corrupt record from preview cache segment " + location.segment());
+            } catch (IOException e) {
+                LOG.info("Dropping an unreadable record from preview cache segment " + location.segment(), e);
+            }
+            remove(key, location);
+        }
+        myMisses.incrementAndGet();
+        return null;
+    }
+
+    public synchronized void put(@NotNull String key, @NotNull Pair<String, String> htmlAndError) {
+        long budget = getBudgetBytes();
+        if (budget <= 0 || !ensureLoaded()) return;
+        // Keys hash everything the entry depends on, so an existing entry is the same.
+        if (myIndex.get(key) != null) return;
+
+        ByteBuffer record = encode(key, htmlAndError);
+        if (record == null || record.remaining() > budget * (1 - COMPACT_TO)) return;
+        try {
+            myIndex.put(key, append(record));
+            myIndexDirty = true;
+            if (computeTotalBytes() > budget) compact(budget);
+        } catch (IOException e) {
+            fail(e);
+        }
+        updateCounts();
+    }
+
+    /**
+     * Applies a changed size cap. Reads the index if needed, so call it off the EDT.
+     */
+    public synchronized void trimToBudget() {
+        if (!ensureLoaded()) return;
+        try {
+            compact(getBudgetBytes());
+        } catch (IOException e) {
+            fail(e);
+        }
+        updateCounts();
+    }
+
+    public long getHitCount() {
+        return myHits.get();
+    }
+
+    public long getMissCount() {
+        return myMisses.get();
+    }
+
+    /**
+     * Doesn't wait for the cache, so it can be called on the EDT while the cache reads or compacts.
+     */
+    public int getEntryCount() {
+        return myEntryCount;
+    }
+
+    /**
+     * Doesn't wait for the cache, like {@link #getEntryCount}.
+     */
+    public long getTotalBytes() {
+        return myTotalBytes;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        myDisposed = true;
+        if (myLoaded && !myBroken && myIndexDirty) {
+            try {
+                for (Segment segment : mySegments.values()) segment.myChannel.force(false);
+                saveIndex();
+            } catch (IOException e) {
+                LOG.info("Failed to save the preview cache index", e);
+            }
+        }
+        closeSegments();
+    }
+
+    private boolean ensureLoaded() {
+        if (myBroken || myDisposed) return false;
+        if (!myLoaded) {
+            myLoaded = true;
+            try {
+                load();
+            } catch (IOException e) {
+                fail(e);
+            }
+            updateCounts();
+        }
+        return !myBroken;
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(myDirectory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                mySegments.put(id, new Segment(id, channel, channel.size()));
+            }
+        }
+
+        Map<Integer, Long> covered = readIndex();
+        for (Segment segment : mySegments.values()) {
+            long from = covered.getOrDefault(segment.myId, 0L);
+            if (from < segment.mySize) scan(segment, from);
+        }
+    }
+
+    /**
+     * Fills the index from the index file.
+     *
+     * @return how much of each segment the index file covers; empty if it is missing or corrupt,
+     * in which case the segments are scanned from the start
+     */
+    private @NotNull Map<Integer, Long> readIndex() {
+        Path file = myDirectory.resolve(INDEX_FILE);
+        if (!Files.isRegularFile(file)) return Map.of();
+
+        Map<Integer, Long> covered = new HashMap<>();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.remaining() < TRAILER_BYTES || crc(buffer, 0, buffer.limit() - TRAILER_BYTES) != buffer.getInt(buffer.limit() - TRAILER_BYTES)) {
+                throw new IOException("checksum mismatch");
+            }
+            buffer.limit(buffer.limit() - TRAILER_BYTES);
+            if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION) throw new IOException("unknown format");
+
+            for (int i = buffer.getInt(); i > 0; i--) {
+                int id = buffer.getInt();
+                long length = buffer.getLong();
+                Segment segment = mySegments.get(id);
+                if (segment == null || length > segment.mySize) throw new IOException("segment " + id + " is gone or shorter");
+                covered.put(id, length);
+            }
+            for (int i = buffer.getInt(); i > 0; i--) {
+                byte[] key = new byte[buffer.getShort()];
+                buffer.get(key);
+                Location location = new Location(buffer.getInt(), buffer.getLong(), buffer.getInt());
+                Long length = covered.get(location.segment());
+                if (length == null || location.offset() < 0 || location.length() <= 0 || location.offset() + location.length() > length) {
+                    throw new IOException("entry outside of its segment");
+                }
+                myIndex.put(new String(key, StandardCharsets.UTF_8), location);
+                mySegments.get(location.segment()).myLiveBytes += location.length();
+            }
+            return covered;
+        } catch (IOException | RuntimeException e) {
+            LOG.info("Rebuilding the preview cache index: " + e.getMessage());
+            myIndex.clear();
+            for (Segment segment : mySegments.values()) segment.myLiveBytes = 0;
+            myIndexDirty = true;
+            return Map.of();
+        }
+    }
+
+    /**
+     * Adds the records of {@code segment} from {@code offset} on to the index, and cuts the segment
+     * off at the first record that is incomplete or doesn't check out.
+     */
+    private void scan(@NotNull Segment segment, long offset) throws IOException {
+        while (offset + HEADER_BYTES + TRAILER_BYTES <= segment.mySize) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(segment.myChannel, header, offset);
+            header.flip();
+            int magic = header.getInt();
+            int keyLength = header.getShort();
+            int htmlLength = header.getInt();
+            int errorLength = header.getInt();
+            long length = (long) HEADER_BYTES + keyLength + htmlLength + errorLength + TRAILER_BYTES;
+            if (magic != RECORD_MAGIC || keyLength <= 0 || keyLength > MAX_KEY_BYTES || htmlLength < 0 || errorLength < 0 ||
+                length > Integer.MAX_VALUE || offset + length > segment.mySize) {
+                break;
+            }
+
+            Location location = new Location(segment.myId, offset, (int) length);
+            ByteBuffer record = readRecord(location);
+            if (crc(record, 0, record.limit() - TRAILER_BYTES) != record.getInt(record.limit() - TRAILER_BYTES)) break;
+            String key = new String(record.array(), HEADER_BYTES, keyLength, StandardCharsets.UTF_8);
+            Location previous = myIndex.put(key, location);
+            if (previous != null) liveSegment(previous).myLiveBytes -= previous.length();
+            segment.myLiveBytes += length;
+            offset += length;
+        }
+
+        if (offset < segment.mySize) {
+            LOG.info("Truncating preview cache segment " + segment.myId + " from " + segment.mySize + " to " + offset + " bytes");
+            segment.myChannel.truncate(offset);
+            segment.mySize = offset;
+        }
+        myIndexDirty = true;
+    }
+
+    private @NotNull Location append(@NotNull ByteBuffer record) throws IOException {
+        Map.Entry<Integer, Segment> last = mySegments.lastEntry();
+        Segment segment = last != null ? last.getValue() : null;
+        if (segment == null || segment.mySize >= SEGMENT_BYTES || myRetiring.contains(segment)) {
+            int id = last != null ? last.getKey() + 1 : 0;
+            Path file = myDirectory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            segment = new Segment(id, channel, 0);
+            mySegments.put(id, segment);
+        }
+
+        Location location = new Location(segment.myId, segment.mySize, record.remaining());
+        while (record.hasRemaining()) {
+            segment.myChannel.write(record, segment.mySize + record.position());
+        }
+        segment.mySize += location.length();
+        segment.myLiveBytes += location.length();
+        return location;
+    }
+
+    /**
+     * Evicts the least recently used entries until the live records take no more than
+     * {@link #COMPACT_TO} of {@code budget}, then moves the live records out of segments that are
+     * mostly dead and deletes those.
+     */
+    private void compact(long budget) throws IOException {
+        long target = (long) (budget * COMPACT_TO);
+        long live = 0;
+        for (Segment segment : mySegments.values()) live += segment.myLiveBytes;
+        Iterator<Map.Entry<String, Location>> eldest = myIndex.entrySet().iterator();
+        while (live > target && eldest.hasNext()) {
+            Location location = eldest.next().getValue();
+            liveSegment(location).myLiveBytes -= location.length();
+            live -= location.length();
+            eldest.remove();
+        }
+
+        Segment newest = mySegments.isEmpty() ? null : mySegments.lastEntry().getValue();
+        List<Segment> sparse = new ArrayList<>();
+        for (Segment segment : mySegments.values()) {
+            if (segment.myLiveBytes == 0 || segment != newest && segment.myLiveBytes < segment.mySize * MIN_LIVE_RATIO) {
+                sparse.add(segment);
+            }
+        }
+        if (sparse.isEmpty()) return;
+        myRetiring.addAll(sparse);
+
+        // Moved with Entry.setValue, which keeps the entries' recency.
+        for (Segment segment : sparse) {
+            if (segment.myLiveBytes == 0) continue;
+            Iterator<Map.Entry<String, Location>> entries = myIndex.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Location> entry = entries.next();
+                Location location = entry.getValue();
+                if (location.segment() != segment.myId) continue;
+                ByteBuffer record = readRecord(location);
+                if (crc(record, 0, record.limit() - TRAILER_BYTES) != record.getInt(record.limit() - TRAILER_BYTES)) {
+                    entries.remove();
+                } else {
+                    entry.setValue(append(record));
+                }
+            }
+        }
+        for (Segment segment : sparse) {
+            segment.myChannel.close();
+            mySegments.remove(segment.myId);
+            Files.deleteIfExists(myDirectory.resolve(SEGMENT_PREFIX + segment.myId + SEGMENT_SUFFIX));
+        }
+        myRetiring.clear();
+        saveIndex();
+    }
+
+    private void saveIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + myIndex.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(mySegments.size());
+        for (Segment segment : mySegments.values()) {
+            out.writeInt(segment.myId);
+            out.writeLong(segment.mySize);
+        }
+        out.writeInt(myIndex.size());
+        // Iterating an access-ordered map doesn't reorder it, so the file keeps the recency order.
+        for (Map.Entry<String, Location> entry : myIndex.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeInt(entry.getValue().segment());
+            out.writeLong(entry.getValue().offset());
+            out.writeInt(entry.getValue().length());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        Path file = myDirectory.resolve(INDEX_FILE);
+        Path temp = myDirectory.resolve(INDEX_FILE + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        myIndexDirty = false;
+    }
+
+    private void remove(@NotNull String key, @NotNull Location location) {
+        myIndex.remove(key);
+        Segment segment = mySegments.get(location.segment());
+        if (segment != null) segment.myLiveBytes -= location.length();
+        myIndexDirty = true;
+        updateCounts();
+    }
+
+    private long computeTotalBytes() {
+        long total = 0;
+        for (Segment segment : mySegments.values()) total += segment.mySize;
+        return total;
+    }
+
+    private void updateCounts() {
+        myEntryCount = myIndex.size();
+        myTotalBytes = computeTotalBytes();
+    }
+
+    private @NotNull Segment liveSegment(@NotNull Location location) {
+        return mySegments.get(location.segment());
+    }
+
+    private @NotNull ByteBuffer readRecord(@NotNull Location location) throws IOException {
+        Segment segment = mySegments.get(location.segment());
+        if (segment == null) throw new IOException("segment " + location.segment() + " is gone");
+        ByteBuffer record = ByteBuffer.allocate(location.length());
+        readFully(segment.myChannel, record, location.offset());
+        return record.flip();
+    }
+
+    private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException();
+        }
+    }
+
+    private static @Nullable ByteBuffer encode(@NotNull String key, @NotNull Pair<String, String> htmlAndError) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_BYTES) return null;
+        byte[] html = htmlAndError.getFirst().getBytes(StandardCharsets.UTF_8);
+        byte[] error = htmlAndError.getSecond().getBytes(StandardCharsets.UTF_8);
+        long length = (long) HEADER_BYTES + keyBytes.length + html.length + error.length + TRAILER_BYTES;
+        if (length > Integer.MAX_VALUE) return null;
+
+        ByteBuffer record = ByteBuffer.allocate((int) length);
+        record.putInt(RECORD_MAGIC).putShort((short) keyBytes.length).putInt(html.length).putInt(error.length)
+              .put(keyBytes).put(html).put(error);
+        record.putInt(crc(record, 0, record.position()));
+        return record.flip();
+    }
+
+    /**
+     * @return the entry, or {@code null} if the record is corrupt or holds another key
+     */
+    private static @Nullable Pair<String, String> decode(@NotNull ByteBuffer record, @NotNull String key) {
+        int length = record.limit();
+        if (length < HEADER_BYTES + TRAILER_BYTES || crc(record, 0, length - TRAILER_BYTES) != record.getInt(length - TRAILER_BYTES)) {
+            return null;
+        }
+        if (record.getInt() != RECORD_MAGIC) return null;
+        int keyLength = record.getShort();
+        int htmlLength = record.getInt();
+        int errorLength = record.getInt();
+        if (keyLength < 0 || htmlLength < 0 || errorLength < 0 ||
+            (long) HEADER_BYTES + keyLength + htmlLength + errorLength + TRAILER_BYTES != length) {
+            return null;
+        }
+        byte[] bytes = record.array();
+        if (!key.equals(new String(bytes, HEADER_BYTES, keyLength, StandardCharsets.UTF_8))) return null;
+        int htmlStart = HEADER_BYTES + keyLength;
+        return Pair.create(new String(bytes, htmlStart, htmlLength, StandardCharsets.UTF_8),
+                new String(bytes, htmlStart + htmlLength, errorLength, StandardCharsets.UTF_8));
+    }
+
+    private static int crc(@NotNull ByteBuffer buffer, int from, int to) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), from, to - from);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Starts over with an empty cache after an I/O error, and stops using the disk until the IDE
+     * restarts if the files can't be removed.
+     */
+    private void fail(@NotNull IOException e) {
+        LOG.warn("Preview disk cache failed, clearing it", e);
+        closeSegments();
+        myRetiring.clear();
+        myIndex.clear();
+        myIndexDirty = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory)) {
+            for (Path file : files) Files.deleteIfExists(file);
+        } catch (IOException deleteError) {
+            LOG.info("Failed to clear the preview disk cache, leaving it alone until restart", deleteError);
+            myBroken = true;
+        }
+        updateCounts();
+    }
+
+    private void closeSegments() {
+        for (Segment segment : mySegments.values()) {
+            try {
+                segment.myChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mySegments.clear();
+    }
+
+    private static long getBudgetBytes() {
+        return RstPreviewSettings.getInstance().getDiskCacheSizeMb() * 1024L * 1024L;
+    }
+}
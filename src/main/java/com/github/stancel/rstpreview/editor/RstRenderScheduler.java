@@ -0,0 +1,175 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs rst2html conversions for all previews in the IDE, with at most
+ * {@link RstPreviewSettings#getMaxConcurrentRenders()} of them at a time. Waiting conversions are
+ * started in {@link Priority} order, so the preview the user is looking at goes first.
+ * <p>
+ * Callers get a future instead of blocking a thread. It fails with
+ * {@link RejectedExecutionException} when the queue is full and the conversion should be retried
+ * later, and is cancelled when the conversion's indicator is passed to {@link #cancel}.
+ */
+public final class RstRenderScheduler {
+    private static final int MAX_QUEUED = 64;
+
+    /**
+     * {@code PREWARM} is for previews that aren't open yet, see {@link RstPreviewPrewarmer}.
+     */
+    public enum Priority { FOCUSED, VISIBLE, BACKGROUND, PREWARM }
+
+    private final Object myLock = new Object();
+    private final PriorityQueue<Task<?>> myQueue = new PriorityQueue<>();
+    private int myRunning;
+    private long mySequence;
+    private final AtomicLong myRejected = new AtomicLong();
+
+    public static RstRenderScheduler getInstance() {
+        return ApplicationManager.getApplication().getService(RstRenderScheduler.class);
+    }
+
+    public <T> @NotNull CompletableFuture<T> submit(@NotNull Priority priority, @NotNull ProgressIndicator indicator,
+                                                   @NotNull Supplier<T> work) {
+        Task<T> task;
+        Task<?> evicted = null;
+        synchronized (myLock) {
+            task = new Task<>(priority, mySequence++, indicator, work);
+            if (myQueue.size() >= MAX_QUEUED) {
+                Task<?> last = null;
+                for (Task<?> queued : myQueue) {
+                    if (last == null || queued.compareTo(last) > 0) last = queued;
+                }
+                if (last == null || last.compareTo(task) < 0) {
+                    myRejected.incrementAndGet();
+                    task.myFuture.completeExceptionally(new RejectedExecutionException("RST preview render queue is full"));
+                    return task.myFuture;
+                }
+                myQueue.remove(last);
+                evicted = last;
+            }
+            myQueue.add(task);
+        }
+
+        if (evicted != null) {
+            myRejected.incrementAndGet();
+            evicted.myFuture.completeExceptionally(new RejectedExecutionException("Displaced by a more urgent preview"));
+        }
+        dispatch();
+        return task.myFuture;
+    }
+
+    /**
+     * Drops every waiting conversion submitted with {@code indicator}. Running ones notice the
+     * cancelled indicator themselves.
+     */
+    public void cancel(@NotNull ProgressIndicator indicator) {
+        List<Task<?>> removed = new ArrayList<>();
+        synchronized (myLock) {
+            Iterator<Task<?>> iterator = myQueue.iterator();
+            while (iterator.hasNext()) {
+                Task<?> task = iterator.next();
+                if (task.myIndicator == indicator) {
+                    iterator.remove();
+                    removed.add(task);
+                }
+            }
+        }
+        for (Task<?> task : removed) {
+            task.myFuture.cancel(false);
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (myLock) {
+            return myQueue.size();
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (myLock) {
+            return myRunning;
+        }
+    }
+
+    public long getRejectedCount() {
+        return myRejected.get();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Task<?> task;
+            synchronized (myLock) {
+                if (myQueue.isEmpty() || myRunning >= Math.max(1, RstPreviewSettings.getInstance().getMaxConcurrentRenders())) {
+                    return;
+                }
+                task = myQueue.poll();
+                myRunning++;
+            }
+            AppExecutorUtil.getAppExecutorService().execute(() -> run(task));
+        }
+    }
+
+    private <T> void run(@NotNull Task<T> task) {
+        T result = null;
+        Throwable error = null;
+        try {
+            if (task.myIndicator.isCanceled()) {
+                error = new CancellationException();
+            } else {
+                result = task.myWork.get();
+            }
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            synchronized (myLock) {
+                myRunning--;
+            }
+            dispatch();
+        }
+
+        // Completed after the slot is released, so follow-up stages don't hold it.
+        if (error instanceof CancellationException) {
+            task.myFuture.cancel(false);
+        } else if (error != null) {
+            task.myFuture.completeExceptionally(error);
+        } else {
+            task.myFuture.complete(result);
+        }
+    }
+
+    private static final class Task<T> implements Comparable<Task<?>> {
+        private final @NotNull Priority myPriority;
+        private final long mySequence;
+        private final @NotNull ProgressIndicator myIndicator;
+        private final @NotNull Supplier<T> myWork;
+        private final CompletableFuture<T> myFuture = new CompletableFuture<>();
+
+        Task(@NotNull Priority priority, long sequence, @NotNull ProgressIndicator indicator, @NotNull Supplier<T> work) {
+            myPriority = priority;
+            mySequence = sequence;
+            myIndicator = indicator;
+            myWork = work;
+        }
+
+        @Override
+        public int compareTo(@NotNull Task<?> other) {
+            int byPriority = myPriority.compareTo(other.myPriority);
+            return byPriority != 0 ? byPriority : Long.compare(mySequence, other.mySequence);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One preview render as it passes through the pipeline: the editor, the render queue, rst2html
+ * and the panel each time their stage here. Stage times go to {@link RstRenderDiagnostics} and,
+ * while a flight recording is running, to {@link RstPreviewEvents}.
+ */
+public final class RstRenderTrace {
+    private static final AtomicLong ourNextId = new AtomicLong();
+
+    private final long myId = ourNextId.incrementAndGet();
+    private final @NotNull String myPath;
+    private final int myDocumentLength;
+    private final long myStartNanos = System.nanoTime();
+    private final RstPreviewEvents.RenderEvent myEvent = new RstPreviewEvents.RenderEvent();
+    private volatile @NotNull RstRenderDiagnostics.Outcome myOutcome = RstRenderDiagnostics.Outcome.SUCCESS;
+    private final List<String> myCacheKeys = new ArrayList<>();
+
+    public RstRenderTrace(@NotNull VirtualFile file, int documentLength) {
+        myPath = file.getPath();
+        myDocumentLength = documentLength;
+        myEvent.begin();
+    }
+
+    /**
+     * The correlation id shared by all flight recorder events of this render.
+     */
+    public long getId() {
+        return myId;
+    }
+
+    public @NotNull String getPath() {
+        return myPath;
+    }
+
+    public int getDocumentLength() {
+        return myDocumentLength;
+    }
+
+    /**
+     * The worst outcome of the conversions so far, e.g. {@code TIMEOUT} if one section timed out.
+     */
+    public @NotNull RstRenderDiagnostics.Outcome getOutcome() {
+        return myOutcome;
+    }
+
+    public @NotNull Span startStage(@NotNull RstRenderDiagnostics.Stage stage) {
+        return new Span(stage);
+    }
+
+    /**
+     * Records how long the oldest edit waited before this render started.
+     */
+    public void debounced(long delayMs) {
+        RstRenderDiagnostics.getInstance().record(myPath, RstRenderDiagnostics.Stage.DEBOUNCE,
+                TimeUnit.MILLISECONDS.toNanos(delayMs));
+        RstPreviewEvents.DebounceEvent event = new RstPreviewEvents.DebounceEvent();
+        if (event.shouldCommit()) {
+            event.path = myPath;
+            event.documentLength = myDocumentLength;
+            event.delay = delayMs;
+            event.correlationId = myId;
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts the outcome of one conversion of this render.
+     */
+    public void outcome(@NotNull RstRenderDiagnostics.Outcome outcome) {
+        RstRenderDiagnostics.getInstance().outcome(outcome);
+        synchronized (this) {
+            if (outcome.compareTo(myOutcome) > 0) myOutcome = outcome;
+        }
+    }
+
+    /**
+     * Notes a {@link RstRenderCache} entry this render read or wrote.
+     */
+    public synchronized void cacheKeyUsed(@NotNull String key) {
+        myCacheKeys.add(key);
+    }
+
+    /**
+     * @return the {@link RstRenderCache} entries the result was assembled from, e.g. to keep them
+     * on disk once it has been shown
+     */
+    public synchronized @NotNull List<String> getCacheKeys() {
+        return List.copyOf(myCacheKeys);
+    }
+
+    /**
+     * Called once the result is on screen.
+     */
+    public void shown() {
+        RstRenderDiagnostics.getInstance().record(myPath, RstRenderDiagnostics.Stage.TOTAL, System.nanoTime() - myStartNanos);
+        commit(myOutcome);
+    }
+
+    /**
+     * Called instead of {@link #shown()} when the result never reaches the screen.
+     */
+    public void abandoned(@NotNull RstRenderDiagnostics.Outcome outcome) {
+        commit(outcome);
+    }
+
+    private void commit(@NotNull RstRenderDiagnostics.Outcome outcome) {
+        myEvent.end();
+        if (myEvent.shouldCommit()) {
+            myEvent.path = myPath;
+            myEvent.documentLength = myDocumentLength;
+            myEvent.outcome = outcome.name();
+            myEvent.correlationId = myId;
+            myEvent.commit();
+        }
+    }
+
+    /**
+     * One stage of the render, from {@link #startStage} until {@link #finish()}.
+     */
+    public final class Span {
+        private final @NotNull RstRenderDiagnostics.Stage myStage;
+        private final long myStageStartNanos = System.nanoTime();
+        private final RstPreviewEvents.StageEvent myStageEvent = new RstPreviewEvents.StageEvent();
+
+        private Span(@NotNull RstRenderDiagnostics.Stage stage) {
+            myStage = stage;
+            myStageEvent.begin();
+        }
+
+        public void finish() {
+            RstRenderDiagnostics.getInstance().record(myPath, myStage, System.nanoTime() - myStageStartNanos);
+            myStageEvent.end();
+            if (myStageEvent.shouldCommit()) {
+                myStageEvent.stage = myStage.getDisplayName();
+                myStageEvent.path = myPath;
+                myStageEvent.documentLength = myDocumentLength;
+                myStageEvent.correlationId = myId;
+                myStageEvent.commit();
+            }
+        }
+
+        /**
+         * Ends a stage that turned out not to happen, without recording it.
+         */
+        public void discard() {
+            myStageEvent.end();
+        }
+    }
+}
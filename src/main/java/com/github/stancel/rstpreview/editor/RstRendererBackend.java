@@ -0,0 +1,133 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.extensions.ExtensionPointName;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Converts reStructuredText to an HTML page for the preview. Backends are registered with the
+ * {@code rendererBackend} extension point, and {@link RstRendererSelector} picks the ones to use
+ * for each render from the project's choice or from their measured latency and failure rate.
+ */
+public interface RstRendererBackend {
+    ExtensionPointName<RstRendererBackend> EP_NAME =
+            ExtensionPointName.create("com.github.stancel.rst-preview-standalone.rendererBackend");
+
+    enum Capability {
+        /**
+         * Produces the same page and warnings as rst2html. Only such backends are picked automatically;
+         * {@link #PARTIAL} backends without it are tried first whenever healthy, so their health check
+         * should fail unless the user turned them on.
+         */
+        DOCUTILS_OUTPUT,
+        /**
+         * Renders on the calling thread in about a millisecond, so it is tried before queueing a render.
+         */
+        IN_PROCESS,
+        /**
+         * May decline a document, which is then rendered by the next backend.
+         */
+        PARTIAL,
+        /**
+         * Accepts the rst2html options used to render a large document one section at a time.
+         */
+        RST2HTML_OPTIONS
+    }
+
+    /**
+     * A stable id, stored in the project settings and reported in diagnostics.
+     */
+    @NotNull String getId();
+
+    @NotNull String getDisplayName();
+
+    @NotNull Set<Capability> getCapabilities();
+
+    /**
+     * Called before every render, so it must not block.
+     *
+     * @return why the backend can't be used right now, or {@code null} if it can
+     */
+    @Nullable String checkHealth();
+
+    /**
+     * Identifies everything besides the request that affects the output, such as the converter
+     * and its version. May block until the converter is resolved.
+     *
+     * @return the fingerprint, or {@code null} if results shouldn't be cached
+     */
+    @Nullable String getOutputFingerprint(@NotNull Request request);
+
+    /**
+     * @return the HTML page and an error section, or {@code null} if the backend declines the
+     * document or the request was cancelled
+     */
+    @Nullable Pair<String, String> render(@NotNull Request request);
+
+    /**
+     * A document to render, with everything needed to convert it like rst2html would from the
+     * file's directory.
+     */
+    final class Request {
+        private final @NotNull CharSequence myText;
+        private final @Nullable String myWorkDir;
+        private final @NotNull List<String> myArgs;
+        private final @NotNull ProgressIndicator myIndicator;
+        private final @NotNull RstRenderTrace myTrace;
+        private volatile @Nullable ProcessOutput myProcessOutput;
+
+        Request(@NotNull CharSequence text, @Nullable String workDir, @NotNull List<String> args,
+                @NotNull ProgressIndicator indicator, @NotNull RstRenderTrace trace) {
+            myText = text;
+            myWorkDir = workDir;
+            myArgs = args;
+            myIndicator = indicator;
+            myTrace = trace;
+        }
+
+        public @NotNull CharSequence getText() {
+            return myText;
+        }
+
+        public @Nullable String getWorkDir() {
+            return myWorkDir;
+        }
+
+        /**
+         * @return rst2html options besides the defaults, e.g. {@code --no-doc-title}
+         */
+        public @NotNull List<String> getArgs() {
+            return myArgs;
+        }
+
+        /**
+         * Cancelling it should stop the render within a few milliseconds.
+         */
+        public @NotNull ProgressIndicator getIndicator() {
+            return myIndicator;
+        }
+
+        public @NotNull RstRenderTrace getTrace() {
+            return myTrace;
+        }
+
+        /**
+         * Reports the output of the converter process, so timeouts, exit codes and stream sizes
+         * show up in diagnostics.
+         */
+        public void processFinished(@NotNull ProcessOutput output) {
+            myProcessOutput = output;
+        }
+
+        @Nullable ProcessOutput getProcessOutput() {
+            return myProcessOutput;
+        }
+    }
+}
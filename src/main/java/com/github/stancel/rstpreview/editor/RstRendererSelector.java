@@ -0,0 +1,159 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the {@link RstRendererBackend}s to render with and records how each of them performs on
+ * the user's documents.
+ * <p>
+ * Unless a project names a backend, healthy backends with docutils output are ordered by their
+ * median render time, scaled up by their failure rate. Backends with fewer than
+ * {@link #MIN_SAMPLES} renders go last, except that every {@link #EXPLORE_EVERY}th render tries
+ * one of them first, so a backend that was turned on or installed later still gets measured.
+ * <p>
+ * Healthy partial backends without docutils output, such as the built-in renderer while it is
+ * turned on, are an opt-in tier: they are tried before the others, which render what they decline.
+ */
+public final class RstRendererSelector {
+    private static final int MIN_SAMPLES = 5;
+    private static final int EXPLORE_EVERY = 20;
+    private static final double MAX_FAILURE_RATE = 0.9;
+
+    /**
+     * A snapshot of a backend's measurements since the IDE started.
+     *
+     * @param renders  renders that produced a page or an error
+     * @param failures renders that produced an error or threw
+     * @param declined documents the backend left to the next one
+     */
+    public record Stats(long renders, long failures, long declined, long p50Micros, long p95Micros) {}
+
+    private static final class Measurements {
+        final RstLatencyHistogram mySuccesses = new RstLatencyHistogram();
+        final AtomicLong myRenders = new AtomicLong();
+        final AtomicLong myFailures = new AtomicLong();
+        final AtomicLong myDeclined = new AtomicLong();
+    }
+
+    private final Map<String, Measurements> myMeasurements = new ConcurrentHashMap<>();
+    private final AtomicLong mySelections = new AtomicLong();
+
+    public static RstRendererSelector getInstance() {
+        return ApplicationManager.getApplication().getService(RstRendererSelector.class);
+    }
+
+    /**
+     * @param project the project whose choice of backend applies, if any
+     * @return the backends to try in order; empty if none is healthy
+     */
+    public @NotNull List<RstRendererBackend> getCandidates(@Nullable Project project) {
+        List<RstRendererBackend> backends = RstRendererBackend.EP_NAME.getExtensionList();
+        String chosen = project != null && !project.isDisposed()
+                ? RstPreviewProjectSettings.getInstance(project).getRendererBackend() : RstPreviewProjectSettings.AUTOMATIC;
+
+        RstRendererBackend preferred = null;
+        List<RstRendererBackend> optIn = new ArrayList<>();
+        List<RstRendererBackend> automatic = new ArrayList<>();
+        for (RstRendererBackend backend : backends) {
+            boolean isChosen = backend.getId().equals(chosen);
+            Set<RstRendererBackend.Capability> capabilities = backend.getCapabilities();
+            boolean docutilsOutput = capabilities.contains(RstRendererBackend.Capability.DOCUTILS_OUTPUT);
+            boolean partial = capabilities.contains(RstRendererBackend.Capability.PARTIAL);
+            if (!isChosen && !docutilsOutput && !partial) continue;
+            if (backend.checkHealth() != null) continue;
+            if (isChosen) {
+                preferred = backend;
+            } else if (docutilsOutput) {
+                automatic.add(backend);
+            } else {
+                optIn.add(backend);
+            }
+        }
+        if (preferred != null && !preferred.getCapabilities().contains(RstRendererBackend.Capability.PARTIAL)) {
+            return List.of(preferred);
+        }
+
+        // The sort is stable, so backends without measurements keep their registration order.
+        automatic.sort(Comparator.comparingLong(this::getCost));
+        if (mySelections.incrementAndGet() % EXPLORE_EVERY == 0) {
+            automatic.stream()
+                    .filter(backend -> getMeasurements(backend).myRenders.get() < MIN_SAMPLES)
+                    .min(Comparator.comparingLong(backend -> getMeasurements(backend).myRenders.get()))
+                    .ifPresent(backend -> {
+                        automatic.remove(backend);
+                        automatic.add(0, backend);
+                    });
+        }
+        automatic.addAll(0, optIn);
+        if (preferred != null) automatic.add(0, preferred);
+        return automatic;
+    }
+
+    public @NotNull Stats getStats(@NotNull RstRendererBackend backend) {
+        Measurements measurements = getMeasurements(backend);
+        return new Stats(measurements.myRenders.get(), measurements.myFailures.get(), measurements.myDeclined.get(),
+                measurements.mySuccesses.getPercentile(0.50), measurements.mySuccesses.getPercentile(0.95));
+    }
+
+    void rendered(@NotNull RstRendererBackend backend, @NotNull RstRenderDiagnostics.Outcome outcome, long nanos) {
+        if (outcome == RstRenderDiagnostics.Outcome.CANCELLED) return;
+        Measurements measurements = getMeasurements(backend);
+        measurements.myRenders.incrementAndGet();
+        // A document the converter rejects says nothing about the converter.
+        if (outcome == RstRenderDiagnostics.Outcome.SUCCESS || outcome == RstRenderDiagnostics.Outcome.DOCUMENT_ERROR) {
+            measurements.mySuccesses.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        } else {
+            measurements.myFailures.incrementAndGet();
+        }
+    }
+
+    void failed(@NotNull RstRendererBackend backend) {
+        Measurements measurements = getMeasurements(backend);
+        measurements.myRenders.incrementAndGet();
+        measurements.myFailures.incrementAndGet();
+    }
+
+    void declined(@NotNull RstRendererBackend backend) {
+        getMeasurements(backend).myDeclined.incrementAndGet();
+    }
+
+    /**
+     * Appends one line per backend to a diagnostics report.
+     */
+    void appendReport(@NotNull StringBuilder report) {
+        for (RstRendererBackend backend : RstRendererBackend.EP_NAME.getExtensionList()) {
+            Stats stats = getStats(backend);
+            String problem = backend.checkHealth();
+            report.append(String.format("  %-20s %6d renders %5d failed %6d declined  p50 %8.1f ms  p95 %8.1f ms  %s%n",
+                    backend.getId(), stats.renders(), stats.failures(), stats.declined(),
+                    stats.p50Micros() / 1000.0, stats.p95Micros() / 1000.0, problem != null ? problem : "ok"));
+        }
+    }
+
+    private long getCost(@NotNull RstRendererBackend backend) {
+        Measurements measurements = getMeasurements(backend);
+        long renders = measurements.myRenders.get();
+        if (renders < MIN_SAMPLES) return Long.MAX_VALUE;
+        if (measurements.mySuccesses.getCount() == 0) return Long.MAX_VALUE - 1;
+
+        double failureRate = Math.min(MAX_FAILURE_RATE, (double) measurements.myFailures.get() / renders);
+        return (long) (measurements.mySuccesses.getPercentile(0.50) / (1 - failureRate));
+    }
+
+    private @NotNull Measurements getMeasurements(@NotNull RstRendererBackend backend) {
+        return myMeasurements.computeIfAbsent(backend.getId(), id -> new Measurements());
+    }
+}
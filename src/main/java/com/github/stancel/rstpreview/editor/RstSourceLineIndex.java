@@ -0,0 +1,162 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps source lines to the elements of a preview page, so the preview can follow the editor
+ * without asking the browser where things are. Renderers mark the elements that start a block
+ * with {@link #LINE_ATTRIBUTE}; the index is built once per page and keeps the marked elements
+ * whose lines go up in document order, each standing for the lines up to the next one.
+ * <p>
+ * The browser finds an element by its position among the marked elements, so the attribute
+ * values are blanked in the page it gets. Pages that differ only in line numbers, e.g. after
+ * a line is inserted at the top, then patch only the blocks that changed.
+ */
+final class RstSourceLineIndex {
+    static final String LINE_ATTRIBUTE = "data-rst-line";
+    static final RstSourceLineIndex EMPTY = new Builder().build();
+
+    private static final Pattern LINE_ANCHOR = Pattern.compile(" " + LINE_ATTRIBUTE + "=\"(\\d+)\"");
+    private static final String BLANK_ANCHOR = " " + LINE_ATTRIBUTE + "=\"\"";
+
+    /**
+     * Where to scroll for a source line.
+     *
+     * @param block    the large document block holding the element, or -1 for the whole page
+     * @param anchor   the position of the element among the marked elements of the block or page,
+     *                 or -1 to scroll to {@code fraction} of the page height instead
+     * @param fraction how far the line is from this element to the next one
+     */
+    record Target(int block, int anchor, int nextBlock, int nextAnchor, double fraction) {
+        @NotNull String toJson() {
+            return "[" + block + "," + anchor + "," + nextBlock + "," + nextAnchor + "," + (float) fraction + "]";
+        }
+    }
+
+    private final int @NotNull [] myLines;
+    private final int @NotNull [] myBlocks;
+    private final int @NotNull [] myAnchors;
+
+    private RstSourceLineIndex(int @NotNull [] lines, int @NotNull [] blocks, int @NotNull [] anchors) {
+        myLines = lines;
+        myBlocks = blocks;
+        myAnchors = anchors;
+    }
+
+    /**
+     * Indexes a page from a renderer.
+     *
+     * @return the page with the line numbers blanked, and its index
+     */
+    static @NotNull Pair<String, RstSourceLineIndex> extract(@NotNull String html) {
+        Matcher matcher = LINE_ANCHOR.matcher(html);
+        if (!matcher.find()) return Pair.create(html, EMPTY);
+
+        Builder builder = new Builder();
+        StringBuilder page = new StringBuilder(html.length());
+        int anchor = 0;
+        int copied = 0;
+        do {
+            builder.add(parseLine(html, matcher.start(1), matcher.end(1)), -1, anchor++);
+            page.append(html, copied, matcher.start()).append(BLANK_ANCHOR);
+            copied = matcher.end();
+        } while (matcher.find());
+        return Pair.create(page.append(html, copied, html.length()).toString(), builder.build());
+    }
+
+    /**
+     * Appends a fragment rendered from a part of the document, moving its line numbers down by the
+     * {@code lines} lines before that part.
+     */
+    static void appendShifted(@NotNull StringBuilder out, @NotNull String fragment, int lines) {
+        if (lines == 0) {
+            out.append(fragment);
+            return;
+        }
+        Matcher matcher = LINE_ANCHOR.matcher(fragment);
+        int copied = 0;
+        while (matcher.find()) {
+            out.append(fragment, copied, matcher.start(1))
+               .append(parseLine(fragment, matcher.start(1), matcher.end(1)) + lines);
+            copied = matcher.end(1);
+        }
+        out.append(fragment, copied, fragment.length());
+    }
+
+    /**
+     * @return the page without line marks, for use outside the preview
+     */
+    static @NotNull String strip(@NotNull String html) {
+        return html.contains(LINE_ATTRIBUTE) ? LINE_ANCHOR.matcher(html).replaceAll("") : html;
+    }
+
+    static int parseLine(@NotNull CharSequence text, int start, int end) {
+        int line = 0;
+        for (int i = start; i < end && line < Integer.MAX_VALUE / 10; i++) {
+            line = line * 10 + text.charAt(i) - '0';
+        }
+        return line;
+    }
+
+    /**
+     * Finds the element for a line in O(log n). Lines before the first marked element map to the
+     * top of the page; if nothing is marked, lines map to the same fraction of the page height.
+     *
+     * @param line      zero-based, as in the editor
+     * @param lineCount the number of lines in the document
+     */
+    @NotNull Target find(int line, int lineCount) {
+        if (myLines.length == 0) {
+            return new Target(-1, -1, -1, -1, lineCount > 1 ? (double) line / (lineCount - 1) : 0);
+        }
+        int sourceLine = line + 1;
+        int i = Arrays.binarySearch(myLines, sourceLine);
+        if (i < 0) i = -i - 2;
+        if (i < 0) return new Target(-1, -1, -1, -1, 0);
+
+        if (i + 1 == myLines.length) {
+            int span = Math.max(1, lineCount - myLines[i] + 1);
+            return new Target(myBlocks[i], myAnchors[i], -1, -1, Math.min(1, (double) (sourceLine - myLines[i]) / span));
+        }
+        return new Target(myBlocks[i], myAnchors[i], myBlocks[i + 1], myAnchors[i + 1],
+                (double) (sourceLine - myLines[i]) / (myLines[i + 1] - myLines[i]));
+    }
+
+    /**
+     * Collects marked elements in document order.
+     */
+    static final class Builder {
+        private int[] myLines = new int[64];
+        private int[] myBlocks = new int[64];
+        private int[] myAnchors = new int[64];
+        private int mySize;
+
+        /**
+         * Adds an element, unless its line doesn't come after the last one added: renderers mark
+         * some containers with the line of their last child, and nested elements may repeat lines.
+         */
+        void add(int line, int block, int anchor) {
+            if (line <= 0 || mySize > 0 && line <= myLines[mySize - 1]) return;
+            if (mySize == myLines.length) {
+                myLines = Arrays.copyOf(myLines, mySize * 2);
+                myBlocks = Arrays.copyOf(myBlocks, mySize * 2);
+                myAnchors = Arrays.copyOf(myAnchors, mySize * 2);
+            }
+            myLines[mySize] = line;
+            myBlocks[mySize] = block;
+            myAnchors[mySize] = anchor;
+            mySize++;
+        }
+
+        @NotNull RstSourceLineIndex build() {
+            return new RstSourceLineIndex(Arrays.copyOf(myLines, mySize), Arrays.copyOf(myBlocks, mySize),
+                    Arrays.copyOf(myAnchors, mySize));
+        }
+    }
+}
@@ -1,40 +1,71 @@
 // Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
 package com.github.stancel.rstpreview.editor;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.ui.JBUI;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
+import java.awt.*;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Preview for platforms without JCEF. The {@link HTMLDocument} is parsed in {@link #prepare} and
+ * swapped into the editor pane on the EDT, keeping the scroll position.
+ */
 public final class RstSwingPreviewPanel implements RstPreviewPanel {
+    private static final Logger LOG = Logger.getInstance(RstSwingPreviewPanel.class);
+    private static final Pattern STYLE_ELEMENT = Pattern.compile("<style[^>]*>(.*?)</style>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final StyleSheet ourBaseStyleSheet = createBaseStyleSheet();
+    // rst2html embeds the same stylesheet in every page, so it is parsed once per distinct text.
+    private static final Map<String, StyleSheet> ourEmbeddedStyleSheets = ContainerUtil.createSoftValueMap();
+
     private final @NotNull JEditorPane myEditorPane;
     private final @NotNull JBScrollPane myScrollPane;
+    private final @NotNull HTMLEditorKit myKit;
+
+    private record PreparedDocument(@Nullable HTMLDocument document) implements Update {
+    }
 
     public RstSwingPreviewPanel() {
         myEditorPane = new JEditorPane();
         myEditorPane.setEditable(false);
-        myEditorPane.setContentType("text/html");
+        // The caret isn't shown; left alone it would scroll the pane to the top on every update.
+        ((DefaultCaret) myEditorPane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
 
-        HTMLEditorKit kit = new HTMLEditorKit();
-        StyleSheet styleSheet = kit.getStyleSheet();
-        styleSheet.addRule("body { font-family: sans-serif; font-size: 14px; padding: 10px; }");
-        styleSheet.addRule("h1, h2, h3 { color: #333; }");
-        styleSheet.addRule("code { background-color: #f5f5f5; padding: 2px 4px; }");
-        styleSheet.addRule("pre { background-color: #f5f5f5; padding: 10px; }");
-        styleSheet.addRule("a { color: #0366d6; }");
-        myEditorPane.setEditorKit(kit);
+        myKit = new HTMLEditorKit() {
+            @Override
+            public StyleSheet getStyleSheet() {
+                return ourBaseStyleSheet;
+            }
+        };
+        myEditorPane.setEditorKit(myKit);
 
         myScrollPane = new JBScrollPane(myEditorPane);
         myScrollPane.setBorder(JBUI.Borders.empty());
     }
 
     @Override
-    public void setHtml(@NotNull String html) {
-        myEditorPane.setText(html);
-        myEditorPane.setCaretPosition(0);
+    public @NotNull Update prepare(@NotNull String html) {
+        return new PreparedDocument(buildDocument(html));
+    }
+
+    @Override
+    public void show(@NotNull Update update) {
+        HTMLDocument document = ((PreparedDocument) update).document();
+        if (document != null) swapDocument(document);
     }
 
     @Override
@@ -42,6 +73,18 @@ public final class RstSwingPreviewPanel implements RstPreviewPanel {
         myEditorPane.repaint();
     }
 
+    /**
+     * The Swing document isn't indexed by source line, so lines map to the same fraction of the page.
+     */
+    @Override
+    public void scrollToSourceLine(int line, int lineCount, double viewportRatio) {
+        JViewport viewport = myScrollPane.getViewport();
+        int range = viewport.getViewSize().height - viewport.getExtentSize().height;
+        if (range <= 0 || lineCount < 2) return;
+        int y = (int) Math.round(range * (double) line / (lineCount - 1));
+        viewport.setViewPosition(new Point(viewport.getViewPosition().x, y));
+    }
+
     @Override
     public @NotNull JComponent getComponent() {
         return myScrollPane;
@@ -50,4 +93,64 @@ public final class RstSwingPreviewPanel implements RstPreviewPanel {
     @Override
     public void dispose() {
     }
+
+    private @Nullable HTMLDocument buildDocument(@NotNull String html) {
+        HTMLDocument document = (HTMLDocument) myKit.createDefaultDocument();
+        document.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+
+        int headEnd = html.indexOf("</head>");
+        String body = html;
+        if (headEnd >= 0) {
+            Matcher matcher = STYLE_ELEMENT.matcher(html).region(0, headEnd);
+            StringBuilder stripped = new StringBuilder(html.length());
+            int copied = 0;
+            while (matcher.find()) {
+                document.getStyleSheet().addStyleSheet(getEmbeddedStyleSheet(matcher.group(1)));
+                stripped.append(html, copied, matcher.start());
+                copied = matcher.end();
+            }
+            if (copied > 0) body = stripped.append(html, copied, html.length()).toString();
+        }
+
+        try {
+            myKit.read(new StringReader(body), document, 0);
+            return document;
+        } catch (IOException | BadLocationException | RuntimeException e) {
+            LOG.warn("Failed to build the Swing preview", e);
+            return null;
+        }
+    }
+
+    private void swapDocument(@NotNull HTMLDocument document) {
+        JViewport viewport = myScrollPane.getViewport();
+        Point position = viewport.getViewPosition();
+        myEditorPane.setDocument(document);
+        myScrollPane.validate();
+        Dimension extent = viewport.getExtentSize();
+        Dimension size = viewport.getViewSize();
+        viewport.setViewPosition(new Point(
+                Math.max(0, Math.min(position.x, size.width - extent.width)),
+                Math.max(0, Math.min(position.y, size.height - extent.height))));
+    }
+
+    private static @NotNull StyleSheet getEmbeddedStyleSheet(@NotNull String css) {
+        synchronized (ourEmbeddedStyleSheets) {
+            return ourEmbeddedStyleSheets.computeIfAbsent(css, text -> {
+                StyleSheet styleSheet = new StyleSheet();
+                styleSheet.addRule(text);
+                return styleSheet;
+            });
+        }
+    }
+
+    private static @NotNull StyleSheet createBaseStyleSheet() {
+        StyleSheet styleSheet = new StyleSheet();
+        styleSheet.addStyleSheet(new HTMLEditorKit().getStyleSheet());
+        styleSheet.addRule("body { font-family: sans-serif; font-size: 14px; padding: 10px; }");
+        styleSheet.addRule("h1, h2, h3 { color: #333; }");
+        styleSheet.addRule("code { background-color: #f5f5f5; padding: 2px 4px; }");
+        styleSheet.addRule("pre { background-color: #f5f5f5; padding: 10px; }");
+        styleSheet.addRule("a { color: #0366d6; }");
+        return styleSheet;
+    }
 }
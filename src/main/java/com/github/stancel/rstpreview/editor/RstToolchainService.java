@@ -0,0 +1,332 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Works out how to launch rst2html once, in the background, instead of on every render. The
+ * result is kept until the configured command changes or one of the files it was resolved from
+ * (the rst2html script or the Python interpreter) changes on disk.
+ */
+public final class RstToolchainService implements Disposable {
+    private static final Logger LOG = Logger.getInstance(RstToolchainService.class);
+    private static final int VERSION_TIMEOUT_MS = 10000;
+    private static final long CANCEL_POLL_MS = 20L;
+    private static final Pattern DOCUTILS_VERSION = Pattern.compile("Docutils ([\\w.]+)");
+
+    /**
+     * @param command         the rst2html command, as configured or detected
+     * @param launchCommand   the program and arguments that run {@code command}
+     * @param interpreter     the Python interpreter docutils is installed in, empty if unknown
+     * @param executable      whether {@code command} exists and can be run
+     * @param docutilsVersion the reported docutils version, or {@code null} if it couldn't be determined
+     * @param fingerprint     identifies this installation; it changes when any of the above does
+     */
+    public record Toolchain(@NotNull String command, @NotNull List<String> launchCommand,
+                            @NotNull List<String> interpreter, boolean executable,
+                            @Nullable String docutilsVersion, @NotNull String fingerprint) {}
+
+    private final Object myLock = new Object();
+    private @Nullable CompletableFuture<Toolchain> myToolchain;
+    private @NotNull String myConfiguredCommand = "";
+    private volatile @NotNull Set<String> myWatchedPaths = Set.of();
+    private @NotNull Set<LocalFileSystem.WatchRequest> myWatchRequests = Set.of();
+
+    public RstToolchainService() {
+        ApplicationManager.getApplication().getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+                Set<String> watched = myWatchedPaths;
+                if (watched.isEmpty()) return;
+                for (VFileEvent event : events) {
+                    if (watched.contains(event.getPath())) {
+                        LOG.info("rst2html toolchain changed on disk (" + event.getPath() + "), resolving it again");
+                        invalidate();
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    public static RstToolchainService getInstance() {
+        return ApplicationManager.getApplication().getService(RstToolchainService.class);
+    }
+
+    /**
+     * Returns the toolchain for the current settings, starting to resolve it in the background if
+     * that hasn't happened yet. Never touches the file system on the calling thread.
+     */
+    public @NotNull CompletableFuture<Toolchain> getToolchain() {
+        String configured = RstPreviewSettings.getInstance().getRst2HtmlCommand();
+        synchronized (myLock) {
+            if (myToolchain == null || !configured.equals(myConfiguredCommand)) {
+                myConfiguredCommand = configured;
+                myToolchain = CompletableFuture.supplyAsync(() -> resolve(configured), AppExecutorUtil.getAppExecutorService());
+            }
+            return myToolchain;
+        }
+    }
+
+    /**
+     * Waits for {@link #getToolchain()} while polling {@code indicator}.
+     *
+     * @return the toolchain, or {@code null} if {@code indicator} was cancelled
+     */
+    public @Nullable Toolchain awaitToolchain(@NotNull ProgressIndicator indicator) {
+        CompletableFuture<Toolchain> toolchain = getToolchain();
+        try {
+            while (!indicator.isCanceled()) {
+                try {
+                    return toolchain.get(CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // resolve() handles its own failures, so this is a bug; don't keep returning it.
+            LOG.error("Failed to resolve rst2html toolchain", e.getCause());
+            invalidate();
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the resolved toolchain; the next {@link #getToolchain()} resolves it again.
+     */
+    public void invalidate() {
+        synchronized (myLock) {
+            myToolchain = null;
+        }
+    }
+
+    private @NotNull Toolchain resolve(@NotNull String configured) {
+        String command = configured.isEmpty() ? findRst2Html() : configured;
+        boolean executable = isExecutable(command);
+
+        List<String> interpreter = List.of();
+        List<String> launchCommand = List.of(command);
+        String docutilsVersion = null;
+        if (executable) {
+            // The script, the version probe and the worker all run on one interpreter: the one
+            // named in the shebang, which docutils is installed in, or else the first on the PATH.
+            List<String> shebang = readPythonShebang(command);
+            boolean needsPython = command.endsWith(".py") || !shebang.isEmpty();
+            if (!shebang.isEmpty()) {
+                interpreter = shebang;
+            } else {
+                String python = findPython();
+                if (python != null) interpreter = List.of(python);
+            }
+            if (needsPython && !interpreter.isEmpty()) {
+                launchCommand = ContainerUtil.append(interpreter, command);
+            }
+            docutilsVersion = readDocutilsVersion(launchCommand);
+        }
+
+        String fingerprint = String.join("\0", launchCommand) + "\0" + String.join(" ", interpreter) + "\0" +
+                lastModified(command) + "\0" + docutilsVersion;
+        Toolchain toolchain = new Toolchain(command, launchCommand, interpreter, executable, docutilsVersion, fingerprint);
+        LOG.info("Resolved rst2html toolchain: " + launchCommand + ", docutils " + docutilsVersion);
+
+        watch(toolchain);
+        return toolchain;
+    }
+
+    /**
+     * Watches the rst2html script and the interpreter, so that reinstalling or upgrading docutils
+     * is picked up without a restart.
+     */
+    private void watch(@NotNull Toolchain toolchain) {
+        Set<String> paths = new HashSet<>();
+        for (String path : List.of(toolchain.command(), toolchain.interpreter().isEmpty() ? "" : toolchain.interpreter().get(0))) {
+            if (!path.isEmpty() && Paths.get(path).isAbsolute()) {
+                paths.add(Paths.get(path).toString().replace(File.separatorChar, '/'));
+            }
+        }
+
+        LocalFileSystem fileSystem = LocalFileSystem.getInstance();
+        Set<String> roots = new HashSet<>();
+        for (String path : paths) {
+            String parent = Paths.get(path).getParent() != null ? Paths.get(path).getParent().toString() : null;
+            if (parent != null) roots.add(parent);
+        }
+        synchronized (myLock) {
+            myWatchRequests = fileSystem.replaceWatchedRoots(myWatchRequests, null, roots);
+        }
+        for (String path : paths) {
+            // Only files known to the VFS produce events.
+            fileSystem.refreshAndFindFileByPath(path);
+        }
+        myWatchedPaths = Set.copyOf(paths);
+    }
+
+    private static @Nullable String readDocutilsVersion(@NotNull List<String> launchCommand) {
+        try {
+            GeneralCommandLine commandLine = new GeneralCommandLine(launchCommand).withParameters("--version");
+            commandLine.setCharset(StandardCharsets.UTF_8);
+            ProcessOutput output = new CapturingProcessHandler(commandLine).runProcess(VERSION_TIMEOUT_MS);
+            Matcher matcher = DOCUTILS_VERSION.matcher(output.getStdout() + output.getStderr());
+            return matcher.find() ? matcher.group(1) : null;
+        } catch (Exception e) {
+            LOG.debug("Failed to read the docutils version", e);
+            return null;
+        }
+    }
+
+    private static long lastModified(@NotNull String path) {
+        try {
+            return Files.getLastModifiedTime(Paths.get(path)).toMillis();
+        } catch (Exception e) {
+            return 0L;
+        }
+    }
+
+    private static boolean isExecutable(@NotNull String path) {
+        if (!path.contains(File.separator) && !path.contains("/")) {
+            return true;
+        }
+        Path p = Paths.get(path);
+        return Files.exists(p) && (Files.isExecutable(p) || SystemInfo.isWindows);
+    }
+
+    /**
+     * Reads only the first line of the script; the interpreter named there is the one docutils is
+     * installed in.
+     *
+     * @return the interpreter command from a Python shebang, or an empty list if there is none
+     */
+    private static @NotNull List<String> readPythonShebang(@NotNull String command) {
+        Path script = Paths.get(command);
+        if (!Files.isRegularFile(script)) return List.of();
+        try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.ISO_8859_1)) {
+            String firstLine = reader.readLine();
+            if (firstLine != null && firstLine.startsWith("#!") && firstLine.contains("python")) {
+                List<String> interpreter = new ArrayList<>(Arrays.asList(firstLine.substring(2).trim().split("\\s+")));
+                interpreter.removeIf(String::isEmpty);
+                return List.copyOf(interpreter);
+            }
+        } catch (IOException ignored) {}
+        return List.of();
+    }
+
+    private static @Nullable String findPython() {
+        String[] candidates = SystemInfo.isWindows
+                ? new String[]{"python.exe", "python3.exe", "py.exe"}
+                : new String[]{"python3", "python"};
+
+        String pathEnv = System.getenv("PATH");
+        if (pathEnv != null) {
+            for (String dir : pathEnv.split(File.pathSeparator)) {
+                for (String candidate : candidates) {
+                    Path p = Paths.get(dir, candidate);
+                    if (Files.exists(p) && Files.isExecutable(p)) {
+                        return p.toString();
+                    }
+                }
+            }
+        }
+
+        String homeDir = System.getProperty("user.home");
+        if (homeDir != null) {
+            Path pyenvPython = Paths.get(homeDir, ".pyenv", "shims", "python3");
+            if (Files.exists(pyenvPython)) return pyenvPython.toString();
+            pyenvPython = Paths.get(homeDir, ".pyenv", "shims", "python");
+            if (Files.exists(pyenvPython)) return pyenvPython.toString();
+        }
+
+        for (String loc : new String[]{"/usr/bin/python3", "/usr/local/bin/python3", "/usr/bin/python"}) {
+            if (Files.exists(Paths.get(loc))) return loc;
+        }
+
+        return null;
+    }
+
+    private static @NotNull String findRst2Html() {
+        List<String> candidates = new ArrayList<>();
+
+        String pathEnv = System.getenv("PATH");
+        if (pathEnv != null) {
+            for (String dir : pathEnv.split(File.pathSeparator)) {
+                candidates.add(Paths.get(dir, "rst2html").toString());
+                candidates.add(Paths.get(dir, "rst2html.py").toString());
+            }
+        }
+
+        String homeDir = System.getProperty("user.home");
+        if (homeDir != null) {
+            // pyenv
+            candidates.add(Paths.get(homeDir, ".pyenv", "shims", "rst2html").toString());
+            // Local bin
+            candidates.add(Paths.get(homeDir, ".local", "bin", "rst2html").toString());
+            // pyenv versions
+            Path pyenvVersions = Paths.get(homeDir, ".pyenv", "versions");
+            if (Files.isDirectory(pyenvVersions)) {
+                try (Stream<Path> versions = Files.list(pyenvVersions)) {
+                    versions.forEach(version -> candidates.add(version.resolve("bin/rst2html").toString()));
+                } catch (Exception ignored) {}
+            }
+        }
+
+        if (!SystemInfo.isWindows) {
+            candidates.add("/usr/bin/rst2html");
+            candidates.add("/usr/bin/rst2html.py");
+            candidates.add("/usr/local/bin/rst2html");
+        }
+
+        for (String candidate : candidates) {
+            Path path = Paths.get(candidate);
+            if (Files.exists(path) && Files.isExecutable(path)) {
+                return candidate;
+            }
+        }
+
+        return "rst2html";
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (myLock) {
+            LocalFileSystem.getInstance().removeWatchedRoots(myWatchRequests);
+            myWatchRequests = Set.of();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+// Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+package com.github.stancel.rstpreview.editor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A large preview page split into a small shell for the browser and blocks kept on the Java side.
+ * The shell keeps the document structure down to the blocks, each of which is replaced with an
+ * empty placeholder; {@link RstJcefPreviewPanel} sizes the placeholders with estimated heights and
+ * swaps blocks in as they come near the viewport.
+ * <p>
+ * Sections bigger than {@link #MAX_BLOCK_CHARS} are split into their children, so a document made
+ * of one huge section still becomes many blocks. Only plain containers are split, as placeholders
+ * inside tables or lists would be moved around by the HTML parser.
+ * <p>
+ * Source line anchors are indexed by block, since the browser only has the blocks near the viewport.
+ */
+final class RstVirtualPage {
+    static final String BLOCK_ATTRIBUTE = "data-rst-block";
+    static final String PLACEHOLDER_CLASS = "rst-preview-placeholder";
+
+    private static final int MAX_BLOCK_CHARS = 16 * 1024;
+    private static final Set<String> SPLIT_CONTAINERS = Set.of("body", "div", "section", "main", "article");
+    private static final int LINE_HEIGHT = 22;
+    private static final int CHARS_PER_LINE = 100;
+
+    private final @NotNull String myShell;
+    private final @NotNull List<String> myBlocks;
+    private final int @NotNull [] myHeights;
+    private final @NotNull Map<String, Integer> myAnchors;
+    private final @NotNull RstSourceLineIndex myLineIndex;
+
+    private RstVirtualPage(@NotNull String shell, @NotNull List<String> blocks, int @NotNull [] heights,
+                           @NotNull Map<String, Integer> anchors, @NotNull RstSourceLineIndex lineIndex) {
+        myShell = shell;
+        myBlocks = blocks;
+        myHeights = heights;
+        myAnchors = anchors;
+        myLineIndex = lineIndex;
+    }
+
+    /**
+     * Splits {@code document}, which is modified in the process.
+     */
+    static @NotNull RstVirtualPage build(@NotNull Document document) {
+        List<String> blocks = new ArrayList<>();
+        List<Integer> heights = new ArrayList<>();
+        Map<String, Integer> anchors = new HashMap<>();
+        RstSourceLineIndex.Builder lines = new RstSourceLineIndex.Builder();
+        document.outputSettings().prettyPrint(false);
+        split(document.body(), blocks, heights, anchors, lines);
+        document.head().appendElement("style").appendText("." + PLACEHOLDER_CLASS + " { overflow: hidden; }");
+        return new RstVirtualPage(document.outerHtml(), List.copyOf(blocks),
+                heights.stream().mapToInt(Integer::intValue).toArray(), anchors, lines.build());
+    }
+
+    /**
+     * The page to load, with a placeholder for every block. Two pages with the same shell differ
+     * only in the content of their blocks.
+     */
+    @NotNull String getShell() {
+        return myShell;
+    }
+
+    /**
+     * The source line anchors of the page, located by block.
+     */
+    @NotNull RstSourceLineIndex getLineIndex() {
+        return myLineIndex;
+    }
+
+    /**
+     * @return the block holding the element with this id, or -1
+     */
+    int findAnchor(@NotNull String id) {
+        return myAnchors.getOrDefault(id, -1);
+    }
+
+    /**
+     * @return the estimated placeholder heights in pixels as a JSON array
+     */
+    @NotNull String getHeightsJson() {
+        StringBuilder json = new StringBuilder(myHeights.length * 4).append('[');
+        for (int i = 0; i < myHeights.length; i++) {
+            if (i > 0) json.append(',');
+            json.append(myHeights[i]);
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @return the requested blocks as a JSON array of {@code [index, html]} pairs
+     */
+    @NotNull String getBlocksJson(@NotNull List<Integer> indices) {
+        StringBuilder json = new StringBuilder().append('[');
+        for (int index : indices) {
+            if (index < 0 || index >= myBlocks.size()) continue;
+            if (json.length() > 1) json.append(',');
+            json.append('[').append(index).append(',').append(RstJcefPreviewPanel.toJsString(myBlocks.get(index))).append(']');
+        }
+        return json.append(']').toString();
+    }
+
+    /**
+     * @param previous a page with the same shell
+     * @return the blocks that changed since {@code previous} as a JSON array of
+     * {@code [index, html, height]}, or {@code null} if none did
+     */
+    @Nullable String getChangesJson(@NotNull RstVirtualPage previous) {
+        StringBuilder json = new StringBuilder().append('[');
+        for (int i = 0; i < myBlocks.size(); i++) {
+            if (myBlocks.get(i).equals(previous.myBlocks.get(i))) continue;
+            if (json.length() > 1) json.append(',');
+            json.append('[').append(i).append(',').append(RstJcefPreviewPanel.toJsString(myBlocks.get(i)))
+                .append(',').append(myHeights[i]).append(']');
+        }
+        return json.length() > 1 ? json.append(']').toString() : null;
+    }
+
+    private static void split(@NotNull Element parent, @NotNull List<String> blocks, @NotNull List<Integer> heights,
+                              @NotNull Map<String, Integer> anchors, @NotNull RstSourceLineIndex.Builder lines) {
+        for (Element child : new ArrayList<>(parent.children())) {
+            if (SPLIT_CONTAINERS.contains(child.normalName()) && child.childrenSize() > 1 &&
+                child.outerHtml().length() > MAX_BLOCK_CHARS) {
+                // The container stays in the shell, where line anchors aren't looked for.
+                child.removeAttr(RstSourceLineIndex.LINE_ATTRIBUTE);
+                split(child, blocks, heights, anchors, lines);
+                continue;
+            }
+
+            String index = Integer.toString(blocks.size());
+            child.attr(BLOCK_ATTRIBUTE, index);
+            int anchor = 0;
+            for (Element marked : child.select("[" + RstSourceLineIndex.LINE_ATTRIBUTE + "]")) {
+                String line = marked.attr(RstSourceLineIndex.LINE_ATTRIBUTE);
+                lines.add(RstSourceLineIndex.parseLine(line, 0, line.length()), blocks.size(), anchor++);
+                marked.attr(RstSourceLineIndex.LINE_ATTRIBUTE, "");
+            }
+            blocks.add(child.outerHtml());
+            heights.add(estimateHeight(child));
+            for (Element withId : child.select("[id]")) {
+                anchors.putIfAbsent(withId.id(), blocks.size() - 1);
+            }
+            child.replaceWith(new Element("div").attr(BLOCK_ATTRIBUTE, index).addClass(PLACEHOLDER_CLASS));
+        }
+    }
+
+    /**
+     * A rough height for the block with the preview's built-in style, so the scroll bar is about
+     * right before the block is shown. The browser measures real heights once blocks are swapped in.
+     */
+    private static int estimateHeight(@NotNull Element block) {
+        int height = 0;
+        for (Element element : block.getAllElements()) {
+            switch (element.normalName()) {
+                case "h1", "h2", "h3", "h4", "h5", "h6" -> height += 56;
+                case "p", "li", "dt", "dd", "tr", "caption" -> height += 16 + LINE_HEIGHT * lines(element.ownText().length());
+                case "pre" -> height += 32 + LINE_HEIGHT * (int) (element.wholeText().chars().filter(c -> c == '\n').count() + 1);
+                case "img" -> height += 240;
+                default -> {
+                }
+            }
+        }
+        return Math.max(LINE_HEIGHT, height);
+    }
+
+    private static int lines(int chars) {
+        return Math.max(1, (chars + CHARS_PER_LINE - 1) / CHARS_PER_LINE);
+    }
+}
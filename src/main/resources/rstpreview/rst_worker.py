@@ -0,0 +1,125 @@
+# Copyright 2024 Brad Stancel. Licensed under Apache 2.0.
+"""Resident docutils worker used by the ReStructuredText Preview plugin.
+
+Reads framed render requests on stdin and writes framed replies on stdout so
+that the Python interpreter and docutils are only loaded once per IDE session.
+
+Request:  b"<args-bytes> <cwd-bytes> <source-bytes>\\n" followed by the payloads,
+          where args is a NUL-separated list of rst2html command line options.
+Reply:    b"<status> <html-bytes> <warnings-bytes>\\n" followed by the payloads.
+
+Block elements carry a data-rst-line attribute with the source line docutils
+recorded for them, which the preview uses to scroll along with the editor.
+"""
+import copy
+import io
+import os
+import sys
+import traceback
+
+try:
+    import docutils
+    import docutils.io
+    from docutils import nodes
+    from docutils.core import Publisher
+except ImportError as e:
+    sys.stderr.write("docutils is not importable: %s\n" % e)
+    sys.exit(3)
+
+_settings_cache = {}
+_translator_cache = {}
+
+
+def _line_anchor_translator(base):
+    translator = _translator_cache.get(base)
+    if translator is None:
+        class LineAnchorTranslator(base):
+            def starttag(self, node, tagname, suffix="\n", empty=False, **attributes):
+                line = getattr(node, "line", None)
+                if line and isinstance(node, nodes.Element) and not isinstance(node, nodes.Inline):
+                    attributes.setdefault("data-rst-line", line)
+                return base.starttag(self, node, tagname, suffix, empty, **attributes)
+
+        translator = _translator_cache[base] = LineAnchorTranslator
+    return translator
+
+
+def _settings_for(args, cwd):
+    key = (args, cwd)
+    settings = _settings_cache.get(key)
+    if settings is None:
+        publisher = Publisher()
+        publisher.set_components("standalone", "restructuredtext", "html")
+        publisher.process_command_line(argv=list(args))
+        settings = publisher.settings
+        _settings_cache[key] = settings
+    return settings
+
+
+def _render(args, cwd, source):
+    if cwd and os.path.isdir(cwd):
+        os.chdir(cwd)
+    warnings = io.StringIO()
+    settings = copy.copy(_settings_for(args, cwd))
+    settings.warning_stream = warnings
+    publisher = Publisher(source_class=docutils.io.StringInput,
+                          destination_class=docutils.io.StringOutput,
+                          settings=settings)
+    publisher.set_components("standalone", "restructuredtext", "html")
+    publisher.writer.translator_class = _line_anchor_translator(publisher.writer.translator_class)
+    publisher.set_source(source=source, source_path="<stdin>")
+    publisher.set_destination()
+    try:
+        output = publisher.publish()
+        status = 0
+    except Exception as e:
+        output = b""
+        status = 1
+        warnings.write("%s: %s\n" % (type(e).__name__, e))
+    if isinstance(output, str):
+        output = output.encode("utf-8")
+    return status, output, warnings.getvalue().encode("utf-8")
+
+
+def _read_exactly(stream, size):
+    data = stream.read(size) if size else b""
+    if len(data) != size:
+        raise EOFError()
+    return data
+
+
+def main():
+    requests = sys.stdin.buffer
+    replies = sys.stdout.buffer
+    # Anything docutils prints must not corrupt the reply framing.
+    sys.stdout = sys.stderr
+
+    replies.write(("READY %s\n" % docutils.__version__).encode("utf-8"))
+    replies.flush()
+
+    while True:
+        header = requests.readline()
+        if not header:
+            return
+        try:
+            args_len, cwd_len, source_len = (int(part) for part in header.split())
+            raw_args = _read_exactly(requests, args_len).decode("utf-8")
+            cwd = _read_exactly(requests, cwd_len).decode("utf-8")
+            source = _read_exactly(requests, source_len)
+        except (EOFError, ValueError):
+            return
+
+        args = tuple(arg for arg in raw_args.split("\0") if arg)
+        try:
+            status, html, warnings = _render(args, cwd, source)
+        except BaseException:
+            status, html, warnings = 1, b"", traceback.format_exc().encode("utf-8")
+
+        replies.write(b"%d %d %d\n" % (status, len(html), len(warnings)))
+        replies.write(html)
+        replies.write(warnings)
+        replies.flush()
+
+
+if __name__ == "__main__":
+    main()